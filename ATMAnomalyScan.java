@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Rescores every withdrawal in the complete history of every account with
+ * {@link AnomalyScorer}, as if each had been scored live against the postings
+ * before it, e.g. to review past postings or to try the scoring on old data.
+ * The accounts are split over a fork-join pool: a task halves its range of
+ * accounts until at most {@link #LEAF} are left, takes those from the store,
+ * scores them with a scorer of its own and returns its findings, which are
+ * joined back in account order. Spilled history is read without a lock and the
+ * store locks only one segment of its cache per lookup, so the leaves hardly
+ * ever wait on each other.
+ *
+ * <pre>
+ * java ATMAnomalyScan [--dir path] [--shards n] [--report path] [--threads n] [--cache-mb 64]
+ * </pre>
+ *
+ * The report is CSV, one line per withdrawal scored at or above
+ * {@link AnomalyScorer#FLAG}: {@code account,date,time,amount,score,action}
+ * with action FLAG, or HOLD at {@link AnomalyScorer#HOLD} and above.
+ *
+ * Run it while no terminal or server has the same account files open.
+ */
+public class ATMAnomalyScan {
+    static final int LEAF = 64;
+
+    /** Counts and report lines of a range of accounts. */
+    static final class Findings {
+        final StringBuilder report = new StringBuilder();
+        long accounts;
+        long withdrawals;
+        long flagged;
+        long held;
+        long errors;
+
+        void add(Findings other) {
+            report.append(other.report);
+            accounts += other.accounts;
+            withdrawals += other.withdrawals;
+            flagged += other.flagged;
+            held += other.held;
+            errors += other.errors;
+        }
+    }
+
+    private static final class Scan extends RecursiveTask<Findings> {
+        private static final long serialVersionUID = 1L;
+
+        private final LocalATMService shard;
+        private final List<String> numbers;
+        private final int from;
+        private final int to;
+
+        Scan(LocalATMService shard, List<String> numbers, int from, int to) {
+            this.shard = shard;
+            this.numbers = numbers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Findings compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                Scan left = new Scan(shard, numbers, from, mid);
+                left.fork();
+                Findings right = new Scan(shard, numbers, mid, to).compute();
+                Findings all = left.join();
+                all.add(right);
+                return all;
+            }
+            Findings f = new Findings();
+            AnomalyScorer scorer = new AnomalyScorer(1);
+            Account[] accounts;
+            try {
+                accounts = shard.acquireAccounts(numbers, from, to);
+            } catch (IOException e) {
+                f.errors += to - from;
+                System.err.println("Error reading accounts: " + e.getMessage());
+                return f;
+            }
+            try {
+                for (Account acc : accounts) {
+                    if (acc == null) {
+                        continue;
+                    }
+                    String number = acc.getAccountNumber();
+                    try {
+                        f.withdrawals += scorer.rescore(acc, (timestamp, amount, score) -> {
+                            boolean hold = score >= AnomalyScorer.HOLD;
+                            if (hold) {
+                                f.held++;
+                            } else {
+                                f.flagged++;
+                            }
+                            appendLine(f.report, number, timestamp, amount, score, hold);
+                        });
+                        f.accounts++;
+                    } catch (IOException e) {
+                        f.errors++;
+                        System.err.println("Error reading history of " + number + ": " + e.getMessage());
+                    }
+                }
+            } finally {
+                shard.releaseAccounts(accounts);
+            }
+            return f;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(".");
+        Path report = null;
+        int shardCount = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long cacheBytes = AccountCache.DEFAULT_CAPACITY;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                System.err.println("Usage: java ATMAnomalyScan [--dir path] [--shards n] [--report path]"
+                        + " [--threads n] [--cache-mb n]");
+                return;
+            }
+            switch (args[i]) {
+                case "--dir": dir = Paths.get(args[i + 1]); break;
+                case "--shards": shardCount = Integer.parseInt(args[i + 1]); break;
+                case "--report": report = Paths.get(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--cache-mb": cacheBytes = Long.parseLong(args[i + 1]) << 20; break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        if (report == null) {
+            report = dir.resolve("anomalies.csv");
+        }
+
+        LocalATMService[] shards = new LocalATMService[shardCount];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = shardCount == 1 ? new LocalATMService(dir, cacheBytes)
+                        : LocalATMService.openShard(dir.resolve(ShardedATMService.shardDir(i)), i, shardCount,
+                                cacheBytes);
+            }
+            long start = System.nanoTime();
+            Findings all = new Findings();
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report))) {
+                out.print("account,date,time,amount,score,action\n");
+                for (LocalATMService shard : shards) {
+                    List<String> numbers = shard.accountNumbers();
+                    Findings f = pool.invoke(new Scan(shard, numbers, 0, numbers.size()));
+                    out.append(f.report);
+                    f.report.setLength(0);
+                    all.add(f);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%,d accounts, %,d withdrawals scored in %.1f s (%,.0f accounts/s)%n", all.accounts,
+                    all.withdrawals, seconds, all.accounts / seconds);
+            System.out.printf("  %,d flagged, %,d would have been held; written to %s%n", all.flagged, all.held,
+                    report);
+            if (all.errors > 0) {
+                System.out.printf("  %,d accounts could not be read%n", all.errors);
+            }
+        } finally {
+            pool.shutdown();
+            for (LocalATMService s : shards) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    // e.g. "1000123456,05/02/2017,14:03:51,5000.00,83,HOLD", in the statements' Ethiopian dates and local time
+    static void appendLine(StringBuilder sb, String number, long timestamp, long amount, int score, boolean hold) {
+        LocalDate d = Transaction.ethiopianDate(timestamp);
+        LocalTime t = Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()).toLocalTime();
+        sb.append(number).append(',');
+        twoDigits(sb, d.getDayOfMonth()).append('/');
+        twoDigits(sb, d.getMonthValue()).append('/').append(d.getYear()).append(',');
+        twoDigits(sb, t.getHour()).append(':');
+        twoDigits(sb, t.getMinute()).append(':');
+        twoDigits(sb, t.getSecond()).append(',');
+        Money.appendTo(sb, amount).append(',').append(score).append(',').append(hold ? "HOLD" : "FLAG").append('\n');
+    }
+
+    private static StringBuilder twoDigits(StringBuilder sb, int n) {
+        return (n < 10 ? sb.append('0') : sb).append(n);
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Posts a file of deposits and withdrawals, e.g. end-of-day or mass deposits,
+ * straight through the transaction engine. The file is read in chunks of a
+ * fixed size, so memory stays bounded whatever its length. Each chunk is
+ * parsed and validated in parallel, sorted by account (the postings of one
+ * account keep their file order) and applied by several threads; the chunk is
+ * then committed as a whole, with the journal writer group-committing its
+ * postings, before the next chunk is read. Rejected postings go to a report
+ * with their line number and reason.
+ *
+ * <pre>
+ * java ATMBatch postings.csv [--dir path] [--shards n] [--rejects path] [--chunk 100000] [--threads n]
+ *                            [--cache-mb 64]
+ * </pre>
+ *
+ * CSV lines are {@code accountNumber,operation,amount} with operation
+ * DEPOSIT (D) or WITHDRAW (W) and the amount in Birr; a first line that does not
+ * start with a digit is a header. A binary file starts with the magic
+ * {@code ATMP} followed by 17-byte records [long accountNumber][byte operation,
+ * 1 deposit or 2 withdraw][long amount in santim].
+ *
+ * Run it while no terminal or server has the same account files open.
+ */
+public class ATMBatch {
+    static final int MAGIC = 0x41544D50; // "ATMP"
+    static final int DEFAULT_CHUNK = 100_000;
+    static final int MAX_CHUNK = 1 << 24;
+
+    private static final byte ACCEPTED = 0;
+    private static final byte MALFORMED = 1;
+    private static final byte UNKNOWN_OPERATION = 2;
+    private static final byte INVALID_AMOUNT = 3;
+    private static final byte UNKNOWN_ACCOUNT = 4;
+    private static final byte INSUFFICIENT_FUNDS = 5;
+    private static final byte REFUSED = 6;
+    private static final byte DAILY_LIMIT = 7;
+    private static final byte HELD = 8;
+    private static final String[] REASONS = { "", "MALFORMED", "UNKNOWN_OPERATION", "INVALID_AMOUNT",
+            "UNKNOWN_ACCOUNT", "INSUFFICIENT_FUNDS", "REFUSED", "DAILY_LIMIT", "HELD" };
+
+    interface Range {
+        void run(int from, int to);
+    }
+
+    private final LocalATMService[] shards;
+    private final int threads;
+    private final ExecutorService workers;
+
+    // One chunk of postings, reused for every chunk
+    private final String[] lines;
+    private final long[] lineNumbers;
+    private final long[] accountNumbers;
+    private final byte[] operations;
+    private final long[] amounts;
+    private final Account[] accounts;
+    private final byte[] reasons;
+    private final long[] order;
+    private final CompletableFuture<Boolean>[] results;
+
+    private long lineNumber;
+    private long read;
+    private long accepted;
+    private long deposited;
+    private long withdrawn;
+    private final long[] rejectedByReason = new long[REASONS.length];
+
+    @SuppressWarnings("unchecked")
+    ATMBatch(LocalATMService[] shards, int chunk, int threads) {
+        if (chunk <= 0 || chunk > MAX_CHUNK) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK);
+        }
+        this.shards = shards;
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "atm-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        lines = new String[chunk];
+        lineNumbers = new long[chunk];
+        accountNumbers = new long[chunk];
+        operations = new byte[chunk];
+        amounts = new long[chunk];
+        accounts = new Account[chunk];
+        reasons = new byte[chunk];
+        order = new long[chunk];
+        results = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[chunk];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: java ATMBatch postings.csv [--dir path] [--shards n] [--rejects path]"
+                    + " [--chunk n] [--threads n] [--cache-mb n]");
+            return;
+        }
+        Path input = Paths.get(args[0]);
+        Path dir = Paths.get(".");
+        Path rejects = Paths.get(args[0] + ".rejects");
+        int shardCount = 1;
+        int chunk = DEFAULT_CHUNK;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long cacheBytes = AccountCache.DEFAULT_CAPACITY;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--dir": dir = Paths.get(args[i + 1]); break;
+                case "--shards": shardCount = Integer.parseInt(args[i + 1]); break;
+                case "--rejects": rejects = Paths.get(args[i + 1]); break;
+                case "--chunk": chunk = Integer.parseInt(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--cache-mb": cacheBytes = Long.parseLong(args[i + 1]) << 20; break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        LocalATMService[] shards = new LocalATMService[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = shardCount == 1 ? new LocalATMService(dir, cacheBytes)
+                        : LocalATMService.openShard(dir.resolve(ShardedATMService.shardDir(i)), i, shardCount,
+                                cacheBytes);
+            }
+            new ATMBatch(shards, chunk, threads).run(input, rejects);
+        } finally {
+            for (LocalATMService s : shards) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    void run(Path input, Path rejectsPath) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long lastProgress = start;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(input), 1 << 16);
+                PrintWriter rejects = new PrintWriter(Files.newBufferedWriter(rejectsPath))) {
+            rejects.print("line,reason,posting\n");
+            in.mark(4);
+            byte[] magic = in.readNBytes(4);
+            boolean binary = magic.length == 4 && ((magic[0] & 0xff) << 24 | (magic[1] & 0xff) << 16
+                    | (magic[2] & 0xff) << 8 | (magic[3] & 0xff)) == MAGIC;
+            if (!binary) {
+                in.reset();
+            }
+            DataInputStream data = binary ? new DataInputStream(in) : null;
+            BufferedReader text = binary ? null
+                    : new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+
+            int n;
+            while ((n = binary ? readBinary(data) : readCsv(text)) > 0) {
+                validateAll(n, !binary);
+                apply(n);
+                commit(n);
+                report(n, rejects);
+                long now = System.nanoTime();
+                if (now - lastProgress > 5_000_000_000L) {
+                    lastProgress = now;
+                    System.out.printf("  %,d postings, %,.0f/s%n", read, read / ((now - start) / 1e9));
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+        printSummary(input, rejectsPath, (System.nanoTime() - start) / 1e9);
+    }
+
+    private int readCsv(BufferedReader in) throws IOException {
+        int n = 0;
+        String line;
+        while (n < lines.length && (line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")
+                    || (lineNumber == 1 && !Character.isDigit(line.strip().charAt(0)))) {
+                continue;
+            }
+            lines[n] = line;
+            lineNumbers[n] = lineNumber;
+            n++;
+        }
+        return n;
+    }
+
+    private int readBinary(DataInputStream in) throws IOException {
+        int n = 0;
+        try {
+            while (n < lines.length) {
+                long account = in.readLong();
+                byte op = in.readByte();
+                long amount = in.readLong();
+                lineNumbers[n] = ++lineNumber;
+                accountNumbers[n] = account;
+                operations[n] = op == Transaction.DEPOSIT || op == Transaction.WITHDRAW ? op : 0;
+                amounts[n] = amount;
+                n++;
+            }
+        } catch (EOFException e) {
+            // A torn last record is dropped with the end of the file
+        }
+        return n;
+    }
+
+    private void validateAll(int n, boolean csv) throws InterruptedException {
+        parallel(split(n), (from, to) -> {
+            for (int i = from; i < to; i++) {
+                reasons[i] = validate(i, csv);
+            }
+        });
+        read += n;
+    }
+
+    private byte validate(int i, boolean csv) {
+        accounts[i] = null;
+        if (csv) {
+            String line = lines[i];
+            int c1 = line.indexOf(',');
+            int c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+            if (c2 < 0) {
+                return MALFORMED;
+            }
+            try {
+                accountNumbers[i] = Long.parseLong(line.substring(0, c1).strip());
+            } catch (NumberFormatException e) {
+                return MALFORMED;
+            }
+            operations[i] = operation(line.substring(c1 + 1, c2).strip());
+            try {
+                amounts[i] = Money.parse(line.substring(c2 + 1));
+            } catch (NumberFormatException e) {
+                return INVALID_AMOUNT;
+            }
+        }
+        if (accountNumbers[i] <= 0) {
+            return MALFORMED;
+        }
+        if (operations[i] == 0) {
+            return UNKNOWN_OPERATION;
+        }
+        if (amounts[i] <= 0) {
+            return INVALID_AMOUNT;
+        }
+        String number = Long.toString(accountNumbers[i]);
+        Account acc = shards[ShardedATMService.shardOf(number, shards.length)].acquireAccount(number);
+        if (acc == null) {
+            return UNKNOWN_ACCOUNT;
+        }
+        accounts[i] = acc;
+        return ACCEPTED;
+    }
+
+    private static byte operation(String op) {
+        if (op.equalsIgnoreCase("DEPOSIT") || op.equalsIgnoreCase("D")) {
+            return Transaction.DEPOSIT;
+        }
+        if (op.equalsIgnoreCase("WITHDRAW") || op.equalsIgnoreCase("W")) {
+            return Transaction.WITHDRAW;
+        }
+        return 0;
+    }
+
+    /**
+     * Sorts the valid postings by account and file order and applies them, one
+     * thread per range of whole accounts, without waiting for the journal.
+     */
+    private void apply(int n) throws InterruptedException {
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (reasons[i] == ACCEPTED) {
+                order[m++] = accountNumbers[i] << 24 | i;
+            }
+        }
+        Arrays.sort(order, 0, m);
+        int[] bounds = split(m);
+        for (int t = 1; t < bounds.length - 1; t++) {
+            int b = Math.max(bounds[t], bounds[t - 1]);
+            while (b > 0 && b < m && order[b] >>> 24 == order[b - 1] >>> 24) {
+                b++;
+            }
+            bounds[t] = b;
+        }
+        parallel(bounds, (from, to) -> {
+            for (int k = from; k < to; k++) {
+                int i = (int) (order[k] & (MAX_CHUNK - 1));
+                int shard = ShardedATMService.shardOf(accounts[i].getAccountNumber(), shards.length);
+                results[i] = shards[shard].postAsync(accounts[i], operations[i], amounts[i]);
+                if (results[i] == null) {
+                    reasons[i] = HELD;
+                    continue;
+                }
+                // Refusals are decided at once, and only this thread posts to the account
+                if (operations[i] == Transaction.WITHDRAW && !results[i].getNow(true)
+                        && !accounts[i].withinDailyLimit(amounts[i])) {
+                    reasons[i] = DAILY_LIMIT;
+                    results[i] = null;
+                }
+            }
+        });
+    }
+
+    /** Waits until every posting of the chunk is durable and records refusals. */
+    private void commit(int n) {
+        boolean[] failed = new boolean[shards.length];
+        for (int i = 0; i < n; i++) {
+            if (reasons[i] != ACCEPTED) {
+                continue;
+            }
+            try {
+                if (!results[i].get()) {
+                    reasons[i] = operations[i] == Transaction.WITHDRAW ? INSUFFICIENT_FUNDS : REFUSED;
+                }
+            } catch (ExecutionException e) {
+                // Applied in memory; finishBatch saves it with a checkpoint
+                failed[ShardedATMService.shardOf(accounts[i].getAccountNumber(), shards.length)] = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed[ShardedATMService.shardOf(accounts[i].getAccountNumber(), shards.length)] = true;
+            }
+            results[i] = null;
+        }
+        // Every posting of the chunk is done with its account now
+        for (int i = 0; i < n; i++) {
+            if (accounts[i] != null) {
+                shards[ShardedATMService.shardOf(accounts[i].getAccountNumber(), shards.length)]
+                        .releaseAccount(accounts[i]);
+                accounts[i] = null;
+            }
+        }
+        for (int s = 0; s < shards.length; s++) {
+            shards[s].finishBatch(failed[s]);
+        }
+    }
+
+    private void report(int n, PrintWriter rejects) {
+        for (int i = 0; i < n; i++) {
+            byte reason = reasons[i];
+            if (reason == ACCEPTED) {
+                accepted++;
+                if (operations[i] == Transaction.DEPOSIT) {
+                    deposited += amounts[i];
+                } else {
+                    withdrawn += amounts[i];
+                }
+                Metrics.BATCH_ACCEPTED.increment();
+                continue;
+            }
+            rejectedByReason[reason]++;
+            Metrics.BATCH_REJECTED.increment();
+            rejects.print(lineNumbers[i] + "," + REASONS[reason] + ",");
+            if (lines[i] != null) {
+                rejects.print(lines[i].strip());
+            } else {
+                rejects.print(accountNumbers[i] + "," + (operations[i] == Transaction.DEPOSIT ? "DEPOSIT"
+                        : operations[i] == Transaction.WITHDRAW ? "WITHDRAW" : "?") + ","
+                        + (amounts[i] > 0 ? Money.format(amounts[i]) : Long.toString(amounts[i])));
+            }
+            rejects.print('\n');
+        }
+        Arrays.fill(lines, 0, n, null);
+    }
+
+    private void printSummary(Path input, Path rejectsPath, double seconds) {
+        long rejected = read - accepted;
+        System.out.printf("%s: %,d postings, %,d accepted, %,d rejected in %.1f s (%,.0f postings/s)%n", input, read,
+                accepted, rejected, seconds, read / seconds);
+        System.out.printf("  deposited %s Birr, withdrawn %s Birr%n", Money.format(deposited),
+                Money.format(withdrawn));
+        for (int r = 1; r < REASONS.length; r++) {
+            if (rejectedByReason[r] > 0) {
+                System.out.printf("  %-20s %,d%n", REASONS[r], rejectedByReason[r]);
+            }
+        }
+        if (rejected > 0) {
+            System.out.println("  rejects written to " + rejectsPath);
+        }
+    }
+
+    /** Splits {@code [0, n)} into one contiguous range per thread. */
+    private int[] split(int n) {
+        int[] bounds = new int[threads + 1];
+        for (int t = 0; t <= threads; t++) {
+            bounds[t] = (int) ((long) n * t / threads);
+        }
+        return bounds;
+    }
+
+    private void parallel(int[] bounds, Range body) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t + 1 < bounds.length; t++) {
+            int from = bounds[t];
+            int to = bounds[t + 1];
+            if (from < to) {
+                tasks.add(() -> {
+                    body.run(from, to);
+                    return null;
+                });
+            }
+        }
+        for (Future<Void> f : workers.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch worker failed", e.getCause());
+            }
+        }
+    }
+}
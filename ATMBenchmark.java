@@ -0,0 +1,672 @@
+import java.awt.GraphicsEnvironment;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.swing.SwingUtilities;
+
+/**
+ * Stand-alone microbenchmarks for the ATM system. Each suite warms up before
+ * measuring and prints one line per configuration.
+ *
+ * <pre>
+ * javac ATMBenchmark.java
+ * java ATMBenchmark [account|lookup|codec|store|cache|persist|history|engine|transfer|dispense|anomaly|screen]
+ * </pre>
+ *
+ * For whole-system throughput and tail latency under many terminals see
+ * {@link ATMLoadGenerator}.
+ */
+public class ATMBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 10;
+    private static final int[] SIZES = { 1_000, 10_000, 100_000, 1_000_000 };
+    // Hashing a PIN per synthetic account would dominate every suite
+    private static final PinCredential SYNTHETIC_PIN = PinCredential.create("1234");
+
+    // Consumed results, so the JIT cannot drop the measured work
+    static long sink;
+
+    interface Op {
+        void run(int i);
+    }
+
+    public static void main(String[] args) {
+        String suite = args.length > 0 ? args[0] : "all";
+        if (suite.equals("all") || suite.equals("account")) {
+            accountSuite();
+        }
+        if (suite.equals("all") || suite.equals("lookup")) {
+            lookupSuite();
+        }
+        if (suite.equals("all") || suite.equals("codec")) {
+            codecSuite();
+        }
+        if (suite.equals("all") || suite.equals("store")) {
+            storeSuite();
+        }
+        if (suite.equals("all") || suite.equals("cache")) {
+            cacheSuite();
+        }
+        if (suite.equals("all") || suite.equals("persist")) {
+            persistSuite();
+        }
+        if (suite.equals("all") || suite.equals("history")) {
+            historySuite();
+        }
+        if (suite.equals("all") || suite.equals("engine")) {
+            engineSuite();
+        }
+        if (suite.equals("all") || suite.equals("transfer")) {
+            transferSuite();
+        }
+        if (suite.equals("all") || suite.equals("dispense")) {
+            dispenseSuite();
+        }
+        if (suite.equals("all") || suite.equals("anomaly")) {
+            anomalySuite();
+        }
+        if (suite.equals("all") || suite.equals("screen")) {
+            screenSuite();
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    static void accountSuite() {
+        System.out.println("== Account operations (ns/op) ==");
+        System.out.printf("%-24s %14s%n", "operation", "ns/op");
+        Account a = new Account("Customer", "000001", SYNTHETIC_PIN, Money.ofBirr(1_000_000));
+        System.out.printf("%-24s %14.1f%n", "Account.deposit", measure(4_000_000, i -> a.deposit(1)));
+        System.out.printf("%-24s %14.1f%n", "Account.withdraw", measure(4_000_000, i -> {
+            if (a.withdraw(1)) {
+                sink++;
+            }
+        }));
+        TransactionEngine engine = new TransactionEngine(new MappedAccountStore(Path.of("unused.bin")), null);
+        System.out.printf("%-24s %14.1f%n", "engine.deposit", measure(1_000_000, i -> engine.deposit(a, 1)));
+        System.out.printf("%-24s %14.1f%n", "engine.withdraw", measure(1_000_000, i -> {
+            if (engine.withdraw(a, 1).join()) {
+                sink++;
+            }
+        }));
+        sink += a.getTransactionHistory().size();
+
+        CredentialVerifier verifier = new CredentialVerifier();
+        System.out.printf("%-24s %14.1f%n", "PinCredential.matches", measure(200, i -> {
+            if (SYNTHETIC_PIN.matches("1234")) {
+                sink++;
+            }
+        }));
+        System.out.printf("%-24s %14.1f%n", "verify (cached)", measure(1_000_000, i -> {
+            if (verifier.verify(a.getAccountNumber(), SYNTHETIC_PIN, "1234")) {
+                sink++;
+            }
+        }));
+    }
+
+    static void lookupSuite() {
+        System.out.println("== Account lookup (ns/op) ==");
+        System.out.printf("%10s %14s %14s%n", "accounts", "byNumber", "linearScan");
+        for (int size : SIZES) {
+            List<Account> accounts = syntheticAccounts(size, 42);
+            AccountIndex index = new AccountIndex(accounts);
+            String[] numbers = new String[4096];
+            Random rand = new Random(7);
+            for (int i = 0; i < numbers.length; i++) {
+                Account a = accounts.get(rand.nextInt(size));
+                numbers[i] = a.getAccountNumber();
+            }
+            int mask = numbers.length - 1;
+
+            double byNumber = measure(4_000_000, i -> {
+                Account a = index.findByNumber(numbers[i & mask]);
+                sink += a == null ? 0 : 1;
+            });
+            // The old linear scan, kept for comparison at sizes where it finishes
+            double scan = size > 10_000 ? Double.NaN : measure(20_000, i -> {
+                String wanted = numbers[i & mask];
+                for (Account a : accounts) {
+                    if (a.getAccountNumber().equals(wanted)) {
+                        sink++;
+                        break;
+                    }
+                }
+            });
+            System.out.printf("%10d %14.1f %14.1f%n", size, byNumber, scan);
+        }
+    }
+
+    static void codecSuite() {
+        System.out.println("== Checkpoint codec: Java serialization vs AccountCodec ==");
+        System.out.printf("%10s %14s %14s %14s %14s%n", "accounts", "serial bytes", "binary bytes", "serial ms",
+                "binary ms");
+        for (int size : new int[] { 10_000, 100_000 }) {
+            ArrayList<Account> accounts = new ArrayList<>(syntheticAccounts(size, 42));
+            withHistory(accounts, 20, 11);
+            byte[] serial = serialize(accounts);
+            byte[] binary = encodeBinary(accounts);
+
+            double serialMs = measure(1, i -> {
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serial))) {
+                    sink += ((List<?>) ois.readObject()).size();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }) / 1e6;
+            double binaryMs = measure(1, i -> {
+                try {
+                    sink += AccountCodec.read(ByteBuffer.wrap(binary)).accounts.size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }) / 1e6;
+            System.out.printf("%10d %14d %14d %14.1f %14.1f%n", size, serial.length, binary.length, serialMs,
+                    binaryMs);
+        }
+    }
+
+    static void storeSuite() {
+        System.out.println("== Mapped store: open time and heap vs checkpoint size ==");
+        System.out.printf("%10s %14s %14s %14s %14s%n", "accounts", "file MB", "open ms", "heap KB",
+                "login us");
+        Runtime rt = Runtime.getRuntime();
+        for (int size : SIZES) {
+            try {
+                Path path = Files.createTempFile("atm-bench", ".bin");
+                List<Account> accounts = syntheticAccounts(size, 42);
+                withHistory(accounts, 10, 11);
+                try (OutputStream out = Files.newOutputStream(path)) {
+                    AccountCodec.write(out, accounts, 0);
+                }
+                String wanted = accounts.get(size / 2).getAccountNumber();
+                accounts = null;
+
+                System.gc();
+                long heapBefore = rt.totalMemory() - rt.freeMemory();
+                long start = System.nanoTime();
+                MappedAccountStore store = MappedAccountStore.open(path, path.resolveSibling("none.dat"));
+                long opened = System.nanoTime();
+                Account a = store.acquire(wanted);
+                long found = System.nanoTime();
+                System.gc();
+                long heapAfter = rt.totalMemory() - rt.freeMemory();
+                sink += a.getTransactionHistory().size();
+
+                System.out.printf("%10d %14.1f %14.2f %14d %14.1f%n", size, Files.size(path) / 1e6,
+                        (opened - start) / 1e6, Math.max(0, heapAfter - heapBefore) / 1024, (found - opened) / 1e3);
+                Files.delete(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Account lookups through the store's cache sized for a share of the
+     * accounts. Logins follow a Zipf distribution, as a few customers use the
+     * ATM daily and most rarely; every fourth lookup is a one-off, e.g. a
+     * transfer to an account nobody logs into.
+     */
+    static void cacheSuite() {
+        System.out.println("== Account cache: 100,000 accounts, Zipf(0.9) lookups with 25% one-offs ==");
+        System.out.printf("%10s %14s %14s %14s %14s%n", "cache %", "resident", "heap MB", "hit %", "ns/op");
+        int size = 100_000;
+        try {
+            Path path = Files.createTempFile("atm-bench", ".bin");
+            List<Account> accounts = syntheticAccounts(size, 42);
+            withHistory(accounts, 10, 11);
+            long allBytes = 0;
+            for (Account a : accounts) {
+                allBytes += AccountCache.weigh(a);
+            }
+            try (OutputStream out = Files.newOutputStream(path)) {
+                AccountCodec.write(out, accounts, 0);
+            }
+            accounts = null;
+
+            double[] cdf = new double[size];
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += 1 / Math.pow(i + 1, 0.9);
+                cdf[i] = sum;
+            }
+            // Popularity rank is unrelated to account number
+            int[] rank = new int[size];
+            Random rand = new Random(3);
+            for (int i = 0; i < size; i++) {
+                int j = rand.nextInt(i + 1);
+                rank[i] = rank[j];
+                rank[j] = i;
+            }
+            String[] numbers = new String[1 << 20];
+            for (int i = 0; i < numbers.length; i++) {
+                int k = rand.nextInt(size);
+                if (i % 4 != 3) {
+                    int at = Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+                    k = rank[Math.min(size - 1, at >= 0 ? at : -at - 1)];
+                }
+                numbers[i] = "1000" + String.format("%06d", k);
+            }
+            int mask = numbers.length - 1;
+
+            for (int percent : new int[] { 1, 5, 20, 100 }) {
+                MappedAccountStore store = MappedAccountStore.open(path, path.resolveSibling("none.dat"));
+                store.setCacheCapacity(Math.max(1, allBytes * percent / 100));
+                long hits = Metrics.ACCOUNT_CACHE_HIT.get();
+                long misses = Metrics.ACCOUNT_CACHE_MISS.get();
+                double ns = measure(numbers.length, i -> {
+                    try {
+                        Account a = store.acquire(numbers[i & mask]);
+                        sink += a.getBalance();
+                        store.release(a);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                hits = Metrics.ACCOUNT_CACHE_HIT.get() - hits;
+                misses = Metrics.ACCOUNT_CACHE_MISS.get() - misses;
+                System.out.printf("%10d %14d %14.1f %14.1f %14.1f%n", percent, store.residentCount(),
+                        store.residentBytes() / 1e6, 100.0 * hits / (hits + misses), ns);
+            }
+            Files.delete(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Checkpoint write with every account changed (as after a busy day) and
+     * with none changed (every record copied from the mapping), and reopen of
+     * the result: the two halves of saveAccounts/loadAccounts.
+     */
+    static void persistSuite() {
+        System.out.println("== Checkpoint save and load vs dataset size ==");
+        System.out.printf("%10s %14s %14s %14s %14s%n", "accounts", "file MB", "save ms", "clean save ms",
+                "load ms");
+        for (int size : new int[] { 1_000, 10_000, 100_000 }) {
+            try {
+                Path path = Files.createTempFile("atm-bench", ".bin");
+                Files.delete(path);
+                List<Account> accounts = syntheticAccounts(size, 42);
+                withHistory(accounts, 10, 11);
+                int rounds = size >= 100_000 ? 1 : 10;
+                // A fresh store holds every account as changed
+                double saveMs = measure(rounds, i -> {
+                    try {
+                        MappedAccountStore fresh = new MappedAccountStore(path);
+                        for (Account a : accounts) {
+                            fresh.add(a);
+                        }
+                        fresh.checkpoint(i);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }) / 1e6;
+                MappedAccountStore store = MappedAccountStore.open(path, path.resolveSibling("none.dat"));
+                double cleanSaveMs = measure(rounds, i -> {
+                    try {
+                        store.checkpoint(i);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }) / 1e6;
+                String wanted = accounts.get(size / 2).getAccountNumber();
+                double loadMs = measure(rounds, i -> {
+                    try {
+                        MappedAccountStore loaded = MappedAccountStore.open(path, path.resolveSibling("none.dat"));
+                        sink += loaded.acquire(wanted).getTransactionHistory().size();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }) / 1e6;
+                System.out.printf("%10d %14.1f %14.2f %14.2f %14.2f%n", size, Files.size(path) / 1e6, saveMs,
+                        cleanSaveMs, loadMs);
+                Files.delete(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    static void historySuite() {
+        System.out.println("== Last-5 history view and past balance vs history length ==");
+        System.out.printf("%10s %14s %14s %14s%n", "postings", "render ns", "heap entries", "balanceAt ns");
+        try {
+            Path path = Files.createTempFile("atm-bench", ".history");
+            HistorySpillFile spill = new HistorySpillFile(path);
+            for (int size : new int[] { 10, 1_000, 100_000 }) {
+                Account a = new Account("Customer", "000001", SYNTHETIC_PIN, Money.ofBirr(100));
+                a.getTransactionHistory().attach(spill);
+                withHistory(List.of(a), size, 3);
+                StringBuilder sb = new StringBuilder(512);
+                double ns = measure(200_000, i -> {
+                    sb.setLength(0);
+                    sink += a.getTransactionHistory().appendRecent(5, sb);
+                });
+                TransactionHistory h = a.getTransactionHistory();
+                long oldest = System.currentTimeMillis() - 365L * 24 * 3600 * 1000;
+                Random rand = new Random(5);
+                double atNs = measure(20_000, i -> {
+                    try {
+                        sink += h.balanceAt(oldest + (long) (rand.nextDouble() * 365 * 24 * 3600 * 1000), 0);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                System.out.printf("%10d %14.1f %14d %14.1f%n", size, ns, h.hotCount(), atNs);
+            }
+            spill.close();
+            Files.delete(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Random transfers between 10k in-memory accounts with no journal. Checks that
+     * money is conserved and that no balance ever drops below the minimum.
+     */
+    static void engineSuite() {
+        System.out.println("== TransactionEngine transfers (no journal) ==");
+        System.out.printf("%10s %14s %14s%n", "threads", "ops/s", "invariants");
+        List<Account> accounts = syntheticAccounts(10_000, 42);
+        TransactionEngine engine = new TransactionEngine(new MappedAccountStore(Path.of("unused.bin")), null);
+        int opsPerThread = 200_000;
+        for (int threads : new int[] { 1, 2, 4, 8 }) {
+            long before = total(accounts);
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                workers[t] = new Thread(() -> {
+                    Random rand = new Random(seed);
+                    for (int i = 0; i < opsPerThread; i++) {
+                        Account from = accounts.get(rand.nextInt(accounts.size()));
+                        Account to = accounts.get(rand.nextInt(accounts.size()));
+                        if (engine.transfer(from, to, Money.ofBirr(1 + rand.nextInt(5_000))).join()) {
+                            sink++;
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            boolean ok = total(accounts) == before;
+            for (Account a : accounts) {
+                ok &= a.getBalance() >= Account.MIN_BALANCE;
+            }
+            System.out.printf("%10d %14.0f %14s%n", threads, threads * opsPerThread / seconds, ok ? "hold" : "BROKEN");
+        }
+    }
+
+    /**
+     * Screen switches of the terminal window, timed by its frame-time hook from
+     * the request until the new screen is painted. Building the window shows
+     * what each switch cost when every screen was a new frame. Needs a display.
+     */
+    static void screenSuite() {
+        System.out.println("== Terminal screen switches ==");
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("skipped: no display");
+            return;
+        }
+        System.out.printf("%-12s %14s %14s%n", "screen", "p50 us", "max us");
+        String[] names = { ATMSystem.TerminalWindow.LOGIN, ATMSystem.TerminalWindow.CREATE,
+                ATMSystem.TerminalWindow.MENU };
+        Map<String, List<Long>> times = new HashMap<>();
+        ATMSystem.TerminalWindow[] window = new ATMSystem.TerminalWindow[1];
+        long[] build = new long[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                long start = System.nanoTime();
+                window[0] = new ATMSystem.TerminalWindow();
+                window[0].setVisible(true);
+                build[0] = System.nanoTime() - start;
+                window[0].onFrameTime((name, nanos) -> times.computeIfAbsent(name, k -> new ArrayList<>()).add(nanos));
+            });
+            for (int i = 0; i < 3_000; i++) {
+                if (i == 300) {
+                    SwingUtilities.invokeAndWait(times::clear);
+                }
+                String name = names[i % names.length];
+                SwingUtilities.invokeAndWait(() -> window[0].show(name));
+                // The frame time is reported after the repaint, which this waits out
+                SwingUtilities.invokeAndWait(() -> { });
+            }
+            SwingUtilities.invokeAndWait(window[0]::dispose);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        for (String name : names) {
+            List<Long> t = times.get(name);
+            Collections.sort(t);
+            System.out.printf("%-12s %14.1f %14.1f%n", name, t.get(t.size() / 2) / 1e3, t.get(t.size() - 1) / 1e3);
+        }
+        System.out.printf("%-12s %14.1f%n", "new window", build[0] / 1e3);
+    }
+
+    /**
+     * Journaled transfers, each thread waiting for its own to be durable like a
+     * terminal does. With many pairs the threads rarely share one; with few,
+     * concurrent transfers of a pair are settled into one journal record.
+     */
+    static void transferSuite() {
+        System.out.println("== Journaled transfers ==");
+        System.out.printf("%10s %10s %14s %14s%n", "pairs", "threads", "ops/s", "records/op");
+        for (int pairs : new int[] { 1_000, 2 }) {
+            for (int threads : new int[] { 1, 4, 16 }) {
+                try {
+                    Path dir = Files.createTempDirectory("atm-bench");
+                    Path journalPath = dir.resolve("accounts.journal");
+                    TransactionJournal journal = new TransactionJournal(journalPath);
+                    PersistencePipeline pipeline = new PersistencePipeline(journal);
+                    List<Account> accounts = syntheticAccounts(2 * pairs, 42);
+                    TransactionEngine engine = new TransactionEngine(new MappedAccountStore(dir.resolve("a.bin")),
+                            pipeline);
+                    long before = total(accounts);
+                    long coalesced = Metrics.JOURNAL_COALESCED.get();
+                    int opsPerThread = 2_000;
+                    Thread[] workers = new Thread[threads];
+                    long start = System.nanoTime();
+                    for (int t = 0; t < threads; t++) {
+                        long seed = t;
+                        workers[t] = new Thread(() -> {
+                            Random rand = new Random(seed);
+                            for (int i = 0; i < opsPerThread; i++) {
+                                int pair = rand.nextInt(pairs);
+                                boolean forward = rand.nextBoolean();
+                                Account from = accounts.get(2 * pair + (forward ? 0 : 1));
+                                Account to = accounts.get(2 * pair + (forward ? 1 : 0));
+                                if (engine.transfer(from, to, Money.ofBirr(1 + rand.nextInt(50))).join()) {
+                                    sink++;
+                                }
+                            }
+                        });
+                        workers[t].start();
+                    }
+                    for (Thread w : workers) {
+                        w.join();
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    int ops = threads * opsPerThread;
+                    long records = ops - (Metrics.JOURNAL_COALESCED.get() - coalesced);
+                    if (total(accounts) != before) {
+                        throw new IllegalStateException("Transfers did not conserve money");
+                    }
+                    System.out.printf("%10d %10d %14.0f %14.2f%n", pairs, threads, ops / seconds,
+                            records / (double) ops);
+                    pipeline.close();
+                    journal.close();
+                    Files.delete(journalPath);
+                    Files.delete(dir);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    static void dispenseSuite() {
+        System.out.println("== Note selection (ns/op) ==");
+        System.out.printf("%-12s %14s %16s%n", "cassettes", "canDispense", "reserve+release");
+        long[] denominations = { Money.ofBirr(200), Money.ofBirr(100), Money.ofBirr(50), Money.ofBirr(10) };
+        int[] capacities = { 2000, 2000, 2000, 2000 };
+        int[][] stocks = { { 2000, 2000, 2000, 2000 }, { 150, 2000, 40, 2000 }, { 5, 12, 3, 30 } };
+        String[] names = { "full", "low", "nearly empty" };
+        for (int s = 0; s < stocks.length; s++) {
+            CashDispenser dispenser = new CashDispenser(Path.of("unused.txt"), denominations, stocks[s].clone(),
+                    capacities);
+            // Every multiple of 10 Birr up to the daily limit
+            int amounts = (int) (Account.DAILY_WITHDRAWAL_LIMIT / Money.ofBirr(10));
+            double check = measure(1_000_000, i -> {
+                if (dispenser.canDispense(Money.ofBirr(10) * (1 + i % amounts))) {
+                    sink++;
+                }
+            });
+            // A reservation takes notes away; the table is only rebuilt when the plan it holds no longer fits
+            double reserve = measure(2_000, i -> {
+                CashDispenser.Plan plan = dispenser.reserve(Money.ofBirr(10) * (1 + i % amounts));
+                if (plan != null) {
+                    dispenser.release(plan);
+                    sink++;
+                }
+            });
+            System.out.printf("%-12s %14.1f %16.1f%n", names[s], check, reserve);
+        }
+    }
+
+    static void anomalySuite() {
+        System.out.println("== Anomaly scoring (ns/op) ==");
+        System.out.printf("%-24s %14s %14s%n", "state", "score", "observe");
+        List<Account> accounts = syntheticAccounts(10_000, 42);
+        withHistory(accounts, 40, 42);
+        long now = System.currentTimeMillis();
+        // Enough sets for every account, and too few, so nearly every account is seeded from its history again
+        int[] sets = { AnomalyScorer.DEFAULT_SETS, TransactionEngine.STRIPES };
+        String[] names = { "resident", "seeded from history" };
+        for (int c = 0; c < sets.length; c++) {
+            AnomalyScorer scorer = new AnomalyScorer(sets[c]);
+            double score = measure(1_000_000, i -> sink += scorer.score(accounts.get(i % accounts.size()),
+                    Money.ofBirr(1 + i % 500), now + i));
+            double observe = measure(1_000_000, i -> scorer.observe(accounts.get(i % accounts.size()),
+                    Transaction.WITHDRAW, Money.ofBirr(1 + i % 500), now + i));
+            System.out.printf("%-24s %14.1f %14.1f%n", names[c], score, observe);
+        }
+        AnomalyScorer scorer = new AnomalyScorer(1);
+        double rescore = measure(accounts.size(), i -> {
+            try {
+                sink += scorer.rescore(accounts.get(i), (timestamp, amount, score) -> sink++);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        System.out.printf("%-24s %14.1f%n", "rescore, per posting", rescore / 40);
+    }
+
+    private static long total(List<Account> accounts) {
+        long sum = 0;
+        for (Account a : accounts) {
+            sum += a.getBalance();
+        }
+        return sum;
+    }
+
+    /** Returns the best-of-rounds average time per operation in nanoseconds. */
+    static double measure(int opsPerRound, Op op) {
+        for (int r = 0; r < WARMUP_ROUNDS; r++) {
+            for (int i = 0; i < opsPerRound; i++) {
+                op.run(i);
+            }
+        }
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < MEASURE_ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < opsPerRound; i++) {
+                op.run(i);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) opsPerRound);
+        }
+        return best;
+    }
+
+    /** Adds postings spread over the past year in time order, as an account collects them. */
+    static void withHistory(List<Account> accounts, int entriesPerAccount, long seed) {
+        Random rand = new Random(seed);
+        long year = 365L * 24 * 3600 * 1000;
+        long start = System.currentTimeMillis() - year;
+        long step = year / entriesPerAccount;
+        for (Account a : accounts) {
+            for (int i = 0; i < entriesPerAccount; i++) {
+                byte type = rand.nextBoolean() ? Transaction.DEPOSIT : Transaction.WITHDRAW;
+                a.addTransaction(type, 1 + rand.nextInt(500_000), start + i * step + (long) (rand.nextDouble() * step));
+            }
+        }
+    }
+
+    /** Serializes the accounts the way accounts.dat used to hold them. */
+    static byte[] serialize(List<Account> accounts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            ArrayList<AccountCodec.LegacyAccount> legacy = new ArrayList<>(accounts.size());
+            for (Account a : accounts) {
+                List<String> history = new ArrayList<>();
+                a.getTransactionHistory().forEach((type, amount, timestamp, balanceAfter) -> history
+                        .add(Transaction.appendTo(new StringBuilder(), type, amount, timestamp).toString()));
+                legacy.add(new AccountCodec.LegacyAccount(a.getName(), a.getAccountNumber().substring(4),
+                        "1234", Money.toDouble(a.getBalance()), history));
+            }
+            oos.writeObject(legacy);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeBinary(List<Account> accounts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            AccountCodec.write(bytes, accounts, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<Account> syntheticAccounts(int count, long seed) {
+        Random rand = new Random(seed);
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String number = String.format("%06d", i);
+            accounts.add(new Account("Customer " + i, number, SYNTHETIC_PIN, Money.ofBirr(100 + rand.nextInt(100_000))));
+        }
+        return accounts;
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link ATMService} that forwards every call to an {@link ATMServer} over one
+ * connection. Calls are serialized on that connection, matching one terminal.
+ * The shard calls only succeed against a shard server.
+ */
+class ATMClient implements AccountShard {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private boolean closeOnLogout;
+
+    ATMClient(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 5000);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /** Parses "host:port", defaulting the port. */
+    static ATMClient connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new ATMClient(address, ATMServer.DEFAULT_PORT);
+        }
+        return new ATMClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Connects to a shard server for a coordinator. The shard calls share one
+     * connection, but every login gets a connection of its own, closed again on
+     * logout, because the server keeps the logged-in account per connection.
+     */
+    static AccountShard shard(String address) throws IOException {
+        return new RemoteShard(address, connect(address));
+    }
+
+    @Override
+    public Session login(String terminal, String accountNumber, String pin) throws IOException {
+        return loginAs(null, accountNumber, pin);
+    }
+
+    // The server knows a terminal by its address; only a coordinator forwards the terminal it serves
+    private synchronized Session loginAs(String forTerminal, String accountNumber, String pin) throws IOException {
+        String reply = call("LOGIN " + accountNumber + " " + pin + (forTerminal == null ? "" : " " + forTerminal));
+        if (reply.startsWith("ERR LOCKED ")) {
+            throw new LockedException(Long.parseLong(reply.substring(11)));
+        }
+        if (!reply.startsWith("OK ")) {
+            return null;
+        }
+        String[] parts = reply.split(" ", 3);
+        return new RemoteSession(parts[1], parts[2]);
+    }
+
+    @Override
+    public synchronized NewAccount createAccount(String name, long initialDeposit) throws IOException {
+        String reply = call("CREATE " + Money.format(initialDeposit) + " " + name);
+        if (!reply.startsWith("OK ")) {
+            throw new IllegalArgumentException(reply.substring(Math.min(4, reply.length())));
+        }
+        String[] parts = reply.split(" ");
+        return new NewAccount(parts[1], parts[2]);
+    }
+
+    @Override
+    public int shardIndex() throws IOException {
+        return Integer.parseInt(shardInfo()[0]);
+    }
+
+    @Override
+    public int shardCount() throws IOException {
+        return Integer.parseInt(shardInfo()[1]);
+    }
+
+    @Override
+    public synchronized boolean hasAccount(String accountNumber) throws IOException {
+        return call("EXISTS " + accountNumber).startsWith("OK");
+    }
+
+    @Override
+    public synchronized boolean transferOut(long transferId, String fromAccount, String toAccount, long amount)
+            throws IOException {
+        return call("XOUT " + transferId + " " + fromAccount + " " + toAccount + " " + Money.format(amount))
+                .startsWith("OK");
+    }
+
+    @Override
+    public synchronized boolean transferIn(long transferId, String toAccount, String fromAccount, long amount)
+            throws IOException {
+        return call("XIN " + transferId + " " + toAccount + " " + fromAccount + " " + Money.format(amount))
+                .startsWith("OK");
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            out.print("QUIT\n");
+            out.flush();
+        }
+        socket.close();
+    }
+
+    private final class RemoteSession implements Session {
+        private final String accountNumber;
+        private final String name;
+
+        RemoteSession(String accountNumber, String name) {
+            this.accountNumber = accountNumber;
+            this.name = name;
+        }
+
+        @Override
+        public String accountNumber() {
+            return accountNumber;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long balance() throws IOException {
+            synchronized (ATMClient.this) {
+                return Money.parse(expectOk(call("BALANCE")));
+            }
+        }
+
+        @Override
+        public long balanceAt(long timestamp) throws IOException {
+            synchronized (ATMClient.this) {
+                return Money.parse(expectOk(call("BALANCE_AT " + timestamp)));
+            }
+        }
+
+        @Override
+        public boolean withdraw(long amount) throws IOException {
+            String reply;
+            synchronized (ATMClient.this) {
+                reply = call("WITHDRAW " + Money.format(amount));
+            }
+            // Any other error, e.g. a withdrawal held for review, carries the message for the terminal
+            if (reply.startsWith("ERR ") && !reply.equals("ERR INSUFFICIENT")) {
+                throw new IllegalArgumentException(reply.substring(4));
+            }
+            return reply.startsWith("OK");
+        }
+
+        @Override
+        public boolean deposit(long amount) throws IOException {
+            synchronized (ATMClient.this) {
+                return call("DEPOSIT " + Money.format(amount)).startsWith("OK");
+            }
+        }
+
+        @Override
+        public boolean transfer(String toAccountNumber, long amount) throws IOException {
+            synchronized (ATMClient.this) {
+                return call("TRANSFER " + toAccountNumber + " " + Money.format(amount)).startsWith("OK");
+            }
+        }
+
+        @Override
+        public String recentHistory(int n) throws IOException {
+            synchronized (ATMClient.this) {
+                int count = Integer.parseInt(expectOk(call("HISTORY " + n)));
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < count; i++) {
+                    sb.append(readLine()).append('\n');
+                }
+                return sb.toString();
+            }
+        }
+
+        @Override
+        public void writeStatement(long from, long to, String format, Writer sink) throws IOException {
+            synchronized (ATMClient.this) {
+                String reply = call("STATEMENT " + from + " " + to + " " + format);
+                if (!reply.equals("OK")) {
+                    throw new IOException("Server error: " + reply);
+                }
+                for (String line = readLine(); !line.equals("."); line = readLine()) {
+                    sink.write(line);
+                    sink.write('\n');
+                }
+                sink.flush();
+            }
+        }
+
+        @Override
+        public void logout() throws IOException {
+            synchronized (ATMClient.this) {
+                call("LOGOUT");
+            }
+            if (closeOnLogout) {
+                close();
+            }
+        }
+    }
+
+    private static final class RemoteShard implements AccountShard {
+        private final String address;
+        private final ATMClient shared;
+
+        RemoteShard(String address, ATMClient shared) {
+            this.address = address;
+            this.shared = shared;
+        }
+
+        @Override
+        public Session login(String terminal, String accountNumber, String pin) throws IOException {
+            ATMClient own = connect(address);
+            try {
+                Session s = own.loginAs(terminal, accountNumber, pin);
+                if (s == null) {
+                    own.close();
+                    return null;
+                }
+                own.closeOnLogout = true;
+                return s;
+            } catch (IOException e) {
+                own.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public NewAccount createAccount(String name, long initialDeposit) throws IOException {
+            return shared.createAccount(name, initialDeposit);
+        }
+
+        @Override
+        public int shardIndex() throws IOException {
+            return shared.shardIndex();
+        }
+
+        @Override
+        public int shardCount() throws IOException {
+            return shared.shardCount();
+        }
+
+        @Override
+        public boolean hasAccount(String accountNumber) throws IOException {
+            return shared.hasAccount(accountNumber);
+        }
+
+        @Override
+        public boolean transferOut(long transferId, String fromAccount, String toAccount, long amount)
+                throws IOException {
+            return shared.transferOut(transferId, fromAccount, toAccount, amount);
+        }
+
+        @Override
+        public boolean transferIn(long transferId, String toAccount, String fromAccount, long amount)
+                throws IOException {
+            return shared.transferIn(transferId, toAccount, fromAccount, amount);
+        }
+
+        @Override
+        public void close() throws IOException {
+            shared.close();
+        }
+    }
+
+    private synchronized String[] shardInfo() throws IOException {
+        return expectOk(call("SHARD")).split(" ");
+    }
+
+    private String call(String request) throws IOException {
+        out.print(request + "\n");
+        out.flush();
+        return readLine();
+    }
+
+    private String readLine() throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new IOException("Connection closed by server");
+        }
+        return line;
+    }
+
+    private static String expectOk(String reply) throws IOException {
+        if (!reply.startsWith("OK ")) {
+            throw new IOException("Server error: " + reply);
+        }
+        return reply.substring(3);
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Synthetic terminal workload. Every simulated terminal logs in with a random
+ * customer PIN and runs a weighted mix of operations against either a fresh
+ * local account directory or a running {@link ATMServer}, then the driver prints
+ * throughput and latency percentiles per operation.
+ *
+ * <pre>
+ * java ATMLoadGenerator [--terminals 16] [--accounts 2000] [--seconds 20] [--warmup 5]
+ *                       [--mix login=10,balance=20,withdraw=25,deposit=30,history=15,transfer=10]
+ *                       [--dir path [--shards n] [--cache-mb 64] | --connect host:port] [--hgrm prefix]
+ * </pre>
+ *
+ * A transfer moves a few Birr from the logged-in account to a random other
+ * one; a transfer-heavy run is e.g. {@code --mix login=5,balance=10,transfer=85}.
+ * With few accounts, concurrent transfers between the same pairs are settled
+ * into one journal record per pair and batch.
+ *
+ * With {@code --shards} the local accounts are split over that many
+ * {@link ShardedATMService} shards in this JVM. {@code --cache-mb} bounds the
+ * accounts each local store keeps on the heap; with more accounts than fit,
+ * logins and transfers then also measure evictions and reloads.
+ *
+ * With {@code --hgrm} each operation's distribution is also written in
+ * HdrHistogram percentile format (microseconds) to {@code prefix-op.hgrm}.
+ */
+public class ATMLoadGenerator {
+    static final String[] OPERATIONS = { "login", "balance", "withdraw", "deposit", "history", "transfer" };
+    private static final int LOGIN = 0;
+    private static final int BALANCE = 1;
+    private static final int WITHDRAW = 2;
+    private static final int DEPOSIT = 3;
+    private static final int HISTORY = 4;
+    private static final int TRANSFER = 5;
+
+    private int terminals = 16;
+    private int accounts = 2000;
+    private int seconds = 20;
+    private int warmupSeconds = 5;
+    private int[] weights = { 10, 20, 25, 30, 15, 10 };
+    private Path dir;
+    private int shards = 1;
+    private long cacheBytes = AccountCache.DEFAULT_CAPACITY;
+    private String connect;
+    private String hgrmPrefix;
+
+    public static void main(String[] args) throws Exception {
+        ATMLoadGenerator generator = new ATMLoadGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--terminals": generator.terminals = Integer.parseInt(args[i + 1]); break;
+                case "--accounts": generator.accounts = Integer.parseInt(args[i + 1]); break;
+                case "--seconds": generator.seconds = Integer.parseInt(args[i + 1]); break;
+                case "--warmup": generator.warmupSeconds = Integer.parseInt(args[i + 1]); break;
+                case "--mix": generator.weights = parseMix(args[i + 1]); break;
+                case "--dir": generator.dir = Paths.get(args[i + 1]); break;
+                case "--shards": generator.shards = Integer.parseInt(args[i + 1]); break;
+                case "--cache-mb": generator.cacheBytes = Long.parseLong(args[i + 1]) << 20; break;
+                case "--connect": generator.connect = args[i + 1]; break;
+                case "--hgrm": generator.hgrmPrefix = args[i + 1]; break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        generator.run();
+    }
+
+    static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            int op = List.of(OPERATIONS).indexOf(kv[0].trim());
+            if (op < 0) {
+                throw new IllegalArgumentException("Unknown operation " + kv[0]);
+            }
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        return weights;
+    }
+
+    void run() throws Exception {
+        Path workDir = dir;
+        if (connect == null && workDir == null) {
+            workDir = Files.createTempDirectory("atm-load");
+        }
+        ATMService local = null;
+        if (connect == null) {
+            local = shards > 1 ? ShardedATMService.openLocal(workDir, shards, cacheBytes)
+                    : new LocalATMService(workDir, cacheBytes);
+        }
+        try {
+            List<ATMService.NewAccount> cards = seedAccounts(local);
+            System.out.printf("%d terminals, %d accounts, %s, warmup %ds, measure %ds%n", terminals, cards.size(),
+                    connect == null ? "local " + workDir + (shards > 1 ? " (" + shards + " shards)" : "")
+                            : "server " + connect,
+                    warmupSeconds, seconds);
+
+            Terminal[] workers = new Terminal[terminals];
+            for (int t = 0; t < terminals; t++) {
+                workers[t] = new Terminal(t, local == null ? ATMClient.connect(connect) : local, cards);
+            }
+            runPhase(workers, warmupSeconds);
+            for (Terminal w : workers) {
+                w.resetHistograms();
+            }
+            long start = System.nanoTime();
+            runPhase(workers, seconds);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            report(workers, elapsed);
+            if (local == null) {
+                for (Terminal w : workers) {
+                    ((ATMClient) w.service).close();
+                }
+            }
+        } finally {
+            if (local != null) {
+                ((Closeable) local).close();
+            }
+        }
+    }
+
+    private List<ATMService.NewAccount> seedAccounts(ATMService local) throws IOException {
+        List<ATMService.NewAccount> cards = new ArrayList<>(accounts);
+        ATMClient client = local == null ? ATMClient.connect(connect) : null;
+        ATMService seeder = local != null ? local : client;
+        for (int i = 0; i < accounts; i++) {
+            cards.add(seeder.createAccount("Load Customer", Money.ofBirr(10_000)));
+        }
+        if (client != null) {
+            client.close();
+        }
+        return cards;
+    }
+
+    private static void runPhase(Terminal[] workers, int phaseSeconds) throws InterruptedException {
+        if (phaseSeconds <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + phaseSeconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(workers.length);
+        for (Terminal w : workers) {
+            Thread thread = new Thread(() -> {
+                try {
+                    w.runUntil(deadline);
+                } finally {
+                    done.countDown();
+                }
+            }, "terminal-" + w.id);
+            thread.start();
+        }
+        done.await();
+    }
+
+    private void report(Terminal[] workers, double elapsed) throws IOException {
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0;
+        System.out.printf("%-10s %12s %12s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 us",
+                "p99 us", "p999 us", "max us");
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (Terminal w : workers) {
+                merged.add(w.histograms[op]);
+            }
+            if (merged.count() == 0) {
+                continue;
+            }
+            all.add(merged);
+            printRow(OPERATIONS[op], merged, elapsed);
+            if (hgrmPrefix != null) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(hgrmPrefix + "-" + OPERATIONS[op]
+                        + ".hgrm"))) {
+                    merged.outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+        for (Terminal w : workers) {
+            errors += w.errors;
+        }
+        printRow("all", all, elapsed);
+        if (errors > 0) {
+            System.out.println(errors + " operations failed");
+        }
+    }
+
+    private static void printRow(String name, LatencyHistogram h, double elapsed) {
+        System.out.printf("%-10s %12d %12.0f %10.1f %10.1f %10.1f %10.1f%n", name, h.count(), h.count() / elapsed,
+                h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(99) / 1e3, h.valueAtPercentile(99.9) / 1e3,
+                h.max() / 1e3);
+    }
+
+    private final class Terminal {
+        final int id;
+        final ATMService service;
+        final List<ATMService.NewAccount> cards;
+        final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+        final Random rand;
+        final int totalWeight;
+        ATMService.Session session;
+        long errors;
+
+        Terminal(int id, ATMService service, List<ATMService.NewAccount> cards) {
+            this.id = id;
+            this.service = service;
+            this.cards = cards;
+            this.rand = new Random(id);
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            int sum = 0;
+            for (int w : weights) {
+                sum += w;
+            }
+            this.totalWeight = sum;
+        }
+
+        void resetHistograms() {
+            for (LatencyHistogram h : histograms) {
+                h.reset();
+            }
+            errors = 0;
+        }
+
+        void runUntil(long deadline) {
+            while (System.nanoTime() < deadline) {
+                int op = session == null ? LOGIN : pick();
+                long start = System.nanoTime();
+                try {
+                    execute(op);
+                } catch (IOException e) {
+                    errors++;
+                    session = null;
+                    continue;
+                }
+                histograms[op].record(System.nanoTime() - start);
+            }
+        }
+
+        private int pick() {
+            int r = rand.nextInt(totalWeight);
+            for (int op = 0; op < weights.length; op++) {
+                r -= weights[op];
+                if (r < 0) {
+                    return op;
+                }
+            }
+            return BALANCE;
+        }
+
+        private void execute(int op) throws IOException {
+            switch (op) {
+                case LOGIN:
+                    if (session != null) {
+                        session.logout();
+                    }
+                    ATMService.NewAccount card = cards.get(rand.nextInt(cards.size()));
+                    session = service.login("load-" + id, card.accountNumber, card.pin);
+                    break;
+                case BALANCE:
+                    ATMBenchmark.sink += session.balance();
+                    break;
+                case WITHDRAW:
+                    try {
+                        session.withdraw(Money.ofBirr(1 + rand.nextInt(50)));
+                    } catch (IllegalArgumentException e) {
+                        // Held for review, which a fast stream of withdrawals from one account soon is
+                    }
+                    break;
+                case DEPOSIT:
+                    session.deposit(Money.ofBirr(1 + rand.nextInt(50)));
+                    break;
+                case HISTORY:
+                    ATMBenchmark.sink += session.recentHistory(5).length();
+                    break;
+                case TRANSFER:
+                    String to = cards.get(rand.nextInt(cards.size())).accountNumber;
+                    if (!to.equals(session.accountNumber())) {
+                        session.transfer(to, Money.ofBirr(1 + rand.nextInt(50)));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves an {@link ATMService} to remote terminals over a line protocol, one
+ * request line and one response per command:
+ *
+ * <pre>
+ * LOGIN accountNumber pin      OK accountNumber name | ERR LOCKED millis | ERR message
+ * CREATE amount name           OK accountNumber pin
+ * BALANCE                      OK balance
+ * BALANCE_AT timestamp         OK balance at that moment (epoch milliseconds)
+ * WITHDRAW amount              OK balance | ERR INSUFFICIENT | ERR message, e.g. held for review
+ * DEPOSIT amount               OK balance
+ * TRANSFER toAccount amount    OK balance | ERR REJECTED
+ * HISTORY n                    OK count, followed by count lines
+ * STATEMENT from to format     OK, followed by the statement lines and a line "."
+ * LOGOUT                       OK
+ * QUIT
+ * </pre>
+ *
+ * Amounts on the wire are decimal Birr with up to two decimals, e.g. 250.75.
+ *
+ * A terminal is identified by its IP address for the login lockout.
+ *
+ * A shard server ({@link #forShard}) listens on the loopback interface only and
+ * also answers its {@link ShardedATMService} coordinator, which names the
+ * terminal a login comes from:
+ *
+ * <pre>
+ * LOGIN accountNumber pin terminal
+ * SHARD                        OK index count
+ * EXISTS account               OK | ERR NOT_FOUND
+ * XOUT transfer from to amount OK | ERR REJECTED
+ * XIN transfer to from amount  OK | ERR REJECTED
+ * </pre>
+ *
+ * Every connection is handled on its own virtual thread when the JVM has them
+ * (Java 21+) and on a pooled platform thread otherwise.
+ */
+class ATMServer implements Closeable {
+    static final int DEFAULT_PORT = 4848;
+
+    private final ATMService service;
+    private final AccountShard shard;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions = newSessionExecutor();
+
+    ATMServer(ATMService service, int port) throws IOException {
+        this(service, null, new InetSocketAddress(port));
+    }
+
+    private ATMServer(ATMService service, AccountShard shard, InetSocketAddress address) throws IOException {
+        this.service = service;
+        this.shard = shard;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address, 1024);
+    }
+
+    /** Serves one shard to its coordinator on this host. */
+    static ATMServer forShard(AccountShard shard, int port) throws IOException {
+        return new ATMServer(shard, shard, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Accepts connections until the server is closed. */
+    void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sessions.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Metrics.SERVER_ERRORS.increment();
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdown();
+    }
+
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "atm-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(
+                        new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            ATMService.Session session = null;
+            String terminal = s.getInetAddress().getHostAddress();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split(" ", 3);
+                String command = parts[0].toUpperCase();
+                if (command.equals("QUIT")) {
+                    break;
+                }
+                try {
+                    session = dispatch(command, parts, session, terminal, out);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    out.print("ERR Malformed request\n");
+                } catch (IllegalArgumentException e) {
+                    out.print("ERR " + e.getMessage() + "\n");
+                }
+                out.flush();
+            }
+            if (session != null) {
+                session.logout();
+            }
+        } catch (IOException e) {
+            Metrics.SERVER_ERRORS.increment();
+            System.err.println("Session ended with error: " + e.getMessage());
+        }
+    }
+
+    private ATMService.Session dispatch(String command, String[] parts, ATMService.Session session,
+            String terminal, PrintWriter out) throws IOException {
+        switch (command) {
+            case "LOGIN": {
+                String[] rest = parts[2].split(" ");
+                ATMService.Session s;
+                try {
+                    s = service.login(shard != null && rest.length > 1 ? rest[1] : terminal, parts[1], rest[0]);
+                } catch (ATMService.LockedException e) {
+                    out.print("ERR LOCKED " + e.retryAfterMillis + "\n");
+                    return session;
+                }
+                if (s == null) {
+                    out.print("ERR Invalid account number or PIN\n");
+                    return session;
+                }
+                out.print("OK " + s.accountNumber() + " " + s.name() + "\n");
+                return s;
+            }
+            case "CREATE": {
+                ATMService.NewAccount created = service.createAccount(parts[2], Money.parse(parts[1]));
+                out.print("OK " + created.accountNumber + " " + created.pin + "\n");
+                return session;
+            }
+            case "LOGOUT":
+                if (session != null) {
+                    session.logout();
+                }
+                out.print("OK\n");
+                return null;
+            default:
+                break;
+        }
+        if (shard != null && dispatchShard(command, parts, out)) {
+            return session;
+        }
+
+        if (session == null) {
+            out.print("ERR Not logged in\n");
+            return null;
+        }
+        switch (command) {
+            case "BALANCE":
+                out.print("OK " + Money.format(session.balance()) + "\n");
+                break;
+            case "BALANCE_AT":
+                out.print("OK " + Money.format(session.balanceAt(Long.parseLong(parts[1]))) + "\n");
+                break;
+            case "WITHDRAW":
+                reply(out, session, session.withdraw(Money.parse(parts[1])), "INSUFFICIENT");
+                break;
+            case "DEPOSIT":
+                reply(out, session, session.deposit(Money.parse(parts[1])), "REJECTED");
+                break;
+            case "TRANSFER":
+                reply(out, session, session.transfer(parts[1], Money.parse(parts[2])), "REJECTED");
+                break;
+            case "HISTORY": {
+                String history = session.recentHistory(Integer.parseInt(parts[1]));
+                String[] lines = history.isEmpty() ? new String[0] : history.split("\n");
+                out.print("OK " + lines.length + "\n");
+                for (String l : lines) {
+                    out.print(l + "\n");
+                }
+                break;
+            }
+            case "STATEMENT": {
+                String[] rest = parts[2].split(" ");
+                long from = Long.parseLong(parts[1]);
+                long to = Long.parseLong(rest[0]);
+                if (!Statement.CSV.equals(rest[1]) && !Statement.PRINT.equals(rest[1])) {
+                    throw new IllegalArgumentException("Unknown statement format " + rest[1]);
+                }
+                out.print("OK\n");
+                session.writeStatement(from, to, rest[1], out);
+                out.print(".\n");
+                break;
+            }
+            default:
+                out.print("ERR Unknown command " + command + "\n");
+        }
+        return session;
+    }
+
+    private boolean dispatchShard(String command, String[] parts, PrintWriter out) throws IOException {
+        switch (command) {
+            case "SHARD":
+                out.print("OK " + shard.shardIndex() + " " + shard.shardCount() + "\n");
+                return true;
+            case "EXISTS":
+                out.print(shard.hasAccount(parts[1]) ? "OK\n" : "ERR NOT_FOUND\n");
+                return true;
+            case "XOUT": {
+                String[] rest = parts[2].split(" ");
+                out.print(shard.transferOut(Long.parseLong(parts[1]), rest[0], rest[1], Money.parse(rest[2])) ? "OK\n"
+                        : "ERR REJECTED\n");
+                return true;
+            }
+            case "XIN": {
+                String[] rest = parts[2].split(" ");
+                out.print(shard.transferIn(Long.parseLong(parts[1]), rest[0], rest[1], Money.parse(rest[2])) ? "OK\n"
+                        : "ERR REJECTED\n");
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private static void reply(PrintWriter out, ATMService.Session session, boolean ok, String failure)
+            throws IOException {
+        out.print(ok ? "OK " + Money.format(session.balance()) + "\n" : "ERR " + failure + "\n");
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The operations a terminal can perform. {@link LocalATMService} runs them
+ * in-process against the account files; {@link ATMClient} sends them to an
+ * {@link ATMServer}. The Swing frames only ever talk to this interface.
+ * All amounts are in santim (see {@link Money}).
+ */
+interface ATMService {
+
+    /** A logged-in account on one terminal. */
+    interface Session {
+        String accountNumber();
+
+        String name();
+
+        long balance() throws IOException;
+
+        /**
+         * The balance at {@code timestamp} (epoch milliseconds): after every
+         * posting up to and including that moment.
+         */
+        long balanceAt(long timestamp) throws IOException;
+
+        /**
+         * Returns false if the minimum balance would be broken.
+         *
+         * @throws IllegalArgumentException if the withdrawal is held for review (see {@link AnomalyScorer})
+         */
+        boolean withdraw(long amount) throws IOException;
+
+        boolean deposit(long amount) throws IOException;
+
+        boolean transfer(String toAccountNumber, long amount) throws IOException;
+
+        /** The last {@code n} postings, one line each, oldest first; empty if none. */
+        String recentHistory(int n) throws IOException;
+
+        /**
+         * Writes the statement of postings with {@code from <= timestamp < to}
+         * (epoch milliseconds) to {@code out} as it is read, in
+         * {@link Statement#CSV} or {@link Statement#PRINT} format.
+         */
+        void writeStatement(long from, long to, String format, Writer out) throws IOException;
+
+        void logout() throws IOException;
+    }
+
+    final class NewAccount {
+        final String accountNumber;
+        final String pin;
+
+        NewAccount(String accountNumber, String pin) {
+            this.accountNumber = accountNumber;
+            this.pin = pin;
+        }
+    }
+
+    /** Thrown by {@link #login} while repeated wrong PINs keep the terminal or the account locked. */
+    final class LockedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
+
+        LockedException(long retryAfterMillis) {
+            super("Too many wrong PINs; try again in " + (retryAfterMillis + 999) / 1000 + " seconds");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * Returns null unless {@code pin} is the PIN of the account with this full
+     * account number. {@code terminal} identifies where the attempt comes from,
+     * for the lockout after repeated wrong PINs (see {@link LoginGuard}).
+     *
+     * @throws LockedException if the terminal or the account is locked, including by this attempt
+     */
+    Session login(String terminal, String accountNumber, String pin) throws IOException;
+
+    /**
+     * Opens an account with a generated number and PIN.
+     *
+     * @throws IllegalArgumentException if the name or deposit is not acceptable
+     */
+    NewAccount createAccount(String name, long initialDeposit) throws IOException;
+}
@@ -1,653 +1,912 @@
-import javax.swing.*;
-import java.awt.*;
-import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-import java.awt.event.*;
-import javax.swing.Timer;
-import java.util.concurrent.TimeUnit;
-import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
-
-public class ATMSystem {
-    private static final String FILE_NAME = "accounts.dat";
-    private static ArrayList<Account> accounts = loadAccounts();
-
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            showSplashScreen();
-            try {
-                TimeUnit.SECONDS.sleep(2);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            new LoginFrame();
-        });
-    }
-
-    private static void showSplashScreen() {
-        JWindow splash = new JWindow();
-        JLabel splashLabel = new JLabel(
-                "<html><center><font size='6' color='#0066cc'>ATM SYSTEM</font><br/><br/>Loading...</center></html>",
-                JLabel.CENTER);
-        splashLabel.setFont(new Font("Arial", Font.BOLD, 24));
-        splash.getContentPane().setBackground(Color.WHITE);
-        splash.getContentPane().add(splashLabel, BorderLayout.CENTER);
-        splash.setSize(400, 300);
-        splash.setLocationRelativeTo(null);
-        splash.setVisible(true);
-
-        Timer timer = new Timer(2000, e -> {
-            splash.dispose();
-        });
-        timer.setRepeats(false);
-        timer.start();
-    }
-
-    static class LoginFrame extends JFrame {
-        JPasswordField pinField;
-        JButton loginBtn, exitBtn, clearBtn, createBtn;
-        int attempts = 0;
-        Timer lockTimer;
-        int[] lockTime = new int[1];
-
-        LoginFrame() {
-            setTitle("ATM Login");
-            setSize(400, 300);
-            setLocationRelativeTo(null);
-            setLayout(new GridBagLayout());
-            setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            getContentPane().setBackground(new Color(240, 240, 240));
-
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(10, 10, 10, 10);
-            gbc.fill = GridBagConstraints.HORIZONTAL;
-
-            JLabel label = new JLabel("Enter 4-digit PIN:");
-            label.setFont(new Font("Arial", Font.BOLD, 14));
-            gbc.gridx = 0;
-            gbc.gridy = 0;
-            gbc.gridwidth = 2;
-            add(label, gbc);
-
-            pinField = new JPasswordField(4);
-            pinField.setFont(new Font("Arial", Font.BOLD, 18));
-            pinField.setHorizontalAlignment(JTextField.CENTER);
-            pinField.setPreferredSize(new Dimension(100, 30));
-            ((JPasswordField) pinField).setEchoChar('•');
-            gbc.gridy = 1;
-            add(pinField, gbc);
-
-            pinField.addKeyListener(new KeyAdapter() {
-                public void keyTyped(KeyEvent e) {
-                    if (pinField.getPassword().length >= 4) {
-                        e.consume();
-                    }
-                }
-            });
-
-            JPanel buttonPanel = new JPanel(new GridLayout(1, 4, 5, 0));
-            loginBtn = createStyledButton("Login", new Color(0, 150, 0), KeyEvent.VK_L);
-            clearBtn = createStyledButton("Clear", new Color(200, 120, 0), KeyEvent.VK_C);
-            createBtn = createStyledButton("Create", new Color(0, 120, 200), KeyEvent.VK_A);
-            exitBtn = createStyledButton("Exit", new Color(200, 0, 0), KeyEvent.VK_X);
-
-            buttonPanel.add(loginBtn);
-            buttonPanel.add(clearBtn);
-            buttonPanel.add(createBtn);
-            buttonPanel.add(exitBtn);
-            gbc.gridy = 2;
-            add(buttonPanel, gbc);
-
-            pinField.addActionListener(e -> loginBtn.doClick());
-
-            loginBtn.addActionListener(_e -> attemptLogin());
-            clearBtn.addActionListener(_e -> {
-                pinField.setText("");
-                pinField.requestFocusInWindow();
-            });
-            exitBtn.addActionListener(_e -> confirmExit());
-            createBtn.addActionListener(_e -> {
-                new CreateAccountFrame();
-                dispose();
-            });
-
-            setVisible(true);
-            pinField.requestFocusInWindow();
-        }
-
-        private JButton createStyledButton(String text, Color bgColor, int mnemonic) {
-            JButton button = new JButton(text);
-            button.setBackground(bgColor);
-            button.setForeground(Color.WHITE);
-            button.setFont(new Font("Arial", Font.BOLD, 12));
-            button.setMnemonic(mnemonic);
-            button.setFocusPainted(false);
-            button.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
-            return button;
-        }
-
-        private void attemptLogin() {
-            String pin = new String(pinField.getPassword()).trim();
-            if (pin.length() != 4 || !pin.matches("\\d{4}")) {
-                showShakeAnimation();
-                JOptionPane.showMessageDialog(this,
-                        "Please enter a valid 4-digit PIN",
-                        "Invalid PIN", JOptionPane.WARNING_MESSAGE);
-                return;
-            }
-
-            Account acc = findAccountByPIN(pin);
-            if (acc != null) {
-                attempts = 0;
-                new ATMFrame(acc);
-                dispose();
-            } else {
-                attempts++;
-                showShakeAnimation();
-                if (attempts >= 3) {
-                    lockAccountTemporarily();
-                } else {
-                    JOptionPane.showMessageDialog(this,
-                            "Invalid PIN. Attempts left: " + (3 - attempts),
-                            "Login Failed", JOptionPane.ERROR_MESSAGE);
-                    pinField.setText("");
-                }
-            }
-            pinField.requestFocusInWindow();
-        }
-
-        private void showShakeAnimation() {
-            Point originalLocation = getLocation();
-            int shakeDistance = 5;
-
-            Timer shakeTimer = new Timer(30, null);
-            shakeTimer.addActionListener(new ActionListener() {
-                private int count = 0;
-                private boolean direction = true;
-
-                @Override
-                public void actionPerformed(ActionEvent e) {
-                    if (count >= 10) {
-                        setLocation(originalLocation);
-                        shakeTimer.stop();
-                        return;
-                    }
-
-                    int x = originalLocation.x + (direction ? shakeDistance : -shakeDistance);
-                    setLocation(x, originalLocation.y);
-                    direction = !direction;
-                    count++;
-                }
-            });
-            shakeTimer.start();
-        }
-
-        private void lockAccountTemporarily() {
-            loginBtn.setEnabled(false);
-            pinField.setEnabled(false);
-
-            lockTime[0] = 30;
-            JLabel lockMessage = new JLabel("System locked for " + lockTime[0] + " seconds");
-            JOptionPane.showMessageDialog(this, lockMessage, "Account Locked", JOptionPane.ERROR_MESSAGE);
-
-            lockTimer = new Timer(1000, e -> {
-                lockTime[0]--;
-                lockMessage.setText("System locked for " + lockTime[0] + " seconds");
-
-                if (lockTime[0] <= 0) {
-                    lockTimer.stop();
-                    loginBtn.setEnabled(true);
-                    pinField.setEnabled(true);
-                    pinField.setText("");
-                    pinField.requestFocusInWindow();
-                    attempts = 0;
-                    JOptionPane.showMessageDialog(this,
-                            "You can now try to login again",
-                            "Lock Expired", JOptionPane.INFORMATION_MESSAGE);
-                }
-            });
-            lockTimer.start();
-        }
-
-        private void confirmExit() {
-            int confirm = JOptionPane.showConfirmDialog(this,
-                    "Exit ATM System?", "Confirm Exit",
-                    JOptionPane.YES_NO_OPTION);
-            if (confirm == JOptionPane.YES_OPTION) {
-                System.exit(0);
-            }
-        }
-    }
-
-    static class CreateAccountFrame extends JFrame {
-        JTextField nameField, balanceField;
-        JButton createBtn, backBtn, exitBtn;
-
-        CreateAccountFrame() {
-            setTitle("Create Account");
-            setSize(500, 300);
-            setLocationRelativeTo(null);
-            setLayout(new GridBagLayout());
-            setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            getContentPane().setBackground(new Color(240, 240, 240));
-
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(10, 10, 10, 10);
-            gbc.fill = GridBagConstraints.HORIZONTAL;
-
-            JLabel nameLabel = new JLabel("Full Name:");
-            nameLabel.setFont(new Font("Arial", Font.PLAIN, 14));
-            gbc.gridx = 0;
-            gbc.gridy = 0;
-            add(nameLabel, gbc);
-
-            nameField = new JTextField(20);
-            nameField.setFont(new Font("Arial", Font.PLAIN, 14));
-            gbc.gridx = 1;
-            gbc.gridy = 0;
-            add(nameField, gbc);
-
-            JLabel balanceLabel = new JLabel("Initial Deposit (min 30 Birr):");
-            balanceLabel.setFont(new Font("Arial", Font.PLAIN, 14));
-            gbc.gridx = 0;
-            gbc.gridy = 1;
-            add(balanceLabel, gbc);
-
-            balanceField = new JTextField(20);
-            balanceField.setFont(new Font("Arial", Font.PLAIN, 14));
-            gbc.gridx = 1;
-            gbc.gridy = 1;
-            add(balanceField, gbc);
-
-            createBtn = createStyledButton("Create", new Color(0, 150, 0), KeyEvent.VK_C);
-            backBtn = createStyledButton("Back", new Color(0, 120, 200), KeyEvent.VK_B);
-            exitBtn = createStyledButton("Exit", new Color(200, 0, 0), KeyEvent.VK_X);
-
-            JPanel buttonPanel = new JPanel(new GridLayout(1, 3, 5, 0));
-            buttonPanel.add(createBtn);
-            buttonPanel.add(backBtn);
-            buttonPanel.add(exitBtn);
-            gbc.gridx = 0;
-            gbc.gridy = 2;
-            gbc.gridwidth = 2;
-            add(buttonPanel, gbc);
-
-            balanceField.addActionListener(e -> createBtn.doClick());
-            nameField.addActionListener(e -> createBtn.doClick());
-
-            createBtn.addActionListener(_e -> {
-                String name = nameField.getText().trim();
-                if (name.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Name cannot be empty");
-                    nameField.requestFocusInWindow();
-                    return;
-                }
-                if (!name.matches("^[A-Za-z\\s]+$")) {
-                    JOptionPane.showMessageDialog(this, "Name must contain only letters and spaces");
-                    nameField.requestFocusInWindow();
-                    return;
-                }
-                try {
-                    double balance = Double.parseDouble(balanceField.getText().trim());
-                    if (balance < 30) {
-                        JOptionPane.showMessageDialog(this, "Minimum initial deposit is 30 Birr");
-                        balanceField.requestFocusInWindow();
-                        return;
-                    }
-
-                    String accNum = generateAccountNumber();
-                    String pin = generatePin();
-                    Account acc = new Account(name, accNum, pin, balance);
-                    accounts.add(acc);
-                    saveAccounts();
-
-                    JOptionPane.showMessageDialog(this,
-                            "<html><div style='text-align: center;'>"
-                                    + "<h2>Account Created!</h2>"
-                                    + "<p>Account#: <b>1000" + accNum + "</b></p>"
-                                    + "<p>PIN: <b>" + pin + "</b></p>"
-                                    + "<p style='color: red;'>Please remember your PIN!</p>"
-                                    + "</div></html>",
-                            "Success", JOptionPane.INFORMATION_MESSAGE);
-                    new LoginFrame();
-                    dispose();
-
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(this, "Please enter a valid number for balance");
-                    balanceField.requestFocusInWindow();
-                }
-            });
-
-            backBtn.addActionListener(_e -> {
-                new LoginFrame();
-                dispose();
-            });
-
-            exitBtn.addActionListener(_e -> {
-                int confirm = JOptionPane.showConfirmDialog(this,
-                        "Exit ATM System?", "Confirm Exit",
-                        JOptionPane.YES_NO_OPTION);
-                if (confirm == JOptionPane.YES_OPTION) {
-                    System.exit(0);
-                }
-            });
-
-            setVisible(true);
-            nameField.requestFocusInWindow();
-        }
-
-        private JButton createStyledButton(String text, Color bgColor, int mnemonic) {
-            JButton button = new JButton(text);
-            button.setBackground(bgColor);
-            button.setForeground(Color.WHITE);
-            button.setFont(new Font("Arial", Font.BOLD, 12));
-            button.setMnemonic(mnemonic);
-            button.setFocusPainted(false);
-            button.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
-            return button;
-        }
-    }
-
-    static class ATMFrame extends JFrame {
-        JLabel welcomeLabel;
-        JButton viewBalanceBtn, withdrawBtn, depositBtn, logoutBtn, transactionHistoryBtn, exitBtn;
-        Account acc;
-
-        ATMFrame(Account acc) {
-            this.acc = acc;
-            setTitle("ATM - " + acc.getName());
-            setSize(500, 400);
-            setLocationRelativeTo(null);
-            setLayout(new GridBagLayout());
-            setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            getContentPane().setBackground(new Color(240, 240, 240));
-
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(15, 20, 15, 20);
-            gbc.fill = GridBagConstraints.HORIZONTAL;
-            gbc.gridx = 0;
-            gbc.gridy = 0;
-            gbc.gridwidth = 2;
-
-            welcomeLabel = new JLabel("Welcome, " + acc.getName());
-            welcomeLabel.setFont(new Font("Arial", Font.BOLD, 20));
-            add(welcomeLabel, gbc);
-
-            gbc.gridy = 1;
-            viewBalanceBtn = createStyledButton("View Balance", new Color(0, 120, 200), KeyEvent.VK_V);
-            add(viewBalanceBtn, gbc);
-
-            gbc.gridy = 2;
-            gbc.gridwidth = 1;
-            withdrawBtn = createStyledButton("Withdraw", new Color(200, 0, 0), KeyEvent.VK_W);
-            add(withdrawBtn, gbc);
-
-            gbc.gridx = 1;
-            depositBtn = createStyledButton("Deposit", new Color(0, 150, 0), KeyEvent.VK_D);
-            add(depositBtn, gbc);
-
-            gbc.gridy = 3;
-            gbc.gridx = 0;
-            transactionHistoryBtn = createStyledButton("Transactions", new Color(150, 0, 150), KeyEvent.VK_T);
-            add(transactionHistoryBtn, gbc);
-
-            gbc.gridx = 1;
-            exitBtn = createStyledButton("Exit", new Color(200, 0, 0), KeyEvent.VK_X);
-            add(exitBtn, gbc);
-
-            gbc.gridy = 4;
-            gbc.gridx = 0;
-            gbc.gridwidth = 2;
-            logoutBtn = createStyledButton("Logout", new Color(100, 100, 100), KeyEvent.VK_L);
-            add(logoutBtn, gbc);
-
-            viewBalanceBtn.addActionListener(_e -> showBalance());
-            withdrawBtn.addActionListener(_e -> withdraw());
-            depositBtn.addActionListener(_e -> deposit());
-            transactionHistoryBtn.addActionListener(_e -> showTransactionHistory());
-            exitBtn.addActionListener(_e -> confirmExit());
-            logoutBtn.addActionListener(_e -> confirmLogout());
-
-            setVisible(true);
-        }
-
-        private void showBalance() {
-            JOptionPane.showMessageDialog(this,
-                    "Current Balance: " + String.format("%.2f Birr", acc.getBalance()),
-                    "Account Balance", JOptionPane.INFORMATION_MESSAGE);
-        }
-
-        private void withdraw() {
-            String amtStr = JOptionPane.showInputDialog(this, "Enter amount to withdraw (Birr):");
-            if (amtStr == null)
-                return;
-            try {
-                double amt = Double.parseDouble(amtStr);
-                if (amt <= 0) {
-                    JOptionPane.showMessageDialog(this, "Enter a positive amount");
-                    return;
-                }
-                if (acc.withdraw(amt)) {
-                    String etDate = getEthiopianDate();
-                    acc.addTransaction(String.format("[%s] Withdrawn: %.2f Birr", etDate, amt));
-                    JOptionPane.showMessageDialog(this,
-                            "<html>Withdrawal successful<br>Remaining balance: " +
-                                    String.format("%.2f Birr", acc.getBalance()) + "</html>");
-                    saveAccounts();
-                } else {
-                    JOptionPane.showMessageDialog(this,
-                            "<html>Insufficient balance<br>" +
-                                    "Minimum 100 Birr must remain</html>");
-                }
-            } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(this, "Please enter a valid number");
-            }
-        }
-
-        private void deposit() {
-            String amtStr = JOptionPane.showInputDialog(this, "Enter amount to deposit (Birr):");
-            if (amtStr == null)
-                return;
-            try {
-                double amt = Double.parseDouble(amtStr);
-                if (amt <= 0) {
-                    JOptionPane.showMessageDialog(this, "Enter a positive amount");
-                    return;
-                }
-                acc.deposit(amt);
-                String etDate = getEthiopianDate();
-                acc.addTransaction(String.format("[%s] Deposited: %.2f Birr", etDate, amt));
-                JOptionPane.showMessageDialog(this,
-                        "<html>Deposit successful<br>New balance: " +
-                                String.format("%.2f Birr", acc.getBalance()) + "</html>");
-                saveAccounts();
-            } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(this, "Please enter a valid number");
-            }
-        }
-
-        private String getEthiopianDate() {
-            LocalDate today = LocalDate.now();
-            // Approximate Ethiopian Calendar conversion (subtract 7-8 years due to calendar
-            // difference)
-            long daysDifference = ChronoUnit.DAYS.between(LocalDate.of(1, 1, 1), today);
-            LocalDate ethiopianApprox = LocalDate.of(1, 1, 1).plusDays(daysDifference - 2800); // Rough 7.6 years
-            return String.format("%d/%d/%d", ethiopianApprox.getDayOfMonth(),
-                    ethiopianApprox.getMonthValue(), ethiopianApprox.getYear());
-        }
-
-        private void showTransactionHistory() {
-            List<String> transactions = acc.getTransactionHistory();
-            if (transactions.isEmpty()) {
-                JOptionPane.showMessageDialog(this, "No transactions yet");
-            } else {
-                StringBuilder sb = new StringBuilder();
-                // Show only the last 5 transactions (or all if less than 5)
-                int startIndex = Math.max(0, transactions.size() - 5);
-                for (int i = startIndex; i < transactions.size(); i++) {
-                    sb.append(transactions.get(i)).append("\n");
-                }
-                JTextArea textArea = new JTextArea(sb.toString());
-                textArea.setEditable(false);
-                textArea.setFont(new Font("Arial", Font.PLAIN, 14));
-                JScrollPane scrollPane = new JScrollPane(textArea);
-                scrollPane.setPreferredSize(new Dimension(350, 200));
-                JOptionPane.showMessageDialog(this, scrollPane,
-                        "Recent Transaction History (Last 5)", JOptionPane.INFORMATION_MESSAGE);
-            }
-        }
-
-        private void confirmExit() {
-            int confirm = JOptionPane.showConfirmDialog(this,
-                    "Exit ATM System?", "Confirm Exit",
-                    JOptionPane.YES_NO_OPTION);
-            if (confirm == JOptionPane.YES_OPTION) {
-                System.exit(0);
-            }
-        }
-
-        private void confirmLogout() {
-            int confirm = JOptionPane.showConfirmDialog(this,
-                    "Logout of account?", "Confirm Logout",
-                    JOptionPane.YES_NO_OPTION);
-            if (confirm == JOptionPane.YES_OPTION) {
-                new LoginFrame();
-                dispose();
-            }
-        }
-
-        private JButton createStyledButton(String text, Color bgColor, int mnemonic) {
-            JButton button = new JButton(text);
-            button.setBackground(bgColor);
-            button.setForeground(Color.WHITE);
-            button.setFont(new Font("Arial", Font.BOLD, 12));
-            button.setMnemonic(mnemonic);
-            button.setFocusPainted(false);
-            button.setBorder(BorderFactory.createEmptyBorder(8, 15, 8, 15));
-            return button;
-        }
-    }
-
-    static String generateNumber() {
-        Random rand = new Random();
-        return String.format("%04d", rand.nextInt(10_000));
-    }
-
-    static String generatePin() {
-        Random rand = new Random();
-        String pin;
-        do {
-            pin = String.format("%04d", rand.nextInt(10_000));
-        } while (findAccountByPIN(pin) != null);
-        return pin;
-    }
-
-    static String generateAccountNumber() {
-        Random rand = new Random();
-        String num;
-        do {
-            num = String.format("%06d", rand.nextInt(1_000_000));
-        } while (findAccountByNumber("1000" + num) != null);
-        return num;
-    }
-
-    static Account findAccountByPIN(String pin) {
-        for (Account a : accounts) {
-            if (a.getPin().equals(pin))
-                return a;
-        }
-        return null;
-    }
-
-    static Account findAccountByNumber(String accNum) {
-        for (Account a : accounts) {
-            if (a.getAccountNumber().equals(accNum))
-                return a;
-        }
-        return null;
-    }
-
-    @SuppressWarnings("unchecked")
-    static synchronized ArrayList<Account> loadAccounts() {
-        File file = new File(FILE_NAME);
-        if (!file.exists()) {
-            return new ArrayList<>();
-        }
-
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(FILE_NAME))) {
-            Object obj = ois.readObject();
-            if (obj instanceof ArrayList) {
-                return (ArrayList<Account>) obj;
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            System.err.println("Error loading accounts: " + e.getMessage());
-            return new ArrayList<>();
-        }
-    }
-
-    static synchronized void saveAccounts() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(FILE_NAME))) {
-            oos.writeObject(accounts);
-        } catch (IOException e) {
-            System.err.println("Error saving accounts: " + e.getMessage());
-        }
-    }
-}
-
-class Account implements Serializable {
-    private static final long serialVersionUID = 1L;
-
-    private final String name;
-    private final String accountNumber;
-    private final String pin;
-    private double balance;
-    private List<String> transactionHistory;
-
-    public Account(String name, String accountNumber, String pin, double balance) {
-        this.name = name;
-        this.accountNumber = accountNumber;
-        this.pin = pin;
-        this.balance = balance;
-        this.transactionHistory = new ArrayList<>();
-    }
-
-    public String getName() {
-        return name;
-    }
-
-    public String getAccountNumber() {
-        return "1000" + accountNumber;
-    }
-
-    public String getPin() {
-        return pin;
-    }
-
-    public double getBalance() {
-        return balance;
-    }
-
-    public List<String> getTransactionHistory() {
-        return transactionHistory;
-    }
-
-    public void addTransaction(String transaction) {
-        transactionHistory.add(transaction);
-    }
-
-    public boolean withdraw(double amount) {
-        if (amount > 0 && balance - amount >= 100) {
-            balance -= amount;
-            return true;
-        }
-        return false;
-    }
-
-    public void deposit(double amount) {
-        if (amount > 0)
-            balance += amount;
-    }
-}
\ No newline at end of file
+import javax.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.awt.event.*;
+import javax.swing.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public class ATMSystem {
+    static final String METRICS_NAME = "metrics.prom";
+    static final String CASSETTES_NAME = "cassettes.txt";
+    // The login lockout counts this process as one terminal; a server knows remote terminals by address
+    static final String TERMINAL = "local";
+
+    private static ATMService service;
+    private static CashDispenser dispenser;
+
+    /**
+     * Usage: {@code java ATMSystem} runs the terminal against the local account
+     * files, {@code --server [port]} serves them headless to remote terminals and
+     * {@code --connect host[:port]} runs the terminal as a client of such a server.
+     *
+     * {@code --shards n} splits the accounts over n shards in this JVM, and
+     * {@code --shards host:port,host:port,...} coordinates shard servers started
+     * with {@code --server port --shard i/n}; both work for the terminal and the
+     * server.
+     *
+     * {@code --cache-mb n} bounds the accounts each local account store keeps
+     * on the heap (see {@link AccountCache}).
+     */
+    public static void main(String[] args) throws IOException {
+        StartupTimer timer = new StartupTimer();
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args, timer);
+            return;
+        }
+
+        // The service opens on its own thread while the EDT paints the splash and builds the terminal window
+        ExecutorService startup = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "atm-startup");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletableFuture<ATMService> ready = CompletableFuture.supplyAsync(() -> {
+            try {
+                dispenser = CashDispenser.load(Paths.get(CASSETTES_NAME));
+                ATMService opened = openService(args, timer);
+                // Every way out ends in System.exit, so the journal is flushed and the files closed here
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        ((Closeable) opened).close();
+                    } catch (IOException e) {
+                        System.err.println("Error during shutdown: " + e.getMessage());
+                    }
+                }));
+                return opened;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, startup);
+        startup.shutdown();
+
+        SwingUtilities.invokeLater(() -> {
+            JWindow splash = showSplashScreen();
+            timer.mark("splash");
+            TerminalWindow window = new TerminalWindow();
+            ready.whenComplete((s, e) -> SwingUtilities.invokeLater(() -> {
+                splash.dispose();
+                if (e != null) {
+                    JOptionPane.showMessageDialog(null, "Cannot open the account service: " + e.getCause().getMessage(),
+                            "Startup Error", JOptionPane.ERROR_MESSAGE);
+                    System.exit(1);
+                }
+                service = s;
+                window.setVisible(true);
+                window.login.accountField.requestFocusInWindow();
+                timer.mark("login ready");
+                timer.print();
+            }));
+        });
+    }
+
+    private static ATMService openService(String[] args, StartupTimer timer) throws IOException {
+        if (args.length > 1 && args[0].equals("--connect")) {
+            ATMService remote = ATMClient.connect(args[1]);
+            timer.mark("connected");
+            return remote;
+        }
+        String shards = option(args, "--shards");
+        long cacheBytes = cacheBytes(args);
+        if (shards != null) {
+            ShardedATMService sharded = shards.contains(":")
+                    ? ShardedATMService.connect(Paths.get("."), shards.split(","))
+                    : ShardedATMService.openLocal(Paths.get("."), Integer.parseInt(shards), cacheBytes);
+            timer.mark("shards");
+            return sharded;
+        }
+        LocalATMService local = new LocalATMService(Paths.get("."), cacheBytes);
+        timer.mark("service");
+        local.warmUp();
+        timer.mark("warm");
+        return local;
+    }
+
+    private static long cacheBytes(String[] args) {
+        String mb = option(args, "--cache-mb");
+        return mb == null ? AccountCache.DEFAULT_CAPACITY : Long.parseLong(mb) << 20;
+    }
+
+    /** The value following {@code name} in {@code args}, or null. */
+    private static String option(String[] args, String name) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private static void runServer(String[] args, StartupTimer timer) throws IOException {
+        int port = args.length > 1 && !args[1].startsWith("--") ? Integer.parseInt(args[1]) : ATMServer.DEFAULT_PORT;
+        String shard = option(args, "--shard");
+        Closeable backend;
+        ATMServer server;
+        Path metrics;
+        if (shard != null) {
+            String[] indexOfCount = shard.split("/");
+            int index = Integer.parseInt(indexOfCount[0]);
+            Path dir = Paths.get(ShardedATMService.shardDir(index));
+            LocalATMService local = LocalATMService.openShard(dir, index, Integer.parseInt(indexOfCount[1]),
+                    cacheBytes(args));
+            timer.mark("service");
+            local.warmUp();
+            timer.mark("warm");
+            backend = local;
+            server = ATMServer.forShard(local, port);
+            metrics = dir.resolve(METRICS_NAME);
+        } else {
+            ATMService local = openService(args, timer);
+            backend = (Closeable) local;
+            server = new ATMServer(local, port);
+            metrics = Paths.get(METRICS_NAME);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                backend.close();
+            } catch (IOException e) {
+                System.err.println("Error during shutdown: " + e.getMessage());
+            }
+        }));
+        Metrics.startFileExport(metrics, 10);
+        timer.mark("listening");
+        timer.print();
+        System.out.println("ATM server listening on port " + server.port());
+        server.serve();
+    }
+
+    interface ServiceCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Runs a service call on a worker thread so a slow disk or network never
+     * freezes the terminal. The frame is disabled until the call returns, and
+     * {@code onResult} then runs back on the event dispatch thread.
+     */
+    static <T> void runInBackground(JFrame frame, ServiceCall<T> call, Consumer<T> onResult) {
+        frame.setEnabled(false);
+        frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() throws IOException {
+                return call.call();
+            }
+
+            @Override
+            protected void done() {
+                frame.setCursor(Cursor.getDefaultCursor());
+                frame.setEnabled(true);
+                try {
+                    onResult.accept(get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IllegalArgumentException) {
+                        JOptionPane.showMessageDialog(frame, cause.getMessage());
+                    } else if (cause instanceof ATMService.LockedException) {
+                        JOptionPane.showMessageDialog(frame, cause.getMessage(), "Login Locked",
+                                JOptionPane.WARNING_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(frame, "Cannot reach the account service: " + cause.getMessage(),
+                                "Connection Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }
+        }.execute();
+    }
+
+    private static JWindow showSplashScreen() {
+        JWindow splash = new JWindow();
+        JLabel splashLabel = new JLabel(
+                "<html><center><font size='6' color='#0066cc'>ATM SYSTEM</font><br/><br/>Loading...</center></html>",
+                JLabel.CENTER);
+        splashLabel.setFont(Styles.SPLASH);
+        splash.getContentPane().setBackground(Color.WHITE);
+        splash.getContentPane().add(splashLabel, BorderLayout.CENTER);
+        splash.setSize(400, 300);
+        splash.setLocationRelativeTo(null);
+        splash.setVisible(true);
+        return splash;
+    }
+
+    /**
+     * The one window of a terminal. Its screens are built once and switched
+     * with a {@link CardLayout}, so moving between login, account creation and
+     * the account menu only changes which panel is visible. Every switch is
+     * timed until the new screen has been painted.
+     */
+    static class TerminalWindow extends JFrame {
+        private static final long serialVersionUID = 1L;
+
+        static final String LOGIN = "login";
+        static final String CREATE = "create";
+        static final String MENU = "menu";
+
+        final LoginScreen login;
+        final CreateAccountScreen create;
+        final ATMScreen menu;
+        private final CardLayout cards = new CardLayout();
+        private final JPanel screens = new JPanel(cards);
+        private BiConsumer<String, Long> frameTimes;
+
+        TerminalWindow() {
+            setSize(500, 400);
+            setLocationRelativeTo(null);
+            setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            login = new LoginScreen(this);
+            create = new CreateAccountScreen(this);
+            menu = new ATMScreen(this);
+            screens.add(login, LOGIN);
+            screens.add(create, CREATE);
+            screens.add(menu, MENU);
+            setContentPane(screens);
+            setTitle(login.title());
+        }
+
+        /** Also passes the name and nanoseconds of every screen switch to {@code listener}, e.g. a benchmark. */
+        void onFrameTime(BiConsumer<String, Long> listener) {
+            frameTimes = listener;
+        }
+
+        void show(String name) {
+            long start = System.nanoTime();
+            Screen screen = screen(name);
+            setTitle(screen.title());
+            cards.show(screens, name);
+            screen.focus().requestFocusInWindow();
+            // Queued behind the repaint the switch requested, so it runs once the screen is painted
+            SwingUtilities.invokeLater(() -> {
+                long nanos = System.nanoTime() - start;
+                screen.frameTime.record(nanos);
+                BiConsumer<String, Long> listener = frameTimes;
+                if (listener != null) {
+                    listener.accept(name, nanos);
+                }
+            });
+        }
+
+        private Screen screen(String name) {
+            switch (name) {
+            case LOGIN:
+                return login;
+            case CREATE:
+                return create;
+            case MENU:
+                return menu;
+            default:
+                throw new IllegalArgumentException("No screen " + name);
+            }
+        }
+
+        void confirmExit() {
+            int confirm = JOptionPane.showConfirmDialog(this,
+                    "Exit ATM System?", "Confirm Exit",
+                    JOptionPane.YES_NO_OPTION);
+            if (confirm == JOptionPane.YES_OPTION) {
+                System.exit(0);
+            }
+        }
+    }
+
+    /** A panel of the {@link TerminalWindow}; built once and shown again and again. */
+    abstract static class Screen extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        final TerminalWindow window;
+        final Metrics.Timer frameTime;
+
+        Screen(TerminalWindow window, Metrics.Timer frameTime) {
+            super(new GridBagLayout());
+            this.window = window;
+            this.frameTime = frameTime;
+            setBackground(Styles.BACKGROUND);
+        }
+
+        abstract String title();
+
+        /** The component that gets the focus when the screen is shown. */
+        abstract JComponent focus();
+    }
+
+    static class LoginScreen extends Screen {
+        private static final long serialVersionUID = 1L;
+
+        JTextField accountField;
+        JPasswordField pinField;
+        JButton loginBtn, exitBtn, clearBtn, createBtn;
+
+        LoginScreen(TerminalWindow window) {
+            super(window, Metrics.SCREEN_LOGIN);
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(10, 10, 10, 10);
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+
+            gbc.gridx = 0;
+            gbc.gridy = 0;
+            gbc.gridwidth = 2;
+            add(Styles.label("Account number:", Styles.LABEL), gbc);
+
+            accountField = new JTextField(10);
+            accountField.setFont(Styles.INPUT);
+            accountField.setHorizontalAlignment(JTextField.CENTER);
+            accountField.setPreferredSize(new Dimension(160, 30));
+            gbc.gridy = 1;
+            add(accountField, gbc);
+
+            gbc.gridy = 2;
+            add(Styles.label("Enter 4-digit PIN:", Styles.LABEL), gbc);
+
+            pinField = new JPasswordField(4);
+            pinField.setFont(Styles.INPUT);
+            pinField.setHorizontalAlignment(JTextField.CENTER);
+            pinField.setPreferredSize(new Dimension(100, 30));
+            pinField.setEchoChar('•');
+            gbc.gridy = 3;
+            add(pinField, gbc);
+
+            pinField.addKeyListener(new KeyAdapter() {
+                public void keyTyped(KeyEvent e) {
+                    if (pinField.getPassword().length >= 4) {
+                        e.consume();
+                    }
+                }
+            });
+
+            JPanel buttonPanel = new JPanel(new GridLayout(1, 4, 5, 0));
+            loginBtn = Styles.button("Login", Styles.GREEN, KeyEvent.VK_L);
+            clearBtn = Styles.button("Clear", Styles.ORANGE, KeyEvent.VK_C);
+            createBtn = Styles.button("Create", Styles.BLUE, KeyEvent.VK_A);
+            exitBtn = Styles.button("Exit", Styles.RED, KeyEvent.VK_X);
+
+            buttonPanel.add(loginBtn);
+            buttonPanel.add(clearBtn);
+            buttonPanel.add(createBtn);
+            buttonPanel.add(exitBtn);
+            gbc.gridy = 4;
+            add(buttonPanel, gbc);
+
+            accountField.addActionListener(e -> pinField.requestFocusInWindow());
+            pinField.addActionListener(e -> loginBtn.doClick());
+
+            loginBtn.addActionListener(_e -> attemptLogin());
+            clearBtn.addActionListener(_e -> clear());
+            exitBtn.addActionListener(_e -> window.confirmExit());
+            createBtn.addActionListener(_e -> {
+                clear();
+                window.show(TerminalWindow.CREATE);
+            });
+        }
+
+        @Override
+        String title() {
+            return "ATM Login";
+        }
+
+        @Override
+        JComponent focus() {
+            return accountField.getText().isEmpty() ? accountField : pinField;
+        }
+
+        void clear() {
+            accountField.setText("");
+            pinField.setText("");
+            accountField.requestFocusInWindow();
+        }
+
+        private void attemptLogin() {
+            String accNum = accountField.getText().trim();
+            String pin = new String(pinField.getPassword()).trim();
+            if (!LocalATMService.isAccountNumber(accNum)) {
+                showShakeAnimation();
+                JOptionPane.showMessageDialog(this,
+                        "Please enter your 10-digit account number",
+                        "Invalid Account Number", JOptionPane.WARNING_MESSAGE);
+                accountField.requestFocusInWindow();
+                return;
+            }
+            if (pin.length() != 4 || !pin.matches("\\d{4}")) {
+                showShakeAnimation();
+                JOptionPane.showMessageDialog(this,
+                        "Please enter a valid 4-digit PIN",
+                        "Invalid PIN", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            runInBackground(window, () -> service.login(TERMINAL, accNum, pin), this::loginFinished);
+            pinField.setText("");
+        }
+
+        // Lockouts after repeated wrong PINs are reported by runInBackground
+        private void loginFinished(ATMService.Session session) {
+            if (session != null) {
+                accountField.setText("");
+                window.menu.open(session);
+                return;
+            }
+            showShakeAnimation();
+            JOptionPane.showMessageDialog(this, "Invalid account number or PIN", "Login Failed",
+                    JOptionPane.ERROR_MESSAGE);
+            pinField.requestFocusInWindow();
+        }
+
+        private void showShakeAnimation() {
+            Point originalLocation = window.getLocation();
+            int shakeDistance = 5;
+
+            Timer shakeTimer = new Timer(30, null);
+            shakeTimer.addActionListener(new ActionListener() {
+                private int count = 0;
+                private boolean direction = true;
+
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if (count >= 10) {
+                        window.setLocation(originalLocation);
+                        shakeTimer.stop();
+                        return;
+                    }
+
+                    int x = originalLocation.x + (direction ? shakeDistance : -shakeDistance);
+                    window.setLocation(x, originalLocation.y);
+                    direction = !direction;
+                    count++;
+                }
+            });
+            shakeTimer.start();
+        }
+    }
+
+    static class CreateAccountScreen extends Screen {
+        private static final long serialVersionUID = 1L;
+
+        JTextField nameField, balanceField;
+        JButton createBtn, backBtn, exitBtn;
+
+        CreateAccountScreen(TerminalWindow window) {
+            super(window, Metrics.SCREEN_CREATE);
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(10, 10, 10, 10);
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+
+            gbc.gridx = 0;
+            gbc.gridy = 0;
+            add(Styles.label("Full Name:", Styles.TEXT), gbc);
+
+            nameField = new JTextField(20);
+            nameField.setFont(Styles.TEXT);
+            gbc.gridx = 1;
+            gbc.gridy = 0;
+            add(nameField, gbc);
+
+            gbc.gridx = 0;
+            gbc.gridy = 1;
+            add(Styles.label("Initial Deposit (min 30 Birr):", Styles.TEXT), gbc);
+
+            balanceField = new JTextField(20);
+            balanceField.setFont(Styles.TEXT);
+            gbc.gridx = 1;
+            gbc.gridy = 1;
+            add(balanceField, gbc);
+
+            createBtn = Styles.button("Create", Styles.GREEN, KeyEvent.VK_C);
+            backBtn = Styles.button("Back", Styles.BLUE, KeyEvent.VK_B);
+            exitBtn = Styles.button("Exit", Styles.RED, KeyEvent.VK_X);
+
+            JPanel buttonPanel = new JPanel(new GridLayout(1, 3, 5, 0));
+            buttonPanel.add(createBtn);
+            buttonPanel.add(backBtn);
+            buttonPanel.add(exitBtn);
+            gbc.gridx = 0;
+            gbc.gridy = 2;
+            gbc.gridwidth = 2;
+            add(buttonPanel, gbc);
+
+            balanceField.addActionListener(e -> createBtn.doClick());
+            nameField.addActionListener(e -> createBtn.doClick());
+
+            createBtn.addActionListener(_e -> {
+                String name = nameField.getText().trim();
+                if (name.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "Name cannot be empty");
+                    nameField.requestFocusInWindow();
+                    return;
+                }
+                if (!name.matches("^[A-Za-z\\s]+$")) {
+                    JOptionPane.showMessageDialog(this, "Name must contain only letters and spaces");
+                    nameField.requestFocusInWindow();
+                    return;
+                }
+                long balance;
+                try {
+                    balance = Money.parse(balanceField.getText());
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(this, "Please enter a valid number for balance");
+                    balanceField.requestFocusInWindow();
+                    return;
+                }
+                if (balance < LocalATMService.MIN_INITIAL_DEPOSIT) {
+                    JOptionPane.showMessageDialog(this, "Minimum initial deposit is 30 Birr");
+                    balanceField.requestFocusInWindow();
+                    return;
+                }
+
+                // Shown only once the new account is durable
+                runInBackground(window, () -> service.createAccount(name, balance), created -> {
+                    JOptionPane.showMessageDialog(this,
+                            "<html><div style='text-align: center;'>"
+                                    + "<h2>Account Created!</h2>"
+                                    + "<p>Account#: <b>" + created.accountNumber + "</b></p>"
+                                    + "<p>PIN: <b>" + created.pin + "</b></p>"
+                                    + "<p style='color: red;'>Please remember your PIN!</p>"
+                                    + "</div></html>",
+                            "Success", JOptionPane.INFORMATION_MESSAGE);
+                    clear();
+                    window.login.accountField.setText(created.accountNumber);
+                    window.show(TerminalWindow.LOGIN);
+                });
+            });
+
+            backBtn.addActionListener(_e -> {
+                clear();
+                window.show(TerminalWindow.LOGIN);
+            });
+
+            exitBtn.addActionListener(_e -> window.confirmExit());
+        }
+
+        @Override
+        String title() {
+            return "Create Account";
+        }
+
+        @Override
+        JComponent focus() {
+            return nameField;
+        }
+
+        void clear() {
+            nameField.setText("");
+            balanceField.setText("");
+        }
+    }
+
+    static class ATMScreen extends Screen {
+        private static final long serialVersionUID = 1L;
+
+        JLabel welcomeLabel;
+        JButton viewBalanceBtn, withdrawBtn, depositBtn, transferBtn, logoutBtn, transactionHistoryBtn, exitBtn;
+        ATMService.Session session;
+
+        ATMScreen(TerminalWindow window) {
+            super(window, Metrics.SCREEN_MENU);
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(15, 20, 15, 20);
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+            gbc.gridx = 0;
+            gbc.gridy = 0;
+            gbc.gridwidth = 2;
+
+            welcomeLabel = Styles.label("Welcome", Styles.HEADING);
+            add(welcomeLabel, gbc);
+
+            gbc.gridy = 1;
+            viewBalanceBtn = Styles.button("View Balance", Styles.BLUE, KeyEvent.VK_V, Styles.LARGE_BUTTON_PADDING);
+            add(viewBalanceBtn, gbc);
+
+            gbc.gridy = 2;
+            gbc.gridwidth = 1;
+            withdrawBtn = Styles.button("Withdraw", Styles.RED, KeyEvent.VK_W, Styles.LARGE_BUTTON_PADDING);
+            add(withdrawBtn, gbc);
+
+            gbc.gridx = 1;
+            depositBtn = Styles.button("Deposit", Styles.GREEN, KeyEvent.VK_D, Styles.LARGE_BUTTON_PADDING);
+            add(depositBtn, gbc);
+
+            gbc.gridy = 3;
+            gbc.gridx = 0;
+            transferBtn = Styles.button("Transfer", Styles.ORANGE, KeyEvent.VK_R, Styles.LARGE_BUTTON_PADDING);
+            add(transferBtn, gbc);
+
+            gbc.gridx = 1;
+            transactionHistoryBtn = Styles.button("Transactions", Styles.PURPLE, KeyEvent.VK_T,
+                    Styles.LARGE_BUTTON_PADDING);
+            add(transactionHistoryBtn, gbc);
+
+            gbc.gridy = 4;
+            gbc.gridx = 0;
+            logoutBtn = Styles.button("Logout", Styles.GREY, KeyEvent.VK_L, Styles.LARGE_BUTTON_PADDING);
+            add(logoutBtn, gbc);
+
+            gbc.gridx = 1;
+            exitBtn = Styles.button("Exit", Styles.RED, KeyEvent.VK_X, Styles.LARGE_BUTTON_PADDING);
+            add(exitBtn, gbc);
+
+            viewBalanceBtn.addActionListener(_e -> showBalance());
+            withdrawBtn.addActionListener(_e -> withdraw());
+            depositBtn.addActionListener(_e -> deposit());
+            transferBtn.addActionListener(_e -> transfer());
+            transactionHistoryBtn.addActionListener(_e -> showTransactionHistory());
+            exitBtn.addActionListener(_e -> window.confirmExit());
+            logoutBtn.addActionListener(_e -> confirmLogout());
+        }
+
+        /** Shows the menu for a freshly logged-in session. */
+        void open(ATMService.Session session) {
+            this.session = session;
+            welcomeLabel.setText("Welcome, " + session.name());
+            window.show(TerminalWindow.MENU);
+        }
+
+        @Override
+        String title() {
+            return session == null ? "ATM" : "ATM - " + session.name();
+        }
+
+        @Override
+        JComponent focus() {
+            return viewBalanceBtn;
+        }
+
+        private void showBalance() {
+            runInBackground(window, session::balance, balance -> {
+                Object[] options = { "Balance on a Date...", "Close" };
+                int choice = JOptionPane.showOptionDialog(this,
+                        "Current Balance: " + Money.format(balance) + " Birr",
+                        "Account Balance", JOptionPane.DEFAULT_OPTION,
+                        JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+                if (choice == 0) {
+                    showBalanceOnDate();
+                }
+            });
+        }
+
+        // The balance at the end of a given day
+        private void showBalanceOnDate() {
+            LocalDate today = Transaction.ethiopianDate(System.currentTimeMillis());
+            String date = JOptionPane.showInputDialog(this, "Balance at the end of (d/m/yyyy):",
+                    today.getDayOfMonth() + "/" + today.getMonthValue() + "/" + today.getYear());
+            if (date == null) {
+                return;
+            }
+            long end;
+            try {
+                end = Statement.endOfDay(date);
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage());
+                return;
+            }
+            runInBackground(window, () -> session.balanceAt(end - 1), balance -> JOptionPane.showMessageDialog(this,
+                    "Balance at the end of " + date.trim() + ": " + Money.format(balance) + " Birr",
+                    "Account Balance", JOptionPane.INFORMATION_MESSAGE));
+        }
+
+        private void withdraw() {
+            String amtStr = JOptionPane.showInputDialog(this, "Enter amount to withdraw (Birr):");
+            if (amtStr == null)
+                return;
+            long amt;
+            try {
+                amt = Money.parse(amtStr);
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter a valid number");
+                return;
+            }
+            if (amt <= 0) {
+                JOptionPane.showMessageDialog(this, "Enter a positive amount");
+                return;
+            }
+            if (amt % dispenser.unit() != 0) {
+                JOptionPane.showMessageDialog(this,
+                        "Enter a multiple of " + dispenser.unit() / Money.SANTIM_PER_BIRR + " Birr");
+                return;
+            }
+            if (amt > Account.DAILY_WITHDRAWAL_LIMIT) {
+                JOptionPane.showMessageDialog(this,
+                        "At most " + Money.format(Account.DAILY_WITHDRAWAL_LIMIT) + " Birr can be withdrawn per day");
+                return;
+            }
+            // The notes are set aside before the debit, so the account is never charged for cash that cannot be paid
+            CashDispenser.Plan notes = dispenser.reserve(amt);
+            if (notes == null) {
+                JOptionPane.showMessageDialog(this,
+                        "<html>This terminal cannot pay out " + Money.format(amt) +
+                                " Birr now<br>Please try a smaller amount</html>");
+                return;
+            }
+            // The remaining balance, or null if refused; confirmed only after the journal commit
+            runInBackground(window, () -> {
+                boolean ok = false;
+                try {
+                    ok = session.withdraw(amt);
+                    return ok ? session.balance() : null;
+                } finally {
+                    if (ok) {
+                        dispenser.paid(notes);
+                    } else {
+                        dispenser.release(notes);
+                    }
+                }
+            }, remaining -> {
+                if (remaining != null) {
+                    JOptionPane.showMessageDialog(this,
+                            "<html>Withdrawal successful<br>Please take " + dispenser.describe(notes) +
+                                    "<br>Remaining balance: " + Money.format(remaining) + " Birr</html>");
+                } else {
+                    JOptionPane.showMessageDialog(this,
+                            "<html>Withdrawal refused<br>Minimum 100 Birr must remain and at most " +
+                                    Money.format(Account.DAILY_WITHDRAWAL_LIMIT) +
+                                    " Birr can be withdrawn per day</html>");
+                }
+            });
+        }
+
+        private void deposit() {
+            String amtStr = JOptionPane.showInputDialog(this, "Enter amount to deposit (Birr):");
+            if (amtStr == null)
+                return;
+            long amt;
+            try {
+                amt = Money.parse(amtStr);
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter a valid number");
+                return;
+            }
+            if (amt <= 0) {
+                JOptionPane.showMessageDialog(this, "Enter a positive amount");
+                return;
+            }
+            runInBackground(window, () -> session.deposit(amt) ? session.balance() : null, balance -> {
+                if (balance == null) {
+                    JOptionPane.showMessageDialog(this, "Deposit could not be accepted");
+                    return;
+                }
+                JOptionPane.showMessageDialog(this,
+                        "<html>Deposit successful<br>New balance: " +
+                                Money.format(balance) + " Birr</html>");
+            });
+        }
+
+        private void transfer() {
+            JTextField toField = new JTextField(12);
+            JTextField amountField = new JTextField(12);
+            JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+            panel.add(new JLabel("To account number:"));
+            panel.add(toField);
+            panel.add(new JLabel("Amount (Birr):"));
+            panel.add(amountField);
+            if (JOptionPane.showConfirmDialog(this, panel, "Transfer",
+                    JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            String to = toField.getText().trim();
+            if (!LocalATMService.isAccountNumber(to)) {
+                JOptionPane.showMessageDialog(this, "Please enter a 10-digit account number");
+                return;
+            }
+            if (to.equals(session.accountNumber())) {
+                JOptionPane.showMessageDialog(this, "Choose an account other than your own");
+                return;
+            }
+            long amt;
+            try {
+                amt = Money.parse(amountField.getText());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter a valid number");
+                return;
+            }
+            if (amt <= 0) {
+                JOptionPane.showMessageDialog(this, "Enter a positive amount");
+                return;
+            }
+            // Both sides are posted together; confirmed only after the journal commit
+            runInBackground(window, () -> session.transfer(to, amt) ? session.balance() : null, remaining -> {
+                if (remaining != null) {
+                    JOptionPane.showMessageDialog(this,
+                            "<html>Transferred " + Money.format(amt) + " Birr to " + to +
+                                    "<br>Remaining balance: " + Money.format(remaining) + " Birr</html>");
+                } else {
+                    JOptionPane.showMessageDialog(this,
+                            "<html>Transfer refused<br>The account does not exist, or less than 100 Birr " +
+                                    "would remain</html>");
+                }
+            });
+        }
+
+        private void showTransactionHistory() {
+            // Show only the last 5 transactions (or all if less than 5)
+            runInBackground(window, () -> session.recentHistory(5), transactions -> {
+                if (transactions.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "No transactions yet");
+                    return;
+                }
+                JTextArea textArea = new JTextArea(transactions);
+                textArea.setEditable(false);
+                textArea.setFont(Styles.TEXT);
+                JScrollPane scrollPane = new JScrollPane(textArea);
+                scrollPane.setPreferredSize(new Dimension(350, 200));
+                Object[] options = { "Save Statement...", "Close" };
+                int choice = JOptionPane.showOptionDialog(this, scrollPane,
+                        "Recent Transaction History (Last 5)", JOptionPane.DEFAULT_OPTION,
+                        JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+                if (choice == 0) {
+                    saveStatement();
+                }
+            });
+        }
+
+        // Asks for a period, a format and a file, then streams the statement there
+        private void saveStatement() {
+            LocalDate today = Transaction.ethiopianDate(System.currentTimeMillis());
+            JTextField fromField = new JTextField("1/" + today.getMonthValue() + "/" + today.getYear(), 10);
+            JTextField toField = new JTextField(
+                    today.getDayOfMonth() + "/" + today.getMonthValue() + "/" + today.getYear(), 10);
+            JComboBox<String> formatBox = new JComboBox<>(new String[] { "CSV", "Print" });
+            JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
+            panel.add(new JLabel("From (d/m/yyyy):"));
+            panel.add(fromField);
+            panel.add(new JLabel("To (d/m/yyyy):"));
+            panel.add(toField);
+            panel.add(new JLabel("Format:"));
+            panel.add(formatBox);
+            if (JOptionPane.showConfirmDialog(this, panel, "Account Statement",
+                    JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            long from;
+            long to;
+            try {
+                from = Statement.startOfDay(fromField.getText());
+                to = Statement.endOfDay(toField.getText());
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage());
+                return;
+            }
+            boolean csv = formatBox.getSelectedIndex() == 0;
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new File("statement-" + session.accountNumber() + (csv ? ".csv" : ".txt")));
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = chooser.getSelectedFile();
+            runInBackground(window, () -> {
+                try (Writer out = Files.newBufferedWriter(file.toPath())) {
+                    session.writeStatement(from, to, csv ? Statement.CSV : Statement.PRINT, out);
+                }
+                return file;
+            }, saved -> JOptionPane.showMessageDialog(this, "Statement saved to " + saved));
+        }
+
+        private void confirmLogout() {
+            int confirm = JOptionPane.showConfirmDialog(this,
+                    "Logout of account?", "Confirm Logout",
+                    JOptionPane.YES_NO_OPTION);
+            if (confirm == JOptionPane.YES_OPTION) {
+                ATMService.Session closing = session;
+                // A failed logout is only reported; the terminal goes back to the login screen either way
+                runInBackground(window, () -> {
+                    try {
+                        closing.logout();
+                    } catch (IOException e) {
+                        System.err.println("Error logging out: " + e.getMessage());
+                    }
+                    return null;
+                }, _done -> {
+                    session = null;
+                    window.show(TerminalWindow.LOGIN);
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+class Account {
+    /** Balance that must remain after a withdrawal, in santim (100 Birr). */
+    static final long MIN_BALANCE = 100 * Money.SANTIM_PER_BIRR;
+    /** Cash that may be withdrawn per calendar day, in santim (20,000 Birr). */
+    static final long DAILY_WITHDRAWAL_LIMIT = 20_000 * Money.SANTIM_PER_BIRR;
+
+    private final String name;
+    private final String accountNumber;
+    private final PinCredential credential;
+    // In santim; written under the account's TransactionEngine stripe, read from any thread
+    private volatile long balance;
+    private final TransactionHistory transactionHistory;
+    // Bumped by every posting; a cached mini-statement is only served for the version it was rendered at
+    private volatile int historyVersion;
+    private volatile MiniStatement miniStatement;
+    // Cash withdrawn and deposited on totalsDay (see DailyTotals#day), kept up to date by
+    // addTransaction so the daily limit never scans the history; guarded like the balance
+    private int totalsDay;
+    private long withdrawnOnDay;
+    private long depositedOnDay;
+
+    private static final class MiniStatement {
+        final int rows;
+        final int version;
+        final String text;
+
+        MiniStatement(int rows, int version, String text) {
+            this.rows = rows;
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    public Account(String name, String accountNumber, PinCredential credential, long balance) {
+        this(name, accountNumber, credential, balance, new TransactionHistory());
+    }
+
+    Account(String name, String accountNumber, PinCredential credential, long balance,
+            TransactionHistory transactionHistory) {
+        this.name = name;
+        this.accountNumber = accountNumber;
+        this.credential = credential;
+        this.balance = balance;
+        this.transactionHistory = transactionHistory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAccountNumber() {
+        return "1000" + accountNumber;
+    }
+
+    public PinCredential getCredential() {
+        return credential;
+    }
+
+    /** Balance in santim. */
+    public long getBalance() {
+        return balance;
+    }
+
+    public TransactionHistory getTransactionHistory() {
+        return transactionHistory;
+    }
+
+    /** Records a posting that has already been applied to the balance. */
+    public void addTransaction(byte type, long amount, long timestamp) {
+        transactionHistory.add(type, amount, timestamp, balance);
+        historyVersion++;
+        countForDay(type, amount, timestamp);
+    }
+
+    /** Changes with every posting, so a store can tell whether its saved copy is current. */
+    int version() {
+        return historyVersion;
+    }
+
+    /** Cash withdrawn today, in santim. */
+    long withdrawnToday() {
+        return totalsDay == DailyTotals.today() ? withdrawnOnDay : 0;
+    }
+
+    /** Cash deposited today, in santim. */
+    long depositedToday() {
+        return totalsDay == DailyTotals.today() ? depositedOnDay : 0;
+    }
+
+    int totalsDay() {
+        return totalsDay;
+    }
+
+    long withdrawnOnDay() {
+        return withdrawnOnDay;
+    }
+
+    long depositedOnDay() {
+        return depositedOnDay;
+    }
+
+    /** Restores the day totals saved in a checkpoint. */
+    void restoreDayTotals(int day, long withdrawn, long deposited) {
+        totalsDay = day;
+        withdrawnOnDay = withdrawn;
+        depositedOnDay = deposited;
+    }
+
+    /**
+     * Recomputes the day totals from the hot tail of the history, for
+     * accounts converted from accounts.dat, which had none.
+     */
+    void rebuildDayTotals() {
+        TransactionHistory h = transactionHistory;
+        for (int i = 0; i < h.hotCount(); i++) {
+            countForDay(h.type(i), h.amount(i), h.timestamp(i));
+        }
+    }
+
+    boolean withinDailyLimit(long amount) {
+        return amount <= DAILY_WITHDRAWAL_LIMIT - withdrawnToday();
+    }
+
+    private void countForDay(byte type, long amount, long timestamp) {
+        int day = DailyTotals.day(timestamp);
+        if (day < totalsDay) {
+            return;
+        }
+        if (day > totalsDay) {
+            totalsDay = day;
+            withdrawnOnDay = 0;
+            depositedOnDay = 0;
+        }
+        if (type == Transaction.WITHDRAW) {
+            withdrawnOnDay += amount;
+        } else if (type == Transaction.DEPOSIT) {
+            depositedOnDay += amount;
+        }
+    }
+
+    /**
+     * The last {@code n} postings, one line each, oldest first. The text is
+     * cached until the next posting, so asking again costs nothing. The caller
+     * holds the account's stripe, as postings do.
+     */
+    String miniStatement(int n) {
+        int version = historyVersion;
+        MiniStatement cached = miniStatement;
+        if (cached != null && cached.rows == n && cached.version == version) {
+            return cached.text;
+        }
+        StringBuilder sb = new StringBuilder(64 * n);
+        transactionHistory.appendRecent(n, sb);
+        String text = sb.toString();
+        miniStatement = new MiniStatement(n, version, text);
+        return text;
+    }
+
+    /** A cash withdrawal: keeps the minimum balance and the daily withdrawal limit. */
+    public boolean withdraw(long amount) {
+        return withinDailyLimit(amount) && debit(amount);
+    }
+
+    /** Takes money out for a transfer; only the minimum balance applies. */
+    public boolean debit(long amount) {
+        if (amount > 0 && balance - amount >= MIN_BALANCE) {
+            balance -= amount;
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns false, leaving the balance unchanged, if the amount is not positive or would overflow. */
+    public boolean deposit(long amount) {
+        if (amount <= 0) {
+            return false;
+        }
+        try {
+            balance = Money.add(balance, amount);
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies a journaled posting again on recovery. It was accepted when it
+     * was made, so neither the minimum balance nor the daily limit is checked.
+     */
+    void reapply(byte type, long amount) {
+        boolean credit = type == Transaction.DEPOSIT || type == Transaction.TRANSFER_IN;
+        balance = credit ? Money.add(balance, amount) : Money.subtract(balance, amount);
+    }
+}
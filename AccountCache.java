@@ -0,0 +1,383 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The accounts of a {@link MappedAccountStore} that are decoded onto the heap,
+ * keyed by full account number and bounded by their estimated heap size.
+ *
+ * Eviction follows W-TinyLFU: a new entry enters a small LRU window; when it
+ * leaves the window it is kept only if a frequency sketch has seen its key
+ * more often than the coldest entry of the main space, which is split into a
+ * probation and a protected LRU segment. One-off lookups, e.g. a scan of
+ * transfer targets, therefore cannot flush the accounts in daily use.
+ *
+ * Only entries that are neither pinned nor dirty can be evicted. An account is
+ * pinned while a session or an operation holds it, so no one ever works on an
+ * evicted copy, and dirty from its first change until a checkpoint holding that
+ * change is written back ({@link #saved}). Until then the cache may run over
+ * its capacity. Not thread-safe; the store locks each of its segments.
+ */
+final class AccountCache {
+    static final long DEFAULT_CAPACITY = 64L << 20;
+    // Shares of the capacity, in percent: the window, and the protected segment of the main space
+    static final int WINDOW_PERCENT = 1;
+    static final int PROTECTED_PERCENT = 80;
+    // Account object, number and name strings, map entry and node, beside the history
+    static final int ENTRY_OVERHEAD = 320;
+    // Entries that cannot go now are passed over at most this many times per eviction
+    static final int SCAN_LIMIT = 16;
+
+    private static final class Node {
+        final String key;
+        final Account account;
+        int weight;
+        int pins;
+        boolean saved;
+        int savedVersion;
+        Segment segment;
+        Node prev;
+        Node next;
+
+        Node(String key, Account account) {
+            this.key = key;
+            this.account = account;
+        }
+    }
+
+    /** An LRU list, coldest first. */
+    private static final class Segment {
+        Node head;
+        Node tail;
+        long weight;
+
+        void addLast(Node n) {
+            n.segment = this;
+            n.prev = tail;
+            n.next = null;
+            if (tail == null) {
+                head = n;
+            } else {
+                tail.next = n;
+            }
+            tail = n;
+            weight += n.weight;
+        }
+
+        void remove(Node n) {
+            if (n.prev == null) {
+                head = n.next;
+            } else {
+                n.prev.next = n.next;
+            }
+            if (n.next == null) {
+                tail = n.prev;
+            } else {
+                n.next.prev = n.prev;
+            }
+            n.prev = null;
+            n.next = null;
+            n.segment = null;
+            weight -= n.weight;
+        }
+    }
+
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    private long capacity;
+    private FrequencySketch sketch;
+    private int pinned;
+
+    AccountCache(long capacity) {
+        setCapacity(capacity);
+    }
+
+    /** Resizes the cache in bytes; entries over the new size are evicted as far as they can be. */
+    void setCapacity(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        capacity = bytes;
+        sketch = new FrequencySketch(bytes / 1024);
+        evict();
+    }
+
+    /** The account, pinned, or null if it is not resident. */
+    Account acquire(String key) {
+        sketch.increment(key.hashCode());
+        Node n = nodes.get(key);
+        if (n == null) {
+            Metrics.ACCOUNT_CACHE_MISS.increment();
+            return null;
+        }
+        Metrics.ACCOUNT_CACHE_HIT.increment();
+        pin(n);
+        reweigh(n);
+        touch(n);
+        return n.account;
+    }
+
+    boolean contains(String key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * Adds an account that was just decoded from the checkpoint ({@code saved})
+     * or created; {@code pin} pins it for the caller. A second copy of a
+     * resident account would lose the updates of one of them, so that is refused.
+     *
+     * @throws IllegalStateException if an account with the same number is resident
+     */
+    void admit(Account account, boolean saved, boolean pin) {
+        if (nodes.containsKey(account.getAccountNumber())) {
+            throw new IllegalStateException("Account " + account.getAccountNumber() + " is already resident");
+        }
+        Node n = new Node(account.getAccountNumber(), account);
+        n.saved = saved;
+        n.savedVersion = account.version();
+        n.weight = weigh(account);
+        nodes.put(n.key, n);
+        if (pin) {
+            pin(n);
+        }
+        window.addLast(n);
+        evict();
+    }
+
+    /** Ends one {@link #acquire} or pinned {@link #admit} of the account. */
+    void release(Account account) {
+        Node n = nodes.get(account.getAccountNumber());
+        if (n == null || n.account != account || n.pins == 0) {
+            return;
+        }
+        if (--n.pins == 0) {
+            pinned--;
+            evict();
+        }
+    }
+
+    /** Accounts changed since they were last written back, with the versions to pass to {@link #saved}. */
+    List<Account> dirty(List<Integer> versions) {
+        List<Account> dirty = new ArrayList<>();
+        for (Node n : nodes.values()) {
+            int version = n.account.version();
+            if (!n.saved || version != n.savedVersion) {
+                dirty.add(n.account);
+                versions.add(version);
+            }
+        }
+        return dirty;
+    }
+
+    /** Records that {@code version} of the account is in the mapped checkpoint now. */
+    void saved(Account account, int version) {
+        Node n = nodes.get(account.getAccountNumber());
+        if (n != null && n.account == account) {
+            n.saved = true;
+            n.savedVersion = version;
+            reweigh(n);
+        }
+    }
+
+    /** Evicts entries over capacity that may go now, e.g. after {@link #saved}. */
+    void trim() {
+        evict();
+    }
+
+    /** Numbers of the resident accounts. */
+    List<String> keys() {
+        return new ArrayList<>(nodes.keySet());
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    int pinnedCount() {
+        return pinned;
+    }
+
+    /** Estimated heap bytes of the resident accounts. */
+    long weight() {
+        return window.weight + probation.weight + protectedSegment.weight;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    static int weigh(Account a) {
+        return ENTRY_OVERHEAD + 2 * a.getName().length() + a.getTransactionHistory().heapBytes();
+    }
+
+    private void pin(Node n) {
+        if (n.pins++ == 0) {
+            pinned++;
+        }
+    }
+
+    private boolean evictable(Node n) {
+        return n.pins == 0 && n.saved && n.account.version() == n.savedVersion;
+    }
+
+    // Histories grow while no spill file is attached, and the spill index grows with use
+    private void reweigh(Node n) {
+        int w = weigh(n.account);
+        if (w != n.weight) {
+            n.segment.weight += w - n.weight;
+            n.weight = w;
+        }
+    }
+
+    private void touch(Node n) {
+        Segment s = n.segment;
+        s.remove(n);
+        if (s == probation) {
+            protectedSegment.addLast(n);
+            while (protectedSegment.weight > (capacity - windowCapacity()) / 100 * PROTECTED_PERCENT
+                    && protectedSegment.head != n) {
+                Node demoted = protectedSegment.head;
+                protectedSegment.remove(demoted);
+                probation.addLast(demoted);
+            }
+        } else {
+            s.addLast(n);
+        }
+    }
+
+    private long windowCapacity() {
+        return Math.max(1, capacity / 100 * WINDOW_PERCENT);
+    }
+
+    private void evict() {
+        // An entry leaving the window stays only if it is wanted more often than the entry it would push out
+        while (window.weight > windowCapacity()) {
+            Node candidate = window.head;
+            window.remove(candidate);
+            probation.addLast(candidate);
+            if (weight() <= capacity) {
+                continue;
+            }
+            Node victim = coldest(probation, candidate);
+            boolean keepCandidate = !evictable(candidate) || victim != null
+                    && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode());
+            if (keepCandidate) {
+                if (victim != null) {
+                    remove(victim);
+                }
+            } else {
+                remove(candidate);
+            }
+        }
+        while (weight() > capacity) {
+            Node victim = coldest(probation, null);
+            if (victim == null) {
+                victim = coldest(protectedSegment, null);
+            }
+            if (victim == null) {
+                victim = coldest(window, null);
+            }
+            if (victim == null) {
+                // Everything left is pinned or not yet written back; a later release or checkpoint retries
+                return;
+            }
+            remove(victim);
+        }
+    }
+
+    // The coldest evictable entry of the segment. Entries passed over move to the hot end, so they are not
+    // scanned again on the next call.
+    private Node coldest(Segment s, Node except) {
+        Node n = s.head;
+        for (int scanned = 0; n != null && scanned < SCAN_LIMIT; scanned++) {
+            Node next = n.next;
+            if (n != except && evictable(n)) {
+                return n;
+            }
+            if (n != except && next != null) {
+                s.remove(n);
+                s.addLast(n);
+            }
+            n = next;
+        }
+        return null;
+    }
+
+    private void remove(Node n) {
+        n.segment.remove(n);
+        nodes.remove(n.key);
+        Metrics.ACCOUNT_CACHE_EVICTIONS.increment();
+    }
+
+    /**
+     * Count-min sketch of recent access frequency, four 4-bit counters per key
+     * packed in longs. All counters are halved once the number of increments
+     * reaches ten times the table size, so old popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L };
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int length = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 20, expectedEntries)) * 2 - 1);
+            table = new long[length];
+            mask = length - 1;
+            sampleSize = 10 * length;
+        }
+
+        int frequency(int hash) {
+            int h = spread(hash);
+            int min = 15;
+            for (int row = 0; row < 4; row++) {
+                min = Math.min(min, (int) (table[index(h, row)] >>> shift(h, row)) & 15);
+            }
+            return min;
+        }
+
+        void increment(int hash) {
+            int h = spread(hash);
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int i = index(h, row);
+                int shift = shift(h, row);
+                if (((table[i] >>> shift) & 15) < 15) {
+                    table[i] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int h, int row) {
+            long hash = (h + SEEDS[row]) * SEEDS[row];
+            hash += hash >>> 32;
+            return (int) hash & mask;
+        }
+
+        // Each row owns four of the sixteen counters of a long
+        private static int shift(int h, int row) {
+            return ((row << 2) + ((h >>> (row << 3)) & 3)) << 2;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 17;
+            h *= 0xed5ad4bb;
+            h ^= h >>> 11;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary checkpoint format for accounts.
+ *
+ * <pre>
+ * file    := header record* numberTable dailyTotals transferLegs trailer
+ * header  := magic:int version:short reserved:short checkpointSeq:long
+ * record  := length:int crc32:int body
+ * body    := accountNumber:long credential:byte[48] balance:long(santim) nameLen:short name:utf8
+ *            spillHead:long spilledCount:int hotCount:int transaction[hotCount]
+ *            totalsDay:int withdrawnOnDay:long depositedOnDay:long
+ * transaction := type:byte amount:long(santim) timestamp:long balanceAfter:long(santim)
+ * table   := slot[capacity], slot := key:long recordOffset:long (key 0 = empty)
+ * trailer := count:int capacity:int numberTable:long dailyTotals:long transferLegs:long magic:int
+ * </pre>
+ *
+ * The number table is an open-addressing hash table (linear probing) keyed by
+ * account number, so a reader can find a record by probing the mapped file
+ * without building anything on the heap. The credential is a
+ * {@link PinCredential}. Only the hot tail of the transaction history is
+ * stored here; older postings live in the {@link HistorySpillFile} starting at
+ * spillHead. The {@link DailyTotals} and {@link TransferLegs} sections fill
+ * the space between the number table and the trailer.
+ *
+ * Only this version is read. The accounts.dat that the terminal used to
+ * write with Java serialization is converted once by {@link #readLegacy}.
+ */
+final class AccountCodec {
+    static final int MAGIC = 0x41544D42; // "ATMB"
+    static final short VERSION = 6;
+
+    static final int HEADER = 4 + 2 + 2 + 8;
+    static final int TRAILER = 4 + 4 + 8 + 8 + 8 + 4;
+    static final int RECORD_HEADER = 8;
+    static final int SLOT = 16;
+
+    static final class Snapshot {
+        final ArrayList<Account> accounts;
+        final long checkpointSeq;
+        final DailyTotals totals;
+
+        Snapshot(ArrayList<Account> accounts, long checkpointSeq, DailyTotals totals) {
+            this.accounts = accounts;
+            this.checkpointSeq = checkpointSeq;
+            this.totals = totals;
+        }
+    }
+
+    /**
+     * Streams a checkpoint: records first, then the hash table and trailer once
+     * every record offset is known.
+     */
+    static final class Writer {
+        private final DataOutputStream out;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer buf = ByteBuffer.allocate(4096);
+        private long position = HEADER;
+        private int count;
+        private long[] numbers = new long[1024];
+        private long[] offsets = new long[1024];
+
+        Writer(OutputStream out, long checkpointSeq) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            this.out.writeInt(MAGIC);
+            this.out.writeShort(VERSION);
+            this.out.writeShort(0);
+            this.out.writeLong(checkpointSeq);
+        }
+
+        void write(Account a) throws IOException {
+            buf = encode(a, buf);
+            writeRecord(buf.array(), buf.position());
+        }
+
+        /** Copies an already encoded record body, e.g. straight from a mapped checkpoint. */
+        void copy(ByteBuffer body) throws IOException {
+            int length = body.remaining();
+            buf = ensure(buf, length, 0);
+            body.duplicate().get(buf.array(), 0, length);
+            writeRecord(buf.array(), length);
+        }
+
+        private void writeRecord(byte[] body, int length) throws IOException {
+            if (count == numbers.length) {
+                numbers = Arrays.copyOf(numbers, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            ByteBuffer view = ByteBuffer.wrap(body);
+            numbers[count] = view.getLong(0);
+            offsets[count] = position;
+            count++;
+
+            crc.reset();
+            crc.update(body, 0, length);
+            out.writeInt(length);
+            out.writeInt((int) crc.getValue());
+            out.write(body, 0, length);
+            position += RECORD_HEADER + length;
+        }
+
+        void finish() throws IOException {
+            finish(null, null);
+        }
+
+        /** Writes the tables, the daily totals and transfer legs if given, and the trailer. */
+        void finish(DailyTotals totals, TransferLegs legs) throws IOException {
+            int capacity = tableCapacity(count);
+            long numberTable = position;
+            writeTable(numbers, capacity);
+            long totalsSection = position;
+            if (totals != null) {
+                totals.write(out);
+            }
+            long legsSection = out.size();
+            if (legs != null) {
+                legs.write(out);
+            }
+            out.writeInt(count);
+            out.writeInt(capacity);
+            out.writeLong(numberTable);
+            out.writeLong(totalsSection);
+            out.writeLong(legsSection);
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+
+        private void writeTable(long[] keys, int capacity) throws IOException {
+            long[] slots = new long[capacity * 2];
+            int mask = capacity - 1;
+            for (int i = 0; i < count; i++) {
+                int slot = slot(keys[i], mask);
+                while (slots[slot * 2] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot * 2] = keys[i];
+                slots[slot * 2 + 1] = offsets[i];
+            }
+            for (long v : slots) {
+                out.writeLong(v);
+            }
+            position += (long) capacity * SLOT;
+        }
+    }
+
+    private static final int TX_SIZE = 1 + 8 + 8 + 8;
+    private static final Pattern TX_PATTERN = Pattern
+            .compile("\\[(\\d{1,2})/(\\d{1,2})/(\\d{1,4})\\] (Deposited|Withdrawn): (\\d+)\\.(\\d{2}) Birr");
+
+    private AccountCodec() {
+    }
+
+    static void write(OutputStream out, List<Account> accounts, long checkpointSeq) throws IOException {
+        Writer writer = new Writer(out, checkpointSeq);
+        for (Account a : accounts) {
+            writer.write(a);
+        }
+        writer.finish();
+    }
+
+    static Snapshot read(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return read(buf);
+        }
+    }
+
+    /** Decodes every account in a checkpoint. */
+    static Snapshot read(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC) {
+            throw new IOException("Not an account checkpoint file");
+        }
+        short version = buf.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        buf.getShort();
+        long checkpointSeq = buf.getLong();
+        ByteBuffer trailer = readTrailer(buf, start);
+        int count = trailer.getInt();
+        trailer.getInt();
+        trailer.getLong();
+        long totalsSection = trailer.getLong();
+        DailyTotals totals = new DailyTotals();
+        totals.read(buf, start + (int) totalsSection, start + (int) trailer.getLong());
+
+        ArrayList<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer body = readRecord(buf, buf.position());
+            buf.position(buf.position() + RECORD_HEADER + body.limit());
+            accounts.add(decode(body));
+        }
+        return new Snapshot(accounts, checkpointSeq, totals);
+    }
+
+    /** Returns the trailer of a checkpoint, positioned at its first field. */
+    static ByteBuffer readTrailer(ByteBuffer file, int start) throws IOException {
+        int end = file.limit();
+        if (end - start < HEADER + TRAILER || file.getInt(end - 4) != MAGIC) {
+            throw new EOFException("Checkpoint trailer missing (truncated file?)");
+        }
+        ByteBuffer trailer = file.duplicate();
+        trailer.position(end - TRAILER);
+        return trailer;
+    }
+
+    /**
+     * Verifies the record at {@code offset} and returns a view of its body.
+     */
+    static ByteBuffer readRecord(ByteBuffer file, int offset) throws IOException {
+        if (offset < 0 || offset + RECORD_HEADER > file.limit()) {
+            throw new EOFException("Record offset " + offset + " outside checkpoint");
+        }
+        int length = file.getInt(offset);
+        int checksum = file.getInt(offset + 4);
+        if (length < 0 || offset + RECORD_HEADER + length > file.limit()) {
+            throw new EOFException("Checkpoint truncated in record at " + offset);
+        }
+        ByteBuffer body = file.duplicate();
+        body.position(offset + RECORD_HEADER);
+        body.limit(offset + RECORD_HEADER + length);
+        body = body.slice();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in record at " + offset);
+        }
+        return body;
+    }
+
+    static int tableCapacity(int count) {
+        int capacity = 16;
+        while (capacity * 0.7 < count) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int slot(long key, int mask) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /** Encodes one account body into {@code buf}, growing it if needed. */
+    static ByteBuffer encode(Account a, ByteBuffer buf) {
+        byte[] name = a.getName().getBytes(StandardCharsets.UTF_8);
+        TransactionHistory history = a.getTransactionHistory();
+        int hot = history.hotCount();
+        buf = ensure(buf, 8 + PinCredential.ENCODED_BYTES + 8 + 2 + name.length + 8 + 4 + 4 + hot * TX_SIZE + 4 + 8 + 8, 0);
+        buf.clear();
+        buf.putLong(Long.parseLong(a.getAccountNumber()));
+        a.getCredential().write(buf);
+        buf.putLong(a.getBalance());
+        buf.putShort((short) name.length);
+        buf.put(name);
+        buf.putLong(history.spillHead());
+        buf.putInt(history.spilledCount());
+        buf.putInt(hot);
+        for (int i = 0; i < hot; i++) {
+            buf.put(history.type(i));
+            buf.putLong(history.amount(i));
+            buf.putLong(history.timestamp(i));
+            buf.putLong(history.balanceAfter(i));
+        }
+        buf.putInt(a.totalsDay());
+        buf.putLong(a.withdrawnOnDay());
+        buf.putLong(a.depositedOnDay());
+        return buf;
+    }
+
+    static Account decode(ByteBuffer body) {
+        String accountNumber = Long.toString(body.getLong());
+        PinCredential credential = PinCredential.read(body);
+        long balance = body.getLong();
+        byte[] nameBytes = new byte[body.getShort()];
+        body.get(nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        TransactionHistory history = new TransactionHistory(body.getLong(), body.getInt());
+        int hot = body.getInt();
+        for (int i = 0; i < hot; i++) {
+            history.add(body.get(), body.getLong(), body.getLong(), body.getLong());
+        }
+        Account a = new Account(name, accountNumber.substring(4), credential, balance, history);
+        a.restoreDayTotals(body.getInt(), body.getLong(), body.getLong());
+        return a;
+    }
+
+    /**
+     * Collects history entries from the strings of accounts.dat. The resulting
+     * balance of each posting is reconstructed backwards from the final balance.
+     */
+    private static final class LegacyEntries {
+        private final byte[] types;
+        private final long[] amounts;
+        private final long[] timestamps;
+        private int count;
+        private int skipped;
+
+        LegacyEntries(int capacity) {
+            types = new byte[capacity];
+            amounts = new long[capacity];
+            timestamps = new long[capacity];
+        }
+
+        void parse(String entry) {
+            Matcher m = TX_PATTERN.matcher(entry);
+            if (!m.matches()) {
+                skipped++;
+                return;
+            }
+            add(m.group(4).charAt(0) == 'D' ? Transaction.DEPOSIT : Transaction.WITHDRAW,
+                    Long.parseLong(m.group(5)) * 100 + Long.parseLong(m.group(6)),
+                    Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+        }
+
+        void add(byte type, long amount, int day, int month, int year) {
+            long timestamp;
+            try {
+                timestamp = Transaction.fromEthiopianDate(day, month, year);
+            } catch (DateTimeException e) {
+                skipped++;
+                return;
+            }
+            types[count] = type;
+            amounts[count] = amount;
+            timestamps[count] = timestamp;
+            count++;
+        }
+
+        TransactionHistory toHistory(long balance) {
+            if (skipped > 0) {
+                System.err.println("Dropped " + skipped + " unrecognised history entries during conversion");
+            }
+            long[] balances = new long[count];
+            long running = balance;
+            for (int i = count - 1; i >= 0; i--) {
+                balances[i] = running;
+                running -= Transaction.signedAmount(types[i], amounts[i]);
+            }
+            TransactionHistory history = new TransactionHistory();
+            for (int i = 0; i < count; i++) {
+                history.add(types[i], amounts[i], timestamps[i], balances[i]);
+            }
+            return history;
+        }
+    }
+
+    /** The shape of Account as written by Java serialization in accounts.dat. */
+    static final class LegacyAccount implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String name;
+        String accountNumber;
+        String pin;
+        double balance;
+        List<String> transactionHistory;
+
+        LegacyAccount(String name, String accountNumber, String pin, double balance, List<String> history) {
+            this.name = name;
+            this.accountNumber = accountNumber;
+            this.pin = pin;
+            this.balance = balance;
+            this.transactionHistory = history;
+        }
+
+        Account toAccount() {
+            LegacyEntries entries = new LegacyEntries(transactionHistory.size());
+            for (String entry : transactionHistory) {
+                entries.parse(entry);
+            }
+            long santim = Money.fromDouble(balance);
+            Account a = new Account(name, accountNumber, PinCredential.create(pin), santim, entries.toHistory(santim));
+            a.rebuildDayTotals();
+            return a;
+        }
+    }
+
+    /** Reads serialized "Account" objects into {@link LegacyAccount}, which has the same fields. */
+    private static final class LegacyInputStream extends ObjectInputStream {
+        LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            if (desc.getName().equals("Account")) {
+                return ObjectStreamClass.lookup(LegacyAccount.class);
+            }
+            return desc;
+        }
+    }
+
+    /**
+     * Reads an accounts.dat written with Java serialization by the terminal
+     * before the checkpoint format. The PINs are hashed in parallel, as
+     * hashing is slow.
+     */
+    static Snapshot readLegacy(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path);
+                ObjectInputStream ois = new LegacyInputStream(in)) {
+            Object obj = ois.readObject();
+            if (!(obj instanceof ArrayList)) {
+                throw new IOException("Unexpected legacy content: " + obj.getClass().getName());
+            }
+            ArrayList<Account> accounts = new ArrayList<>();
+            ((ArrayList<?>) obj).parallelStream().map(o -> ((LegacyAccount) o).toAccount())
+                    .forEachOrdered(accounts::add);
+            return new Snapshot(accounts, 0, new DailyTotals());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buf, int needed, int position) {
+        if (buf.capacity() - position >= needed) {
+            return buf;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, position + needed));
+        bigger.put(buf.array(), 0, position);
+        return bigger;
+    }
+}
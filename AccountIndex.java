@@ -0,0 +1,40 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash index over the loaded accounts, keyed by full account number
+ * ("1000" + number). Every path that adds an account to the system
+ * (creation, checkpoint load, journal replay) goes through {@link #add}.
+ */
+class AccountIndex {
+    private final Map<String, Account> byNumber;
+
+    AccountIndex(int expectedSize) {
+        int capacity = Math.max(16, (int) (expectedSize / 0.75f) + 1);
+        byNumber = new HashMap<>(capacity);
+    }
+
+    AccountIndex(Collection<Account> accounts) {
+        this(accounts.size());
+        for (Account a : accounts) {
+            add(a);
+        }
+    }
+
+    void add(Account a) {
+        byNumber.put(a.getAccountNumber(), a);
+    }
+
+    Account findByNumber(String accNum) {
+        return byNumber.get(accNum);
+    }
+
+    boolean containsNumber(String accNum) {
+        return byNumber.containsKey(accNum);
+    }
+
+    int size() {
+        return byNumber.size();
+    }
+}
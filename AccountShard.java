@@ -0,0 +1,32 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * One partition of the accounts, as seen by a {@link ShardedATMService}
+ * coordinator. Besides the terminal operations a shard only creates accounts
+ * whose numbers route to it, and lets the coordinator move money across
+ * shards by account number, one leg at a time. Each leg names the
+ * coordinator's transfer, and repeating a leg of the same transfer changes
+ * nothing, so an unsettled transfer can be replayed.
+ */
+interface AccountShard extends ATMService, Closeable {
+
+    int shardIndex() throws IOException;
+
+    int shardCount() throws IOException;
+
+    boolean hasAccount(String accountNumber) throws IOException;
+
+    /**
+     * Debits {@code fromAccount} as a transfer to {@code toAccount} on another
+     * shard. Returns false if the minimum balance would be broken, the account
+     * is not here or this transfer's debit was already refunded.
+     */
+    boolean transferOut(long transferId, String fromAccount, String toAccount, long amount) throws IOException;
+
+    /**
+     * Credits {@code toAccount}, or refunds it as the source of the transfer;
+     * false if it is not here or would overflow.
+     */
+    boolean transferIn(long transferId, String toAccount, String fromAccount, long amount) throws IOException;
+}
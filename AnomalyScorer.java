@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Scores each cash withdrawal from 0 to 100 by how unusual it is for the
+ * account, from rolling statistics that every posting updates:
+ *
+ * <ul>
+ * <li>amount: how many standard deviations the log of the amount lies above a
+ * moving mean of the account's earlier withdrawals (up to 50 points);</li>
+ * <li>velocity: withdrawals in roughly the last hour, as an exponentially
+ * decaying count with a half-life of {@link #VELOCITY_HALF_LIFE} (up to 45);</li>
+ * <li>hour: how rarely the account is used at this time of day, from a
+ * histogram of its postings in two-hour buckets (up to 35).</li>
+ * </ul>
+ *
+ * A score of {@link #FLAG} or more is reported, one of {@link #HOLD} or more
+ * stops the withdrawal. No single signal can hold a withdrawal on its own.
+ *
+ * The state is a set-associative table of primitive columns, about 50 bytes
+ * per account, with the least recently seen account of a set giving way. It is
+ * only a cache of what the history says: an account that is not in the table
+ * is seeded from the hot tail of its history, so a restart, an eviction or a
+ * journal replay loses nothing that matters. Sets are chosen with the spread
+ * of {@link TransactionEngine}, and there are at least as many sets as lock
+ * stripes, so every set is only ever touched under one stripe and the table
+ * needs no lock of its own.
+ */
+final class AnomalyScorer {
+    static final int FLAG = 50;
+    static final int HOLD = 80;
+    static final int DEFAULT_SETS = 16384;
+    static final int WAYS = 4;
+    static final long VELOCITY_HALF_LIFE = 60 * 60 * 1000L;
+    // Withdrawals and postings seen before the amount and hour signals count
+    static final int MIN_WITHDRAWALS = 5;
+    static final int MIN_POSTINGS = 10;
+    // Postings of the hot tail an account is seeded from
+    static final int SEED_POSTINGS = TransactionHistory.HOT_CAPACITY;
+
+    // Newest withdrawal's weight in the moving mean and variance, once there are 1 / ALPHA of them
+    private static final double ALPHA = 0.1;
+    // A spread of log amounts below this (about 25%) would make every change look extreme
+    private static final double MIN_VARIANCE = 0.0625;
+    // Twelve two-hour buckets of five-bit counters in one long; all are halved when one is full
+    private static final int BUCKET_BITS = 5;
+    private static final long BUCKET_MAX = (1 << BUCKET_BITS) - 1;
+    private static final int BUCKETS = 12;
+    private static final long HALF_MASK = halfMask();
+    private static final long EMPTY = -1;
+
+    /** Receives the withdrawals a {@link #rescore} finds at or above {@link #FLAG}. */
+    interface Finding {
+        void found(long timestamp, long amount, int score) throws IOException;
+    }
+
+    private final int mask;
+    private final long[] keys;
+    private final long[] seen;
+    private final long[] lastWithdrawal;
+    private final float[] velocity;
+    private final float[] mean;
+    private final float[] variance;
+    private final int[] withdrawals;
+    private final long[] hours;
+
+    AnomalyScorer() {
+        this(DEFAULT_SETS);
+    }
+
+    /** @param sets a power of two; at least {@link TransactionEngine#STRIPES} when shared by an engine */
+    AnomalyScorer(int sets) {
+        if (sets <= 0 || (sets & (sets - 1)) != 0) {
+            throw new IllegalArgumentException("Set count must be a power of two");
+        }
+        mask = sets - 1;
+        int slots = sets * WAYS;
+        keys = new long[slots];
+        Arrays.fill(keys, EMPTY);
+        seen = new long[slots];
+        lastWithdrawal = new long[slots];
+        velocity = new float[slots];
+        mean = new float[slots];
+        variance = new float[slots];
+        withdrawals = new int[slots];
+        hours = new long[slots];
+    }
+
+    /**
+     * The score a withdrawal of {@code amount} at {@code timestamp} would get
+     * now; the state is not changed. Call with the account's stripe held.
+     */
+    int score(Account acc, long amount, long timestamp) {
+        long start = Metrics.start();
+        int score = score(slot(acc, timestamp), amount, timestamp);
+        Metrics.ANOMALY_SCORE.stop(start);
+        return score;
+    }
+
+    /**
+     * Takes a posting into the account's statistics. Call with the account's
+     * stripe held, after the posting was added to the history.
+     */
+    void observe(Account acc, byte type, long amount, long timestamp) {
+        int i = find(acc);
+        if (i < 0) {
+            // Seeding reads the history, which already holds this posting
+            slot(acc, timestamp);
+            return;
+        }
+        seen[i] = timestamp;
+        update(i, type, amount, timestamp);
+    }
+
+    /**
+     * Scores every withdrawal of a complete history in order, each against the
+     * statistics of the postings before it, starting from nothing. Only for a
+     * scorer of the calling thread's own.
+     *
+     * @return the number of withdrawals scored
+     */
+    int rescore(Account acc, Finding sink) throws IOException {
+        int slot = find(acc);
+        if (slot < 0) {
+            slot = victim(acc);
+        }
+        reset(slot, key(acc));
+        int[] scored = new int[1];
+        int i = slot;
+        acc.getTransactionHistory().forEach((type, amount, timestamp, balanceAfter) -> {
+            if (type == Transaction.WITHDRAW) {
+                int s = score(i, amount, timestamp);
+                scored[0]++;
+                if (s >= FLAG) {
+                    sink.found(timestamp, amount, s);
+                }
+            }
+            update(i, type, amount, timestamp);
+        });
+        return scored[0];
+    }
+
+    private int score(int i, long amount, long timestamp) {
+        double points = 0;
+        if (withdrawals[i] >= MIN_WITHDRAWALS && amount > 0) {
+            double z = (Math.log(amount) - mean[i]) / Math.sqrt(Math.max(variance[i], MIN_VARIANCE));
+            points += clamp((z - 2) * 20, 50);
+        }
+        double recent = decayed(i, timestamp) + 1;
+        points += clamp((recent - 3) * 15, 45);
+        long h = hours[i];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += (h >>> (b * BUCKET_BITS)) & BUCKET_MAX;
+        }
+        if (total >= MIN_POSTINGS) {
+            long here = (h >>> (bucket(timestamp) * BUCKET_BITS)) & BUCKET_MAX;
+            points += here == 0 ? 35 : here * 20 < total ? 20 : 0;
+        }
+        return (int) Math.min(100, points);
+    }
+
+    private void update(int i, byte type, long amount, long timestamp) {
+        if (type == Transaction.TRANSFER_IN) {
+            // Money arriving says nothing about how the owner uses the account
+            return;
+        }
+        int shift = bucket(timestamp) * BUCKET_BITS;
+        if (((hours[i] >>> shift) & BUCKET_MAX) == BUCKET_MAX) {
+            hours[i] = (hours[i] >>> 1) & HALF_MASK;
+        }
+        hours[i] += 1L << shift;
+        if (type != Transaction.WITHDRAW || amount <= 0) {
+            return;
+        }
+        velocity[i] = (float) (decayed(i, timestamp) + 1);
+        lastWithdrawal[i] = timestamp;
+        // Exponentially weighted mean and variance, a plain average while there are few withdrawals
+        int n = withdrawals[i] < Integer.MAX_VALUE ? ++withdrawals[i] : withdrawals[i];
+        double alpha = Math.max(ALPHA, 1.0 / n);
+        double x = Math.log(amount);
+        double diff = x - mean[i];
+        double step = alpha * diff;
+        mean[i] += (float) step;
+        variance[i] = (float) ((1 - alpha) * (variance[i] + diff * step));
+    }
+
+    private double decayed(int i, long timestamp) {
+        if (velocity[i] == 0) {
+            return 0;
+        }
+        long age = Math.max(0, timestamp - lastWithdrawal[i]);
+        return velocity[i] * Math.pow(0.5, age / (double) VELOCITY_HALF_LIFE);
+    }
+
+    // The account's slot, claimed and seeded from its history if it has none
+    private int slot(Account acc, long timestamp) {
+        int i = find(acc);
+        if (i < 0) {
+            i = victim(acc);
+            reset(i, key(acc));
+            TransactionHistory h = acc.getTransactionHistory();
+            for (int j = Math.max(0, h.hotCount() - SEED_POSTINGS); j < h.hotCount(); j++) {
+                update(i, h.type(j), h.amount(j), h.timestamp(j));
+            }
+        }
+        seen[i] = timestamp;
+        return i;
+    }
+
+    private int find(Account acc) {
+        long key = key(acc);
+        int base = set(acc) * WAYS;
+        for (int w = 0; w < WAYS; w++) {
+            if (keys[base + w] == key) {
+                return base + w;
+            }
+        }
+        return -1;
+    }
+
+    // An empty way of the account's set, else the one seen longest ago
+    private int victim(Account acc) {
+        int base = set(acc) * WAYS;
+        int oldest = base;
+        for (int w = 0; w < WAYS; w++) {
+            if (keys[base + w] == EMPTY) {
+                return base + w;
+            }
+            if (seen[base + w] < seen[oldest]) {
+                oldest = base + w;
+            }
+        }
+        return oldest;
+    }
+
+    // The low bits are the account's stripe; the rest are mixed again, as the spread alone clusters similar numbers
+    private int set(Account acc) {
+        int h = TransactionEngine.spread(acc);
+        int rest = (h * 0x9e3779b9) >>> 8;
+        return (rest * TransactionEngine.STRIPES | h & (TransactionEngine.STRIPES - 1)) & mask;
+    }
+
+    private void reset(int i, long key) {
+        keys[i] = key;
+        lastWithdrawal[i] = 0;
+        velocity[i] = 0;
+        mean[i] = 0;
+        variance[i] = 0;
+        withdrawals[i] = 0;
+        hours[i] = 0;
+    }
+
+    private static long key(Account acc) {
+        return Long.parseLong(acc.getAccountNumber());
+    }
+
+    private static int bucket(long timestamp) {
+        return Math.min(23, DailyTotals.hour(timestamp)) / 2;
+    }
+
+    // The low four bits of every bucket, so a shifted counter loses the bit of its neighbour
+    private static long halfMask() {
+        long m = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            m |= (BUCKET_MAX >>> 1) << (b * BUCKET_BITS);
+        }
+        return m;
+    }
+
+    private static double clamp(double points, double max) {
+        return Math.max(0, Math.min(max, points));
+    }
+}
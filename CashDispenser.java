@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The note cassettes of one terminal. A withdrawal first {@link #reserve
+ * reserves} the notes it will pay out, so an amount the cassettes cannot make
+ * up is refused before the account is debited, and then either {@link #paid
+ * pays} them or {@link #release releases} them again.
+ *
+ * Notes are chosen to need as few as possible, except that a note from a
+ * cassette at or below its low level counts as {@link #LOW_NOTE_COST} notes:
+ * with the 200s running low, 400 Birr comes as four 100s. The best choice for
+ * every amount up to the daily withdrawal limit is worked out in one pass over
+ * the cassettes (a bounded knapsack over multiples of the smallest note) and
+ * kept while it stays right, so a check is usually a table lookup. Paying out
+ * only takes notes away, and the best choice from the larger stock the table
+ * assumed is still the best one if the notes for it are still there; the table
+ * is rebuilt only when they are not, when a cassette holds more notes than the
+ * table assumed, or when a cassette crosses its low level.
+ *
+ * The inventory is kept in a text file, one cassette per line:
+ *
+ * <pre>
+ * denomination count capacity     e.g. "200 1500 2000", denomination in Birr
+ * </pre>
+ */
+final class CashDispenser {
+    static final long[] DEFAULT_DENOMINATIONS = { 200, 100, 50, 10 };
+    static final int DEFAULT_CAPACITY = 2000;
+    static final int LOW_NOTE_COST = 3;
+
+    private static final int NONE = Integer.MAX_VALUE;
+
+    /** Notes taken from each cassette, in cassette order. */
+    static final class Plan {
+        final long amount;
+        final int[] notes;
+
+        Plan(long amount, int[] notes) {
+            this.amount = amount;
+            this.notes = notes;
+        }
+    }
+
+    private final Path file;
+    // Denominations in santim, largest first
+    private final long[] denominations;
+    private final int[] capacities;
+    private final int[] counts;
+    private final long unit;
+    private final int maxUnits;
+
+    // Best weighted note count per multiple of unit, and which split pieces were used
+    private int[] cost;
+    private boolean[][] took;
+    private int[] pieceCassette;
+    private int[] pieceNotes;
+    // The usable notes per cassette and the low levels the table was built for
+    private int[] assumed;
+    private boolean[] assumedLow;
+
+    CashDispenser(Path file, long[] denominations, int[] counts, int[] capacities) {
+        this.file = file;
+        this.denominations = denominations;
+        this.counts = counts;
+        this.capacities = capacities;
+        long g = 0;
+        for (long d : denominations) {
+            g = gcd(g, d);
+        }
+        this.unit = g;
+        this.maxUnits = (int) (Account.DAILY_WITHDRAWAL_LIMIT / unit);
+    }
+
+    /** Loads the cassettes from {@code file}; without one they start full with the default notes. */
+    static CashDispenser load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            int n = DEFAULT_DENOMINATIONS.length;
+            long[] denominations = new long[n];
+            int[] counts = new int[n];
+            int[] capacities = new int[n];
+            for (int i = 0; i < n; i++) {
+                denominations[i] = Money.ofBirr(DEFAULT_DENOMINATIONS[i]);
+                counts[i] = DEFAULT_CAPACITY;
+                capacities[i] = DEFAULT_CAPACITY;
+            }
+            return new CashDispenser(file, denominations, counts, capacities);
+        }
+        List<long[]> cassettes = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                long[] c = { Money.ofBirr(Long.parseLong(parts[0])), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]) };
+                if (c[0] <= 0 || c[1] < 0 || c[2] < c[1]) {
+                    throw new NumberFormatException();
+                }
+                cassettes.add(c);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Bad cassette line in " + file + ": " + line);
+            }
+        }
+        if (cassettes.isEmpty()) {
+            throw new IOException("No cassettes in " + file);
+        }
+        cassettes.sort((a, b) -> Long.compare(b[0], a[0]));
+        int n = cassettes.size();
+        long[] denominations = new long[n];
+        int[] counts = new int[n];
+        int[] capacities = new int[n];
+        for (int i = 0; i < n; i++) {
+            denominations[i] = cassettes.get(i)[0];
+            counts[i] = (int) cassettes.get(i)[1];
+            capacities[i] = (int) cassettes.get(i)[2];
+        }
+        return new CashDispenser(file, denominations, counts, capacities);
+    }
+
+    /** True if the notes in the cassettes can make up {@code amount} (santim) now. */
+    synchronized boolean canDispense(long amount) {
+        return plan(amount) != null;
+    }
+
+    /**
+     * Takes the notes for {@code amount} out of the cassettes, or returns null
+     * if they cannot make it up.
+     */
+    synchronized Plan reserve(long amount) {
+        long start = Metrics.start();
+        Plan p = plan(amount);
+        Metrics.DISPENSE_PLAN.stop(start);
+        if (p == null) {
+            Metrics.WITHDRAW_UNDISPENSABLE.increment();
+            return null;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= p.notes[i];
+        }
+        return p;
+    }
+
+    /** Puts reserved notes back, e.g. because the debit was refused. */
+    synchronized void release(Plan p) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += p.notes[i];
+        }
+    }
+
+    /** Records that reserved notes were paid out: saves the inventory and raises low-cash alerts. */
+    synchronized void paid(Plan p) {
+        for (int i = 0; i < counts.length; i++) {
+            if (p.notes[i] > 0 && counts[i] <= lowLevel(i) && counts[i] + p.notes[i] > lowLevel(i)) {
+                Metrics.CASH_LOW_ALERTS.increment();
+                System.err.println("Low cash: " + denominations[i] / Money.SANTIM_PER_BIRR + " Birr cassette has "
+                        + counts[i] + " of " + capacities[i] + " notes left");
+            }
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            Metrics.CASSETTE_ERRORS.increment();
+            System.err.println("Error saving cassettes: " + e.getMessage());
+        }
+    }
+
+    /** Notes left per cassette, in the order of {@link #denominations()}. */
+    synchronized int[] counts() {
+        return counts.clone();
+    }
+
+    long[] denominations() {
+        return denominations.clone();
+    }
+
+    /** The smallest note; every amount paid out is a multiple of it. */
+    long unit() {
+        return unit;
+    }
+
+    /** e.g. "2 x 200, 1 x 50 Birr" */
+    String describe(Plan p) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < p.notes.length; i++) {
+            if (p.notes[i] > 0) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(p.notes[i]).append(" x ")
+                        .append(denominations[i] / Money.SANTIM_PER_BIRR);
+            }
+        }
+        return sb.append(" Birr").toString();
+    }
+
+    private int lowLevel(int cassette) {
+        return capacities[cassette] / 10;
+    }
+
+    private Plan plan(long amount) {
+        if (amount <= 0 || amount % unit != 0 || amount / unit > maxUnits) {
+            return null;
+        }
+        if (stale()) {
+            rebuild();
+        }
+        int target = (int) (amount / unit);
+        // Impossible from the assumed stock means impossible from what is left of it
+        if (cost[target] == NONE) {
+            return null;
+        }
+        int[] notes = notes(target);
+        for (int i = 0; i < notes.length; i++) {
+            if (notes[i] > counts[i]) {
+                rebuild();
+                if (cost[target] == NONE) {
+                    return null;
+                }
+                notes = notes(target);
+                break;
+            }
+        }
+        return new Plan(amount, notes);
+    }
+
+    private int[] notes(int target) {
+        int[] notes = new int[denominations.length];
+        for (int k = pieceNotes.length - 1, u = target; k >= 0; k--) {
+            if (took[k][u]) {
+                notes[pieceCassette[k]] += pieceNotes[k];
+                u -= (int) (pieceNotes[k] * denominations[pieceCassette[k]] / unit);
+            }
+        }
+        return notes;
+    }
+
+    // Notes more than one withdrawal can use do not change the table
+    private int usable(int cassette) {
+        return Math.min(counts[cassette], maxUnits / (int) (denominations[cassette] / unit));
+    }
+
+    private boolean stale() {
+        if (cost == null) {
+            return true;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (usable(i) > assumed[i] || (counts[i] <= lowLevel(i)) != assumedLow[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Bounded knapsack: each cassette is split into pieces of 1, 2, 4, ... notes, each used at most once
+    private void rebuild() {
+        List<int[]> pieces = new ArrayList<>();
+        assumed = new int[denominations.length];
+        assumedLow = new boolean[denominations.length];
+        for (int i = 0; i < denominations.length; i++) {
+            assumed[i] = usable(i);
+            assumedLow[i] = counts[i] <= lowLevel(i);
+            int left = assumed[i];
+            for (int n = 1; left > 0; n *= 2) {
+                int take = Math.min(n, left);
+                pieces.add(new int[] { i, take });
+                left -= take;
+            }
+        }
+        int p = pieces.size();
+        pieceCassette = new int[p];
+        pieceNotes = new int[p];
+        took = new boolean[p][maxUnits + 1];
+        cost = new int[maxUnits + 1];
+        Arrays.fill(cost, NONE);
+        cost[0] = 0;
+        for (int k = 0; k < p; k++) {
+            int i = pieces.get(k)[0];
+            int n = pieces.get(k)[1];
+            pieceCassette[k] = i;
+            pieceNotes[k] = n;
+            int size = (int) (n * denominations[i] / unit);
+            int weight = n * (counts[i] <= lowLevel(i) ? LOW_NOTE_COST : 1);
+            for (int u = maxUnits; u >= size; u--) {
+                int before = cost[u - size];
+                if (before != NONE && before + weight < cost[u]) {
+                    cost[u] = before + weight;
+                    took[k][u] = true;
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write("# denomination count capacity\n");
+            for (int i = 0; i < denominations.length; i++) {
+                out.write(denominations[i] / Money.SANTIM_PER_BIRR + " " + counts[i] + " " + capacities[i] + "\n");
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,84 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks an account number and PIN against the account's {@link PinCredential}.
+ * Deriving the PIN hash is slow by design, so successful checks are remembered
+ * in a fixed-size table with one slot per account-number hash: a slot holds
+ * the credential it was checked against and an HMAC of the PIN under a key
+ * that only exists in this process. A repeat login then costs one HMAC, no
+ * PIN is kept in memory, and a new credential for the account simply misses.
+ * Failed checks are never cached.
+ */
+final class CredentialVerifier {
+    static final int SLOTS = 4096;
+
+    private static final class Entry {
+        final String accountNumber;
+        final PinCredential credential;
+        final byte[] tag;
+
+        Entry(String accountNumber, PinCredential credential, byte[] tag) {
+            this.accountNumber = accountNumber;
+            this.credential = credential;
+            this.tag = tag;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(SLOTS);
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    CredentialVerifier() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    /**
+     * True if {@code pin} is the PIN of the account; {@code credential} is null
+     * when no such account exists, which takes as long as a wrong PIN.
+     */
+    boolean verify(String accountNumber, PinCredential credential, String pin) {
+        if (credential == null) {
+            PinCredential.NONE.matches(pin);
+            return false;
+        }
+        byte[] tag = tag(accountNumber, pin);
+        int slot = accountNumber.hashCode() & (SLOTS - 1);
+        Entry e = entries.get(slot);
+        if (e != null && e.credential == credential && e.accountNumber.equals(accountNumber)
+                && MessageDigest.isEqual(e.tag, tag)) {
+            Metrics.CREDENTIAL_CACHE_HIT.increment();
+            return true;
+        }
+        Metrics.CREDENTIAL_CACHE_MISS.increment();
+        if (!credential.matches(pin)) {
+            return false;
+        }
+        entries.set(slot, new Entry(accountNumber, credential, tag));
+        return true;
+    }
+
+    private byte[] tag(String accountNumber, String pin) {
+        Mac mac = macs.get();
+        mac.update(accountNumber.getBytes(StandardCharsets.US_ASCII));
+        mac.update((byte) ':');
+        return mac.doFinal(pin.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
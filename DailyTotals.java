@@ -0,0 +1,179 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number and sum of postings per calendar day and operation for all accounts
+ * of one store, kept for the last {@link #DAYS} days. Every posting updates it
+ * in O(1) without a lock. The totals are written into each checkpoint and the
+ * journal replay adds the postings made since, so they survive a restart.
+ *
+ * <pre>
+ * section := day* ; day := epochDay:int (count:long amount:long)[4], one pair per posting type
+ * </pre>
+ */
+final class DailyTotals {
+    static final int DAYS = 32;
+    private static final int TYPES = 4;
+    private static final int DAY_SIZE = 4 + TYPES * 16;
+
+    private static final class Day {
+        final int day;
+        final LongAdder[] counts = new LongAdder[TYPES + 1];
+        final LongAdder[] amounts = new LongAdder[TYPES + 1];
+
+        Day(int day) {
+            this.day = day;
+            for (int t = 1; t <= TYPES; t++) {
+                counts[t] = new LongAdder();
+                amounts[t] = new LongAdder();
+            }
+        }
+    }
+
+    // The local day most timestamps fall into, so day() rarely touches java.time
+    private static final class Window {
+        final long start;
+        final long end;
+        final int day;
+
+        Window(long start, long end, int day) {
+            this.start = start;
+            this.end = end;
+            this.day = day;
+        }
+    }
+
+    private static volatile Window window = new Window(0, 0, 0);
+
+    private final AtomicReferenceArray<Day> days = new AtomicReferenceArray<>(DAYS);
+
+    /** Local calendar day of an epoch millisecond timestamp, as days since 1970-01-01. */
+    static int day(long timestamp) {
+        Window w = window;
+        if (timestamp >= w.start && timestamp < w.end) {
+            return w.day;
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate date = Instant.ofEpochMilli(timestamp).atZone(zone).toLocalDate();
+        w = new Window(date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(), (int) date.toEpochDay());
+        window = w;
+        return w.day;
+    }
+
+    /**
+     * Hours since local midnight of an epoch millisecond timestamp, 0 to 23 (24
+     * at the end of a day that is longer for a clock change). Only a later day
+     * replaces the cached one, so scoring old postings does not evict today.
+     */
+    static int hour(long timestamp) {
+        Window w = window;
+        if (timestamp >= w.end) {
+            day(timestamp);
+            w = window;
+        }
+        if (timestamp >= w.start && timestamp < w.end) {
+            return (int) ((timestamp - w.start) / 3_600_000);
+        }
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()).getHour();
+    }
+
+    static int today() {
+        return day(System.currentTimeMillis());
+    }
+
+    /** Counts one posting; postings on days older than the window are ignored. */
+    void add(byte type, long amount, long timestamp) {
+        if (type < 1 || type > TYPES) {
+            return;
+        }
+        Day d = slot(day(timestamp));
+        if (d != null) {
+            d.counts[type].increment();
+            d.amounts[type].add(amount);
+        }
+    }
+
+    long count(int day, byte type) {
+        Day d = days.get(day & (DAYS - 1));
+        return d == null || d.day != day ? 0 : d.counts[type].sum();
+    }
+
+    /** Sum of the amounts posted on {@code day}, in santim. */
+    long amount(int day, byte type) {
+        Day d = days.get(day & (DAYS - 1));
+        return d == null || d.day != day ? 0 : d.amounts[type].sum();
+    }
+
+    private Day slot(int day) {
+        int i = day & (DAYS - 1);
+        Day d = days.get(i);
+        if (d != null && d.day == day) {
+            return d;
+        }
+        synchronized (this) {
+            d = days.get(i);
+            if (d == null || d.day < day) {
+                d = new Day(day);
+                days.set(i, d);
+            }
+            return d.day == day ? d : null;
+        }
+    }
+
+    /** A detached copy of the current totals, for a checkpoint taken while postings continue. */
+    DailyTotals copy() {
+        DailyTotals copy = new DailyTotals();
+        for (int i = 0; i < DAYS; i++) {
+            Day d = days.get(i);
+            if (d == null) {
+                continue;
+            }
+            Day c = new Day(d.day);
+            for (int t = 1; t <= TYPES; t++) {
+                c.counts[t].add(d.counts[t].sum());
+                c.amounts[t].add(d.amounts[t].sum());
+            }
+            copy.days.set(i, c);
+        }
+        return copy;
+    }
+
+    /** Writes the checkpoint section from a {@link #copy} or while no posting is in progress. */
+    void write(DataOutputStream out) throws IOException {
+        for (int i = 0; i < DAYS; i++) {
+            Day d = days.get(i);
+            if (d == null) {
+                continue;
+            }
+            out.writeInt(d.day);
+            for (int t = 1; t <= TYPES; t++) {
+                out.writeLong(d.counts[t].sum());
+                out.writeLong(d.amounts[t].sum());
+            }
+        }
+    }
+
+    /** Adds the section between {@code from} and {@code to} of a mapped checkpoint. */
+    void read(ByteBuffer file, int from, int to) throws IOException {
+        if ((to - from) % DAY_SIZE != 0) {
+            throw new IOException("Corrupt daily totals in checkpoint");
+        }
+        for (int at = from; at < to; at += DAY_SIZE) {
+            Day d = slot(file.getInt(at));
+            if (d == null) {
+                continue;
+            }
+            for (int t = 1; t <= TYPES; t++) {
+                d.counts[t].add(file.getLong(at + 4 + (t - 1) * 16));
+                d.amounts[t].add(file.getLong(at + 12 + (t - 1) * 16));
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file holding the older part of every account's transaction
+ * history. Each segment stores a run of postings column by column and points
+ * back at the account's previous segment, so a history is a linked list read
+ * newest to oldest.
+ *
+ * <pre>
+ * segment := count:int prev:long crc32:int type[count] amount[count] timestamp[count] balanceAfter[count]
+ * </pre>
+ *
+ * Appends are serialized; reads use positional channel reads and a checksum
+ * of their own, so any number of threads read segments at once.
+ */
+class HistorySpillFile implements Closeable {
+    private static final int SEGMENT_HEADER = 4 + 8 + 4;
+
+    static final class Segment {
+        final long prev;
+        final byte[] types;
+        final long[] amounts;
+        final long[] timestamps;
+        final long[] balances;
+
+        Segment(long prev, int count) {
+            this.prev = prev;
+            this.types = new byte[count];
+            this.amounts = new long[count];
+            this.timestamps = new long[count];
+            this.balances = new long[count];
+        }
+    }
+
+    private final FileChannel channel;
+
+    HistorySpillFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /** Appends {@code count} postings starting at column index 0 and returns the segment offset. */
+    synchronized long append(long prev, byte[] types, long[] amounts, long[] timestamps, long[] balances, int count)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SEGMENT_HEADER + count * (1 + 8 + 8 + 8));
+        buf.position(SEGMENT_HEADER);
+        buf.put(types, 0, count);
+        for (int i = 0; i < count; i++) {
+            buf.putLong(amounts[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            buf.putLong(timestamps[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            buf.putLong(balances[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), SEGMENT_HEADER, buf.position() - SEGMENT_HEADER);
+        buf.putInt(0, count);
+        buf.putLong(4, prev);
+        buf.putInt(12, (int) crc.getValue());
+        buf.flip();
+
+        long offset = channel.size();
+        long position = offset;
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        return offset;
+    }
+
+    Segment read(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        readFully(header, offset);
+        int count = header.getInt(0);
+        long prev = header.getLong(4);
+        int checksum = header.getInt(12);
+        checkCount(count, offset);
+        ByteBuffer body = ByteBuffer.allocate(count * (1 + 8 + 8 + 8));
+        readFully(body, offset + SEGMENT_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.capacity());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in history segment at " + offset);
+        }
+        body.flip();
+        Segment s = new Segment(prev, count);
+        body.get(s.types);
+        body.asLongBuffer().get(s.amounts);
+        body.position(body.position() + count * 8);
+        body.asLongBuffer().get(s.timestamps);
+        body.position(body.position() + count * 8);
+        body.asLongBuffer().get(s.balances);
+        return s;
+    }
+
+    /** Offset of the segment before the one at {@code offset}, or -1; reads only the header. */
+    long prev(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        readFully(header, offset);
+        checkCount(header.getInt(0), offset);
+        return header.getLong(4);
+    }
+
+    /** Timestamp of the newest posting in the segment at {@code offset}, read without the rest of the body. */
+    long newestTimestamp(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        int count = checkCount(header.getInt(0), offset);
+        ByteBuffer ts = ByteBuffer.allocate(8);
+        readFully(ts, offset + SEGMENT_HEADER + count * (1 + 8) + (count - 1) * 8L);
+        return ts.getLong(0);
+    }
+
+    /** Makes every appended segment durable; called before a checkpoint refers to them. */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int checkCount(int count, long offset) throws IOException {
+        if (count <= 0 || count > 1 << 16) {
+            throw new IOException("Corrupt history segment at " + offset);
+        }
+        return count;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("History segment truncated at " + position);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Fixed-size latency histogram with log-linear buckets: values below 128 are
+ * exact, larger values keep 7 significant bits (under 1% error). Recording is
+ * one array increment and never allocates. Not thread-safe: give every thread
+ * its own histogram and {@link #add} them together afterwards.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = (64 - SUB_BITS + 2) * HALF_COUNT;
+    private static final int TICKS_PER_HALF_DISTANCE = 5;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+    private double sumOfSquares;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        totalCount++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        sum += value;
+        sumOfSquares += (double) value * value;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+        sumOfSquares = 0;
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    long max() {
+        return max;
+    }
+
+    long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    double mean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    double stdDeviation() {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double mean = mean();
+        return Math.sqrt(Math.max(0, sumOfSquares / totalCount - mean * mean));
+    }
+
+    /** Smallest recorded value (to bucket precision) at or below which {@code percentile}% of values fall. */
+    long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Prints the distribution in HdrHistogram's percentile format, so the output
+     * can be fed to the usual HdrHistogram plotting tools. Values are divided by
+     * {@code scale}, e.g. 1000.0 to print nanosecond recordings in microseconds.
+     */
+    void outputPercentileDistribution(PrintStream out, double scale) {
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        double percentile = 0;
+        while (totalCount > 0) {
+            long value = valueAtPercentile(percentile);
+            long below = countAtOrBelow(value);
+            if (below >= totalCount) {
+                break;
+            }
+            printLine(out, value / scale, percentile / 100, below);
+            double halfDistance = Math.pow(2, Math.floor(Math.log(100.0 / (100.0 - percentile)) / Math.log(2)) + 1);
+            percentile += 100.0 / (TICKS_PER_HALF_DISTANCE * halfDistance);
+        }
+        printLine(out, max / scale, 1.0, totalCount);
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean() / scale, stdDeviation() / scale);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max / scale, totalCount);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS / HALF_COUNT - 1, SUB_COUNT);
+    }
+
+    private static void printLine(PrintStream out, double value, double fraction, long count) {
+        if (fraction < 1.0) {
+            out.printf("%12.3f %2.12f %10d %14.2f%n", value, fraction, count, 1 / (1 - fraction));
+        } else {
+            out.printf("%12.3f %2.12f %10d%n", value, fraction, count);
+        }
+    }
+
+    private long countAtOrBelow(long value) {
+        int last = index(value);
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += counts[i];
+        }
+        return seen;
+    }
+
+    private static int index(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < SUB_BITS) {
+            return (int) value;
+        }
+        int shift = msb - (SUB_BITS - 1);
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / HALF_COUNT - 1;
+        long mantissa = index % HALF_COUNT + HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
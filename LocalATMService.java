@@ -0,0 +1,692 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs terminal operations in this JVM against the account files in one
+ * directory: the mapped checkpoint, the journal and the history spill file.
+ * The directory may hold one shard of a {@link ShardedATMService}, in which
+ * case only account numbers that route to this shard are generated. PINs are
+ * kept only as {@link PinCredential} hashes and checked by a
+ * {@link CredentialVerifier}; a {@link LoginGuard} locks out repeated wrong
+ * PINs across all terminals of the service. Accounts are held from the store
+ * only while a session or operation uses them, so the store's cache can evict
+ * the rest.
+ */
+class LocalATMService implements AccountShard {
+    static final String FILE_NAME = "accounts.dat";
+    static final String CHECKPOINT_NAME = "accounts.bin";
+    static final String JOURNAL_NAME = "accounts.journal";
+    static final String HISTORY_NAME = "accounts.history";
+    static final String SHARD_ID_NAME = "shard.id";
+    static final int CHECKPOINT_INTERVAL = 1000;
+    // Flagged and held withdrawals are counted in Metrics; the console gets at most one line per interval
+    static final long ANOMALY_LOG_INTERVAL = 10_000;
+    static final long MIN_INITIAL_DEPOSIT = Money.ofBirr(30);
+    static final int MAX_NAME_LENGTH = 60;
+    // "1000" followed by a six-digit suffix, see isAccountNumber
+    static final long FIRST_ACCOUNT_NUMBER = 1_000_000_000L;
+    static final int ACCOUNT_NUMBERS = 1_000_000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path dir;
+    private final int shard;
+    private final int shards;
+    private final HistorySpillFile historyFile;
+    private final MappedAccountStore store;
+    private final TransactionJournal journal;
+    private final PersistencePipeline pipeline;
+    private final TransactionEngine engine;
+    private final CredentialVerifier verifier = new CredentialVerifier();
+    private final LoginGuard guard = new LoginGuard();
+    private final AnomalyScorer scorer = new AnomalyScorer();
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atm-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean checkpointQueued = new AtomicBoolean();
+    private final AtomicLong nextAnomalyLog = new AtomicLong();
+
+    /** @throws IOException if the directory holds accounts but no checkpoint generation can be read */
+    LocalATMService(Path dir) throws IOException {
+        this(dir, AccountCache.DEFAULT_CAPACITY);
+    }
+
+    /** @param cacheBytes bound on the estimated heap size of the accounts kept resident */
+    LocalATMService(Path dir, long cacheBytes) throws IOException {
+        this(dir, 0, 1, cacheBytes);
+    }
+
+    private LocalATMService(Path dir, int shard, int shards, long cacheBytes) throws IOException {
+        this.dir = dir;
+        this.shard = shard;
+        this.shards = shards;
+        this.historyFile = openHistoryFile();
+        this.store = MappedAccountStore.open(dir.resolve(CHECKPOINT_NAME), dir.resolve(FILE_NAME));
+        store.setHistoryFile(historyFile);
+        store.setCacheCapacity(cacheBytes);
+        this.journal = openJournal();
+        this.pipeline = journal == null ? null : new PersistencePipeline(journal);
+        this.engine = new TransactionEngine(store, pipeline, scorer);
+        Metrics.addDailyTotals(store.totals());
+        Metrics.addAccountStore(store);
+        Metrics.registerJmx();
+    }
+
+    /**
+     * Opens shard {@code shard} of {@code shards} in {@code dir}. The shard
+     * identity is recorded in the directory on first use, so the same files can
+     * never be opened as a different shard or under a different shard count.
+     */
+    static LocalATMService openShard(Path dir, int shard, int shards) throws IOException {
+        return openShard(dir, shard, shards, AccountCache.DEFAULT_CAPACITY);
+    }
+
+    static LocalATMService openShard(Path dir, int shard, int shards, long cacheBytes) throws IOException {
+        if (shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("No shard " + shard + " of " + shards);
+        }
+        Files.createDirectories(dir);
+        Path id = dir.resolve(SHARD_ID_NAME);
+        String expected = shard + "/" + shards;
+        if (Files.exists(id)) {
+            String found = Files.readString(id).trim();
+            if (!found.equals(expected)) {
+                throw new IOException(dir + " holds shard " + found + ", not " + expected);
+            }
+        } else {
+            if (shards > 1 && (Files.exists(dir.resolve(CHECKPOINT_NAME)) || Files.exists(dir.resolve(JOURNAL_NAME))
+                    || Files.exists(dir.resolve(FILE_NAME)))) {
+                throw new IOException(dir + " holds unsharded accounts and cannot be opened as a shard");
+            }
+            Files.writeString(id, expected + "\n");
+        }
+        return new LocalATMService(dir, shard, shards, cacheBytes);
+    }
+
+    @Override
+    public int shardIndex() {
+        return shard;
+    }
+
+    @Override
+    public int shardCount() {
+        return shards;
+    }
+
+    @Override
+    public Session login(String terminal, String accountNumber, String pin) throws LockedException {
+        long start = Metrics.start();
+        long locked = guard.lockedFor(terminal, accountNumber);
+        if (locked > 0) {
+            Metrics.LOGIN_LOCKED.increment();
+            throw new LockedException(locked);
+        }
+        Account acc = isAccountNumber(accountNumber) ? acquireAccount(accountNumber) : null;
+        boolean valid = verifier.verify(accountNumber, acc == null ? null : acc.getCredential(), pin);
+        Metrics.LOGIN.stop(start);
+        if (!valid) {
+            releaseAccount(acc);
+            Metrics.LOGIN_FAILURE.increment();
+            locked = guard.failed(terminal, accountNumber);
+            if (locked > 0) {
+                throw new LockedException(locked);
+            }
+            return null;
+        }
+        guard.succeeded(accountNumber);
+        Metrics.LOGIN_SUCCESS.increment();
+        return new LocalSession(acc);
+    }
+
+    @Override
+    public synchronized NewAccount createAccount(String name, long initialDeposit) {
+        if (name == null || !name.matches("^[A-Za-z\\s]+$") || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Name must contain only letters and spaces");
+        }
+        if (name.trim().length() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name must be at most " + MAX_NAME_LENGTH + " characters");
+        }
+        if (initialDeposit < MIN_INITIAL_DEPOSIT) {
+            throw new IllegalArgumentException("Minimum initial deposit is 30 Birr");
+        }
+        String accNum = generateAccountNumber();
+        String pin = generatePin();
+        Account acc = createAccount(name.trim(), accNum, pin, initialDeposit);
+        return new NewAccount(acc.getAccountNumber(), pin);
+    }
+
+    /** Holds its account from login until logout. */
+    private final class LocalSession implements Session {
+        private final Account acc;
+        private final AtomicBoolean open = new AtomicBoolean(true);
+
+        LocalSession(Account acc) {
+            this.acc = acc;
+        }
+
+        @Override
+        public String accountNumber() {
+            return acc.getAccountNumber();
+        }
+
+        @Override
+        public String name() {
+            return acc.getName();
+        }
+
+        @Override
+        public long balance() {
+            return acc.getBalance();
+        }
+
+        @Override
+        public long balanceAt(long timestamp) throws IOException {
+            long[] now = new long[1];
+            TransactionHistory history = engine.locked(acc, () -> {
+                now[0] = acc.getBalance();
+                return acc.getTransactionHistory().snapshot();
+            });
+            boolean indexed = history.indexed();
+            long balance = history.balanceAt(timestamp, now[0]);
+            if (!indexed && history.indexed()) {
+                engine.locked(acc, () -> {
+                    acc.getTransactionHistory().adoptIndex(history);
+                    return null;
+                });
+            }
+            return balance;
+        }
+
+        @Override
+        public boolean withdraw(long amount) {
+            return LocalATMService.this.withdraw(acc, amount);
+        }
+
+        @Override
+        public boolean deposit(long amount) {
+            return LocalATMService.this.deposit(acc, amount);
+        }
+
+        @Override
+        public boolean transfer(String toAccountNumber, long amount) {
+            Account to = acquireAccount(toAccountNumber);
+            try {
+                return to != null && LocalATMService.this.transfer(acc, to, amount);
+            } finally {
+                releaseAccount(to);
+            }
+        }
+
+        @Override
+        public String recentHistory(int n) {
+            return engine.locked(acc, () -> acc.miniStatement(n));
+        }
+
+        @Override
+        public void writeStatement(long from, long to, String format, Writer out) throws IOException {
+            TransactionHistory history = engine.locked(acc, acc.getTransactionHistory()::snapshot);
+            Statement.write(acc.getAccountNumber(), acc.getName(), history, from, to, format, out);
+        }
+
+        @Override
+        public void logout() {
+            if (open.compareAndSet(true, false)) {
+                releaseAccount(acc);
+            }
+        }
+    }
+
+    Account createAccount(String name, String accNum, String pin, long balance) {
+        long start = Metrics.start();
+        Account acc = new Account(name, accNum, PinCredential.create(pin), balance);
+        awaitDurable(engine.create(acc));
+        Metrics.CREATE.stop(start);
+        maybeCheckpoint();
+        return acc;
+    }
+
+    /**
+     * Scores the withdrawal for anomalies (see {@link AnomalyScorer}) and posts
+     * it unless the score reaches the hold level; scoring and posting happen
+     * under the same stripe, so no other posting to the account comes between.
+     *
+     * @throws IllegalArgumentException if the withdrawal is held
+     */
+    boolean withdraw(Account acc, long amt) {
+        long start = Metrics.start();
+        CompletableFuture<Boolean> result = scoredWithdraw(acc, amt);
+        if (result == null) {
+            throw new IllegalArgumentException("This withdrawal is held for review; please contact your branch");
+        }
+        if (!awaitDurable(result)) {
+            Metrics.WITHDRAW_REJECTED.increment();
+            return false;
+        }
+        Metrics.WITHDRAW.stop(start);
+        maybeCheckpoint();
+        return true;
+    }
+
+    // Scores and posts under one stripe; null if the withdrawal is held
+    private CompletableFuture<Boolean> scoredWithdraw(Account acc, long amt) {
+        int[] score = new int[1];
+        CompletableFuture<Boolean> result = engine.locked(acc, () -> {
+            score[0] = scorer.score(acc, amt, System.currentTimeMillis());
+            return score[0] >= AnomalyScorer.HOLD ? null : engine.withdraw(acc, amt);
+        });
+        if (result == null) {
+            Metrics.WITHDRAW_HELD.increment();
+            logAnomaly("held", acc, amt, score[0]);
+        } else if (score[0] >= AnomalyScorer.FLAG) {
+            Metrics.WITHDRAW_FLAGGED.increment();
+            logAnomaly("flagged", acc, amt, score[0]);
+        }
+        return result;
+    }
+
+    // One example per interval with the running totals, so a burst of anomalies cannot flood the console
+    private void logAnomaly(String action, Account acc, long amt, int score) {
+        long now = System.currentTimeMillis();
+        long next = nextAnomalyLog.get();
+        if (now >= next && nextAnomalyLog.compareAndSet(next, now + ANOMALY_LOG_INTERVAL)) {
+            System.err.println("Anomaly: " + action + " withdrawal of " + Money.format(amt) + " Birr from "
+                    + acc.getAccountNumber() + ", score " + score + " (" + Metrics.WITHDRAW_FLAGGED.get()
+                    + " flagged and " + Metrics.WITHDRAW_HELD.get() + " held so far)");
+        }
+    }
+
+    boolean deposit(Account acc, long amt) {
+        long start = Metrics.start();
+        if (!awaitDurable(engine.deposit(acc, amt))) {
+            return false;
+        }
+        Metrics.DEPOSIT.stop(start);
+        maybeCheckpoint();
+        return true;
+    }
+
+    boolean transfer(Account from, Account to, long amt) {
+        long start = Metrics.start();
+        if (!awaitDurable(engine.transfer(from, to, amt))) {
+            return false;
+        }
+        Metrics.TRANSFER.stop(start);
+        maybeCheckpoint();
+        return true;
+    }
+
+    @Override
+    public boolean hasAccount(String accountNumber) {
+        return isAccountNumber(accountNumber) && store.containsNumber(accountNumber);
+    }
+
+    @Override
+    public boolean transferOut(long transferId, String fromAccount, String toAccount, long amount) {
+        Account from = acquireAccount(fromAccount);
+        if (from == null) {
+            return false;
+        }
+        try {
+            long start = Metrics.start();
+            if (!awaitDurable(engine.transferOut(from, toAccount, amount, transferId))) {
+                return false;
+            }
+            Metrics.TRANSFER_OUT.stop(start);
+        } finally {
+            releaseAccount(from);
+        }
+        maybeCheckpoint();
+        return true;
+    }
+
+    @Override
+    public boolean transferIn(long transferId, String toAccount, String fromAccount, long amount) {
+        Account to = acquireAccount(toAccount);
+        if (to == null) {
+            return false;
+        }
+        try {
+            long start = Metrics.start();
+            if (!awaitDurable(engine.transferIn(to, fromAccount, amount, transferId))) {
+                return false;
+            }
+            Metrics.TRANSFER_IN.stop(start);
+        } finally {
+            releaseAccount(to);
+        }
+        maybeCheckpoint();
+        return true;
+    }
+
+    /**
+     * Applies one posting of a batch without waiting for it to be durable; the
+     * future completes with false if it was refused. A withdrawal is scored as
+     * at a terminal and, if held, not posted: then this returns null. The
+     * account must be held ({@link #acquireAccount}) until the future is done.
+     * Call {@link #finishBatch} once every future of the batch is done.
+     */
+    CompletableFuture<Boolean> postAsync(Account acc, byte type, long amount) {
+        return type == Transaction.DEPOSIT ? engine.deposit(acc, amount) : scoredWithdraw(acc, amount);
+    }
+
+    /**
+     * Ends a batch of {@link #postAsync} postings. If a journal write failed, or
+     * there is no journal, the applied changes are saved with a checkpoint
+     * instead, as for single operations.
+     */
+    void finishBatch(boolean journalFailed) {
+        if (journalFailed || pipeline == null) {
+            saveAccounts();
+        } else {
+            maybeCheckpoint();
+        }
+    }
+
+    /** PINs need not be unique, since a login always names the account. */
+    String generatePin() {
+        return String.format("%04d", RANDOM.nextInt(10_000));
+    }
+
+    /**
+     * A free six-digit suffix whose full number routes to this shard. Only
+     * those suffixes are tried, from a random one on, so a crowded shard costs
+     * a scan rather than a guessing loop.
+     *
+     * @throws IllegalArgumentException if every number of this shard is taken
+     */
+    String generateAccountNumber() {
+        // Suffixes first, first + shards, ... make full numbers congruent to shard
+        long first = Math.floorMod(shard - FIRST_ACCOUNT_NUMBER, shards);
+        long share = (ACCOUNT_NUMBERS - first + shards - 1) / shards;
+        long start = RANDOM.nextLong(share);
+        for (long i = 0; i < share; i++) {
+            String num = String.format("%06d", first + (start + i) % share * shards);
+            if (!store.containsNumber("1000" + num)) {
+                return num;
+            }
+        }
+        throw new IllegalArgumentException("No account numbers are left; please contact your branch");
+    }
+
+    /** True for a well-formed full account number: "1000" followed by six digits. */
+    static boolean isAccountNumber(String s) {
+        if (s == null || s.length() != 10 || !s.startsWith("1000")) {
+            return false;
+        }
+        for (int i = 4; i < 10; i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The account with this full number, or null, also for a number that is not
+     * in the canonical form of {@link #isAccountNumber}; it stays resident until
+     * {@link #releaseAccount} is called with it.
+     */
+    Account acquireAccount(String accNum) {
+        if (!isAccountNumber(accNum)) {
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            return store.acquire(accNum);
+        } catch (IOException e) {
+            Metrics.LOOKUP_ERRORS.increment();
+            System.err.println("Error reading account: " + e.getMessage());
+            return null;
+        } finally {
+            Metrics.LOOKUP_NUMBER.stop(start);
+        }
+    }
+
+    /**
+     * The accounts {@code numbers[from, to)}, null where there is none, for a
+     * walk over many accounts; release them with {@link #releaseAccounts}.
+     */
+    Account[] acquireAccounts(List<String> numbers, int from, int to) throws IOException {
+        long start = Metrics.start();
+        try {
+            return store.acquireAll(numbers, from, to);
+        } catch (IOException e) {
+            Metrics.LOOKUP_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.LOOKUP_NUMBER.stop(start);
+        }
+    }
+
+    void releaseAccounts(Account[] accounts) {
+        store.releaseAll(accounts);
+    }
+
+    /** Full numbers of every account of this service, for a walk over all of them. */
+    List<String> accountNumbers() {
+        return store.accountNumbers();
+    }
+
+    /** Ends one {@link #acquireAccount}; null is ignored. */
+    void releaseAccount(Account acc) {
+        if (acc != null) {
+            store.release(acc);
+        }
+    }
+
+    /** Pages the account checkpoint in ahead of the first login. */
+    void warmUp() {
+        store.warm();
+    }
+
+    /**
+     * Writes a checkpoint now. Only capturing it holds postings off; the file
+     * is written while they continue.
+     */
+    synchronized void saveAccounts() {
+        MappedAccountStore.Checkpoint[] captured = new MappedAccountStore.Checkpoint[1];
+        Runnable capture = () -> {
+            long start = Metrics.start();
+            long seq = pipeline == null ? store.checkpointSeq() : pipeline.lastSeq();
+            captured[0] = store.capture(seq);
+            if (journal != null) {
+                try {
+                    journal.rotate(seq);
+                } catch (IOException e) {
+                    Metrics.JOURNAL_ERRORS.increment();
+                    System.err.println("Error rotating journal: " + e.getMessage());
+                }
+            }
+            Metrics.CHECKPOINT_CAPTURE.stop(start);
+        };
+        if (engine == null) {
+            capture.run();
+        } else {
+            engine.exclusive(capture);
+        }
+        writeCheckpoint(captured[0]);
+    }
+
+    /** Flushes the journal, writes a final checkpoint and releases the files. */
+    @Override
+    public void close() throws IOException {
+        Metrics.removeDailyTotals(store.totals());
+        Metrics.removeAccountStore(store);
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        saveAccounts();
+        if (journal != null) {
+            journal.close();
+        }
+        if (historyFile != null) {
+            historyFile.close();
+        }
+    }
+
+    // If this fails, the previous checkpoint and the journal segments since still hold everything
+    private void writeCheckpoint(MappedAccountStore.Checkpoint checkpoint) {
+        long start = Metrics.start();
+        try {
+            if (historyFile != null) {
+                historyFile.force();
+            }
+            long oldest = store.write(checkpoint);
+            if (journal != null) {
+                TransactionJournal.pruneSegments(dir.resolve(JOURNAL_NAME), oldest);
+            }
+        } catch (IOException e) {
+            Metrics.CHECKPOINT_ERRORS.increment();
+            System.err.println("Error saving accounts: " + e.getMessage());
+            return;
+        }
+        Metrics.CHECKPOINT.stop(start);
+    }
+
+    /**
+     * Blocks until an engine operation is durable and returns whether it was
+     * accepted. When the journal is unusable the change, already applied in
+     * memory, is saved with a full checkpoint instead.
+     */
+    private boolean awaitDurable(CompletableFuture<Boolean> result) {
+        try {
+            if (!result.get()) {
+                return false;
+            }
+            if (pipeline == null) {
+                saveAccounts();
+            }
+        } catch (ExecutionException e) {
+            System.err.println("Error journaling operation: " + e.getCause().getMessage());
+            saveAccounts();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            saveAccounts();
+        }
+        return true;
+    }
+
+    // Checkpoints run on their own thread, so the operation that fills the journal does not wait for one
+    private void maybeCheckpoint() {
+        if (journal != null && journal.recordCount() >= CHECKPOINT_INTERVAL && checkpointQueued.compareAndSet(false, true)) {
+            try {
+                checkpointer.execute(() -> {
+                    try {
+                        saveAccounts();
+                    } finally {
+                        checkpointQueued.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                checkpointQueued.set(false);
+            }
+        }
+    }
+
+    private HistorySpillFile openHistoryFile() {
+        try {
+            return new HistorySpillFile(dir.resolve(HISTORY_NAME));
+        } catch (IOException e) {
+            Metrics.HISTORY_ERRORS.increment();
+            System.err.println("Error opening transaction history: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private TransactionJournal openJournal() {
+        try {
+            Path path = dir.resolve(JOURNAL_NAME);
+            long last = TransactionJournal.replaySegments(path, store.checkpointSeq(), this::applyJournalRecord);
+            TransactionJournal j = new TransactionJournal(path);
+            j.replay(last, this::applyJournalRecord);
+            return j;
+        } catch (IOException e) {
+            Metrics.JOURNAL_ERRORS.increment();
+            System.err.println("Error opening journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void applyJournalRecord(TransactionJournal.Record r) {
+        if (r.type == TransactionJournal.CREATE) {
+            store.add(new Account(r.name, r.accountNumber.substring(4), r.credential, r.amount));
+            return;
+        }
+        Account acc = acquireAccount(r.accountNumber);
+        if (acc == null) {
+            System.err.println("Journal: no account " + r.accountNumber + " for record " + r.seq);
+            return;
+        }
+        try {
+            applyPostings(r, acc);
+        } finally {
+            releaseAccount(acc);
+        }
+    }
+
+    private void applyPostings(TransactionJournal.Record r, Account acc) {
+        if (r.type == TransactionJournal.POSTINGS) {
+            for (int i = 0; i < r.postingCount(); i++) {
+                replay(acc, r.postingTypes[i] == TransactionJournal.DEPOSIT ? Transaction.DEPOSIT
+                        : Transaction.WITHDRAW, r.postingAmounts[i], r.postingTimestamps[i]);
+            }
+        } else if (r.type == TransactionJournal.DEPOSIT) {
+            replay(acc, Transaction.DEPOSIT, r.amount, r.timestamp);
+        } else if (r.type == TransactionJournal.WITHDRAW) {
+            replay(acc, Transaction.WITHDRAW, r.amount, r.timestamp);
+        } else if (r.type == TransactionJournal.TRANSFER_OUT) {
+            replay(acc, Transaction.TRANSFER_OUT, r.amount, r.timestamp);
+            store.transferLegs().add(r.transferId, r.type, r.timestamp);
+        } else if (r.type == TransactionJournal.TRANSFER_IN) {
+            replay(acc, Transaction.TRANSFER_IN, r.amount, r.timestamp);
+            store.transferLegs().add(r.transferId, r.type, r.timestamp);
+        } else if (r.type == TransactionJournal.TRANSFER || r.type == TransactionJournal.TRANSFERS) {
+            Account other = acquireAccount(r.counterparty);
+            if (other == null) {
+                System.err.println("Journal: no account " + r.counterparty + " for record " + r.seq);
+                return;
+            }
+            try {
+                if (r.type == TransactionJournal.TRANSFER) {
+                    replay(acc, Transaction.TRANSFER_OUT, r.amount, r.timestamp);
+                    replay(other, Transaction.TRANSFER_IN, r.amount, r.timestamp);
+                    return;
+                }
+                for (int i = 0; i < r.postingCount(); i++) {
+                    boolean out = r.postingTypes[i] == TransactionJournal.TRANSFER_OUT;
+                    replay(out ? acc : other, Transaction.TRANSFER_OUT, r.postingAmounts[i], r.postingTimestamps[i]);
+                    replay(out ? other : acc, Transaction.TRANSFER_IN, r.postingAmounts[i], r.postingTimestamps[i]);
+                }
+            } finally {
+                releaseAccount(other);
+            }
+        }
+    }
+
+    // A journaled posting was accepted once, so the balance takes it whatever the checks would say now
+    private void replay(Account acc, byte type, long amount, long timestamp) {
+        acc.reapply(type, amount);
+        acc.addTransaction(type, amount, timestamp);
+        store.totals().add(type, amount, timestamp);
+    }
+}
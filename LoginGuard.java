@@ -0,0 +1,189 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Locks out brute-force PIN guessing. Failed logins are counted per account
+ * and per terminal over a sliding window; once either count reaches its limit,
+ * further logins for that key are refused without checking the PIN until
+ * enough failures have aged out of the window. A successful login clears the
+ * account's count only: a terminal guessing over many accounts must not earn
+ * a clean slate by logging into one it knows, so its failures just age out.
+ * The counts are shared by every terminal of the service and kept in
+ * fixed-size tables, so a flood of guesses over many accounts or terminals
+ * cannot grow memory: it evicts the keys with the fewest recent failures.
+ */
+final class LoginGuard {
+    // Three wrong PINs within 30 seconds lock a terminal
+    static final int TERMINAL_LIMIT = 3;
+    static final long TERMINAL_BUCKET_MILLIS = 5_000;
+    static final int TERMINAL_BUCKETS = 6;
+    // Five wrong PINs within 15 minutes lock an account on every terminal
+    static final int ACCOUNT_LIMIT = 5;
+    static final long ACCOUNT_BUCKET_MILLIS = 60_000;
+    static final int ACCOUNT_BUCKETS = 15;
+
+    private final Window accounts = new Window(ACCOUNT_LIMIT, ACCOUNT_BUCKET_MILLIS, ACCOUNT_BUCKETS,
+            Metrics.ACCOUNT_LOCKOUTS);
+    private final Window terminals = new Window(TERMINAL_LIMIT, TERMINAL_BUCKET_MILLIS, TERMINAL_BUCKETS,
+            Metrics.TERMINAL_LOCKOUTS);
+
+    /** Milliseconds until a login from {@code terminal} to {@code accountNumber} is allowed; 0 if it is now. */
+    long lockedFor(String terminal, String accountNumber) {
+        long now = System.currentTimeMillis();
+        return Math.max(terminals.lockedFor(terminal, now), accounts.lockedFor(accountNumber, now));
+    }
+
+    /** Counts a failed login; returns how long the pair is locked now, 0 if not. */
+    long failed(String terminal, String accountNumber) {
+        long now = System.currentTimeMillis();
+        return Math.max(terminals.failed(terminal, now), accounts.failed(accountNumber, now));
+    }
+
+    void succeeded(String accountNumber) {
+        accounts.clear(accountNumber);
+    }
+
+    /**
+     * Failure counts for one kind of key in a set-associative table: a key can
+     * only live in the {@link #WAYS} slots of its set. Entries are immutable and
+     * replaced by compare-and-set, so counting takes no lock.
+     */
+    static final class Window {
+        static final int SETS = 4096;
+        static final int WAYS = 4;
+
+        private static final class Entry {
+            final String key;
+            // Failures per bucket, indexed by bucket number mod buckets
+            final int[] counts;
+            final long newest;
+
+            Entry(String key, int[] counts, long newest) {
+                this.key = key;
+                this.counts = counts;
+                this.newest = newest;
+            }
+        }
+
+        private final int limit;
+        private final long bucketMillis;
+        private final int buckets;
+        private final Metrics.Counter lockouts;
+        private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(SETS * WAYS);
+
+        Window(int limit, long bucketMillis, int buckets, Metrics.Counter lockouts) {
+            this.limit = limit;
+            this.bucketMillis = bucketMillis;
+            this.buckets = buckets;
+            this.lockouts = lockouts;
+        }
+
+        long lockedFor(String key, long now) {
+            int i = find(key);
+            Entry e = i < 0 ? null : slots.get(i);
+            return e == null ? 0 : lockedFor(e, now);
+        }
+
+        long failed(String key, long now) {
+            long bucket = now / bucketMillis;
+            while (true) {
+                int i = find(key);
+                Entry e = i < 0 ? null : slots.get(i);
+                if (e == null) {
+                    i = victim(key, bucket);
+                    e = slots.get(i);
+                    if (slots.compareAndSet(i, e, count(null, key, bucket))) {
+                        return 0;
+                    }
+                    continue;
+                }
+                Entry next = count(e, key, bucket);
+                if (slots.compareAndSet(i, e, next)) {
+                    long locked = lockedFor(next, now);
+                    if (locked > 0 && lockedFor(e, now) == 0) {
+                        lockouts.increment();
+                    }
+                    return locked;
+                }
+            }
+        }
+
+        void clear(String key) {
+            int i = find(key);
+            if (i >= 0) {
+                Entry e = slots.get(i);
+                if (e != null && e.key.equals(key)) {
+                    slots.compareAndSet(i, e, null);
+                }
+            }
+        }
+
+        private int find(String key) {
+            int base = (spread(key.hashCode()) & (SETS - 1)) * WAYS;
+            for (int i = base; i < base + WAYS; i++) {
+                Entry e = slots.get(i);
+                if (e != null && e.key.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // An empty slot of the key's set, else the one with the fewest failures still in the window
+        private int victim(String key, long bucket) {
+            int base = (spread(key.hashCode()) & (SETS - 1)) * WAYS;
+            int best = base;
+            int fewest = Integer.MAX_VALUE;
+            for (int i = base; i < base + WAYS; i++) {
+                Entry e = slots.get(i);
+                if (e == null) {
+                    return i;
+                }
+                int live = live(e, bucket);
+                if (live < fewest) {
+                    best = i;
+                    fewest = live;
+                }
+            }
+            return best;
+        }
+
+        private Entry count(Entry e, String key, long bucket) {
+            int[] counts = new int[buckets];
+            if (e != null) {
+                for (long b = Math.max(e.newest - buckets + 1, bucket - buckets + 1); b <= e.newest; b++) {
+                    counts[(int) (b % buckets)] = e.counts[(int) (b % buckets)];
+                }
+            }
+            counts[(int) (bucket % buckets)]++;
+            return new Entry(key, counts, Math.max(bucket, e == null ? bucket : e.newest));
+        }
+
+        private int live(Entry e, long bucket) {
+            int sum = 0;
+            for (long b = Math.max(e.newest - buckets + 1, bucket - buckets + 1); b <= e.newest; b++) {
+                sum += e.counts[(int) (b % buckets)];
+            }
+            return sum;
+        }
+
+        // Locked until enough of the oldest failures have left the window that fewer than limit remain
+        private long lockedFor(Entry e, long now) {
+            long bucket = now / bucketMillis;
+            int remaining = live(e, bucket);
+            for (long b = Math.max(e.newest - buckets + 1, bucket - buckets + 1); b <= e.newest; b++) {
+                if (remaining < limit) {
+                    break;
+                }
+                remaining -= e.counts[(int) (b % buckets)];
+                if (remaining < limit) {
+                    return (b + buckets) * bucketMillis - now;
+                }
+            }
+            return 0;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,577 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Account store backed by a memory-mapped checkpoint file. Opening the store
+ * only maps the file and reads its trailer; the hash table written by
+ * {@link AccountCodec.Writer} is probed in place. An account is decoded onto
+ * the heap when it is looked up and stays resident in an {@link AccountCache}
+ * of bounded size. A checkpoint writes back only the resident accounts that
+ * changed since the last one; once it is written they may be evicted again.
+ * Callers {@link #acquire} an account and {@link #release} it when done, so
+ * that no account in use is evicted.
+ *
+ * The cache is split into {@link #SEGMENTS} segments by the spread of
+ * {@link TransactionEngine}, each with its own lock and its share of the
+ * capacity, so lookups of accounts on different lock stripes never wait on
+ * each other. The mapping is replaced as a whole when a checkpoint is mapped.
+ * Only taking and writing a checkpoint lock the whole store.
+ *
+ * A checkpoint is written to a temporary file, forced to disk and renamed over
+ * the current one, so a crash leaves either the old or the new file intact.
+ * The replaced file is kept as {@code accounts.bin.<seq>}; the newest
+ * {@link #GENERATIONS} files in all are kept, and if the current one cannot be
+ * read the store opens the newest older generation instead.
+ */
+class MappedAccountStore {
+    static final int GENERATIONS = 3;
+    static final int SEGMENTS = TransactionEngine.STRIPES;
+
+    /**
+     * The store as of one journal sequence number: encoded copies of the
+     * changed accounts plus the mapping that holds every other record.
+     */
+    static final class Checkpoint {
+        final long seq;
+        final ByteBuffer source;
+        final int sourceCount;
+        final Set<Long> changed;
+        final byte[] records;
+        final int[] ends;
+        final DailyTotals totals;
+        final TransferLegs legs;
+        // The changed accounts and the versions encoded, marked saved once the checkpoint is written
+        final Account[] accounts;
+        final int[] versions;
+
+        Checkpoint(long seq, ByteBuffer source, int sourceCount, Set<Long> changed, byte[] records, int[] ends,
+                DailyTotals totals, TransferLegs legs, Account[] accounts, int[] versions) {
+            this.seq = seq;
+            this.source = source;
+            this.sourceCount = sourceCount;
+            this.changed = changed;
+            this.records = records;
+            this.ends = ends;
+            this.totals = totals;
+            this.legs = legs;
+            this.accounts = accounts;
+            this.versions = versions;
+        }
+    }
+
+    /** A mapped checkpoint and the layout its trailer gives. */
+    private static final class Mapping {
+        final MappedByteBuffer file;
+        final long checkpointSeq;
+        final int count;
+        final int mask;
+        final int numberTable;
+        final int totalsSection;
+        final int legsSection;
+
+        Mapping(MappedByteBuffer file, long checkpointSeq, int count, int mask, int numberTable, int totalsSection,
+                int legsSection) {
+            this.file = file;
+            this.checkpointSeq = checkpointSeq;
+            this.count = count;
+            this.mask = mask;
+            this.numberTable = numberTable;
+            this.totalsSection = totalsSection;
+            this.legsSection = legsSection;
+        }
+
+        /** Offset of the record of {@code key}, or -1. */
+        long probe(long key) {
+            int slot = AccountCodec.slot(key, mask);
+            while (true) {
+                int at = numberTable + slot * AccountCodec.SLOT;
+                long k = file.getLong(at);
+                if (k == key) {
+                    return file.getLong(at + 8);
+                }
+                if (k == 0) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    private final Path path;
+    private final AccountCache[] segments = new AccountCache[SEGMENTS];
+    private final DailyTotals totals = new DailyTotals();
+    private final TransferLegs legs = new TransferLegs();
+    private volatile HistorySpillFile historyFile;
+    // Null until there is a checkpoint
+    private volatile Mapping mapping;
+
+    MappedAccountStore(Path path) {
+        this.path = path;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new AccountCache(AccountCache.DEFAULT_CAPACITY / SEGMENTS);
+        }
+    }
+
+    /**
+     * Maps the checkpoint at {@code path}, converting a legacy accounts.dat
+     * first if there is no checkpoint yet; a missing file gives an empty store.
+     */
+    static MappedAccountStore open(Path path, Path legacy) throws IOException {
+        MappedAccountStore store = new MappedAccountStore(path);
+        if (!Files.exists(path) && generations(path).isEmpty()) {
+            if (!Files.exists(legacy)) {
+                return store;
+            }
+            AccountCodec.Snapshot snapshot = AccountCodec.readLegacy(legacy);
+            writeSnapshot(path, snapshot);
+            Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".migrated"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            System.err.println("Migrated " + snapshot.accounts.size() + " accounts from " + legacy + " to " + path);
+        }
+        try {
+            store.map();
+        } catch (IOException e) {
+            store.recover(e);
+        }
+        Mapping m = store.mapping;
+        try {
+            store.totals.read(m.file, m.totalsSection, m.legsSection);
+        } catch (IOException e) {
+            System.err.println("Error reading daily totals, starting from zero: " + e.getMessage());
+        }
+        try {
+            store.legs.read(m.file, m.legsSection, m.file.limit() - AccountCodec.TRAILER);
+        } catch (IOException e) {
+            System.err.println("Error reading transfer legs, starting from none: " + e.getMessage());
+        }
+        return store;
+    }
+
+    private void map() throws IOException {
+        MappedByteBuffer file;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Checkpoint larger than 2 GB cannot be mapped");
+            }
+            file = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (file.limit() < AccountCodec.HEADER || file.getInt(0) != AccountCodec.MAGIC) {
+            throw new IOException("Not an account checkpoint file: " + path);
+        }
+        short version = file.getShort(4);
+        if (version != AccountCodec.VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+        }
+        ByteBuffer trailer = AccountCodec.readTrailer(file, 0);
+        int count = trailer.getInt();
+        int capacity = trailer.getInt();
+        int mask = capacity - 1;
+        int numberTable = (int) trailer.getLong();
+        int totalsSection = (int) trailer.getLong();
+        int legsSection = (int) trailer.getLong();
+        if (capacity <= 0 || (capacity & mask) != 0 || count > capacity || numberTable < AccountCodec.HEADER
+                || totalsSection != numberTable + (long) capacity * AccountCodec.SLOT
+                || legsSection < totalsSection || legsSection > file.limit() - AccountCodec.TRAILER) {
+            throw new IOException("Corrupt checkpoint trailer in " + path);
+        }
+        mapping = new Mapping(file, file.getLong(8), count, mask, numberTable, totalsSection, legsSection);
+    }
+
+    // Sets the unreadable file aside and opens the newest generation that can be read
+    private void recover(IOException cause) throws IOException {
+        if (Files.exists(path)) {
+            Path corrupt = path.resolveSibling(path.getFileName() + ".corrupt");
+            Files.move(path, corrupt, StandardCopyOption.REPLACE_EXISTING);
+            System.err.println("Error reading checkpoint, kept as " + corrupt + ": " + cause.getMessage());
+        }
+        for (Path generation : generations(path)) {
+            try {
+                Files.copy(generation, path, StandardCopyOption.REPLACE_EXISTING);
+                map();
+                System.err.println("Recovered accounts from " + generation);
+                return;
+            } catch (IOException e) {
+                System.err.println("Error reading checkpoint " + generation + ": " + e.getMessage());
+                cause = e;
+            }
+        }
+        Files.deleteIfExists(path);
+        throw new IOException("No readable account checkpoint: " + cause.getMessage());
+    }
+
+    /** Older checkpoints kept next to {@code path}, newest first. */
+    static List<Path> generations(Path path) throws IOException {
+        List<Path> found = new ArrayList<>();
+        Path dir = path.toAbsolutePath().getParent();
+        if (!Files.isDirectory(dir)) {
+            return found;
+        }
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path p : entries) {
+                if (p.getFileName().toString().substring(prefix.length()).matches("\\d+")) {
+                    found.add(p);
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong((Path p) -> generationSeq(p)).reversed());
+        return found;
+    }
+
+    private static long generationSeq(Path generation) {
+        String name = generation.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    private static void writeSnapshot(Path path, AccountCodec.Snapshot snapshot) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            AccountCodec.Writer writer = new AccountCodec.Writer(Channels.newOutputStream(ch),
+                    snapshot.checkpointSeq);
+            for (Account a : snapshot.accounts) {
+                writer.write(a);
+            }
+            writer.finish(snapshot.totals, null);
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(path);
+    }
+
+    /** Spill file attached to every account that becomes resident from now on. */
+    void setHistoryFile(HistorySpillFile file) {
+        historyFile = file;
+    }
+
+    /** Posting totals per day over every account of this store, saved with each checkpoint. */
+    DailyTotals totals() {
+        return totals;
+    }
+
+    /** Legs of transfers between shards applied to this store, saved with each checkpoint. */
+    TransferLegs transferLegs() {
+        return legs;
+    }
+
+    long checkpointSeq() {
+        Mapping m = mapping;
+        return m == null ? 0 : m.checkpointSeq;
+    }
+
+    /**
+     * The account with this full number, pinned in the cache until
+     * {@link #release}d; null if there is none.
+     */
+    Account acquire(String accNum) throws IOException {
+        // The cache is keyed by the canonical form the checkpoint decodes to, so "01000123456" cannot
+        // miss a resident account and decode a second copy of it
+        long number = Long.parseLong(accNum);
+        String key = Long.toString(number);
+        AccountCache cache = segment(key);
+        synchronized (cache) {
+            Account a = cache.acquire(key);
+            if (a != null) {
+                return a;
+            }
+            // Read after the miss: an account is only evicted once the checkpoint holding it is mapped
+            Mapping m = mapping;
+            long offset = m == null ? -1 : m.probe(number);
+            if (offset < 0) {
+                return null;
+            }
+            a = AccountCodec.decode(AccountCodec.readRecord(m.file, (int) offset));
+            a.getTransactionHistory().attach(historyFile);
+            cache.admit(a, true, true);
+            return a;
+        }
+    }
+
+    /**
+     * {@link #acquire}s the accounts {@code numbers[from, to)}; an entry is
+     * null where there is no such account.
+     */
+    Account[] acquireAll(List<String> numbers, int from, int to) throws IOException {
+        Account[] accounts = new Account[to - from];
+        try {
+            for (int i = from; i < to; i++) {
+                accounts[i - from] = acquire(numbers.get(i));
+            }
+        } catch (IOException e) {
+            releaseAll(accounts);
+            throw e;
+        }
+        return accounts;
+    }
+
+    /** Ends an {@link #acquireAll}; null entries are skipped. */
+    void releaseAll(Account[] accounts) {
+        for (Account a : accounts) {
+            if (a != null) {
+                release(a);
+            }
+        }
+    }
+
+    /** Ends one {@link #acquire}; the account may be evicted once no one holds it and its changes are saved. */
+    void release(Account a) {
+        AccountCache cache = segment(a.getAccountNumber());
+        synchronized (cache) {
+            cache.release(a);
+        }
+    }
+
+    boolean containsNumber(String accNum) {
+        long number = Long.parseLong(accNum);
+        String key = Long.toString(number);
+        AccountCache cache = segment(key);
+        synchronized (cache) {
+            if (cache.contains(key)) {
+                return true;
+            }
+        }
+        Mapping m = mapping;
+        return m != null && m.probe(number) >= 0;
+    }
+
+    /** Full numbers of every account: those in the mapped checkpoint, then those created since. */
+    List<String> accountNumbers() {
+        Mapping m = mapping;
+        Set<String> numbers = new LinkedHashSet<>(m == null ? 16 : m.count * 2);
+        if (m != null) {
+            for (int slot = 0; slot <= m.mask; slot++) {
+                long key = m.file.getLong(m.numberTable + slot * AccountCodec.SLOT);
+                if (key != 0) {
+                    numbers.add(Long.toString(key));
+                }
+            }
+        }
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                numbers.addAll(cache.keys());
+            }
+        }
+        return new ArrayList<>(numbers);
+    }
+
+    /** Adds a newly created account; it stays resident at least until a checkpoint holds it. */
+    void add(Account a) {
+        a.getTransactionHistory().attach(historyFile);
+        AccountCache cache = segment(a.getAccountNumber());
+        synchronized (cache) {
+            cache.admit(a, false, false);
+        }
+    }
+
+    /** Bounds the heap taken by resident accounts, in bytes of their estimated size. */
+    void setCacheCapacity(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                cache.setCapacity(Math.max(1, bytes / SEGMENTS));
+            }
+        }
+    }
+
+    int residentCount() {
+        int n = 0;
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                n += cache.size();
+            }
+        }
+        return n;
+    }
+
+    int pinnedCount() {
+        int n = 0;
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                n += cache.pinnedCount();
+            }
+        }
+        return n;
+    }
+
+    /** Estimated heap bytes of the resident accounts. */
+    long residentBytes() {
+        long n = 0;
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                n += cache.weight();
+            }
+        }
+        return n;
+    }
+
+    long cacheCapacity() {
+        long n = 0;
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                n += cache.capacity();
+            }
+        }
+        return n;
+    }
+
+    int mappedCount() {
+        Mapping m = mapping;
+        return m == null ? 0 : m.count;
+    }
+
+    /**
+     * Faults the whole mapping into memory so the first lookups after startup
+     * do not wait on the disk.
+     */
+    void warm() {
+        Mapping m = mapping;
+        if (m != null) {
+            m.file.load();
+        }
+    }
+
+    /** Captures and writes a checkpoint in one go; see {@link #capture} and {@link #write}. */
+    synchronized void checkpoint(long seq) throws IOException {
+        write(capture(seq));
+    }
+
+    /**
+     * Encodes the accounts changed since the last checkpoint and copies the
+     * daily totals and transfer legs as of journal sequence {@code seq}. Call
+     * with no posting in progress; this is the only part of a checkpoint that
+     * has to hold postings off, and it does no I/O.
+     */
+    synchronized Checkpoint capture(long seq) {
+        List<Integer> dirtyVersions = new ArrayList<>();
+        List<Account> dirty = new ArrayList<>();
+        for (AccountCache cache : segments) {
+            synchronized (cache) {
+                dirty.addAll(cache.dirty(dirtyVersions));
+            }
+        }
+        Account[] accounts = dirty.toArray(new Account[0]);
+        int[] versions = new int[accounts.length];
+        Set<Long> numbers = new HashSet<>(accounts.length * 2);
+        ByteArrayOutputStream records = new ByteArrayOutputStream(accounts.length * 256 + 16);
+        int[] ends = new int[accounts.length];
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        for (int i = 0; i < ends.length; i++) {
+            Account a = accounts[i];
+            versions[i] = dirtyVersions.get(i);
+            numbers.add(Long.parseLong(a.getAccountNumber()));
+            buf = AccountCodec.encode(a, buf);
+            records.write(buf.array(), 0, buf.position());
+            ends[i] = records.size();
+        }
+        Mapping m = mapping;
+        return new Checkpoint(seq, m == null ? null : m.file, m == null ? 0 : m.count, numbers,
+                records.toByteArray(), ends, totals.copy(), legs.copy(System.currentTimeMillis()), accounts, versions);
+    }
+
+    /**
+     * Writes a captured checkpoint: accounts changed at capture come from their
+     * encoded copies, every other record is copied byte for byte from the
+     * mapping of that time. The file is forced to disk, the current checkpoint
+     * is kept as a generation and the new one renamed over it and remapped;
+     * the accounts written are then clean and may be evicted unless they
+     * changed again. Lookups and postings continue meanwhile.
+     *
+     * @return the sequence number of the oldest checkpoint still kept
+     */
+    long write(Checkpoint c) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            AccountCodec.Writer writer = new AccountCodec.Writer(Channels.newOutputStream(ch), c.seq);
+            if (c.source != null) {
+                int offset = AccountCodec.HEADER;
+                for (int i = 0; i < c.sourceCount; i++) {
+                    ByteBuffer body = AccountCodec.readRecord(c.source, offset);
+                    if (!c.changed.contains(body.getLong(0))) {
+                        writer.copy(body);
+                    }
+                    offset += AccountCodec.RECORD_HEADER + body.limit();
+                }
+            }
+            for (int i = 0, from = 0; i < c.ends.length; from = c.ends[i++]) {
+                writer.copy(ByteBuffer.wrap(c.records, from, c.ends[i] - from));
+            }
+            writer.finish(c.totals, c.legs);
+            ch.force(true);
+        }
+        synchronized (this) {
+            if (mapping != null) {
+                keepGeneration(path.resolveSibling(path.getFileName() + "." + mapping.checkpointSeq));
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(path);
+            map();
+            // Only now may the accounts written be evicted, so a lookup that misses finds them in the new mapping
+            for (int i = 0; i < c.accounts.length; i++) {
+                AccountCache cache = segment(c.accounts[i].getAccountNumber());
+                synchronized (cache) {
+                    cache.saved(c.accounts[i], c.versions[i]);
+                }
+            }
+            for (AccountCache cache : segments) {
+                synchronized (cache) {
+                    cache.trim();
+                }
+            }
+            return pruneGenerations();
+        }
+    }
+
+    private void keepGeneration(Path generation) throws IOException {
+        Files.deleteIfExists(generation);
+        try {
+            Files.createLink(generation, path);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(path, generation);
+        }
+    }
+
+    // Deletes all but the newest GENERATIONS - 1 older checkpoints
+    private long pruneGenerations() throws IOException {
+        List<Path> older = generations(path);
+        long oldest = mapping.checkpointSeq;
+        for (int i = 0; i < older.size(); i++) {
+            if (i < GENERATIONS - 1) {
+                oldest = Math.min(oldest, generationSeq(older.get(i)));
+            } else {
+                Files.delete(older.get(i));
+            }
+        }
+        return oldest;
+    }
+
+    /** Forces the directory entries next to {@code path}, e.g. after a rename; where the platform allows it. */
+    static void syncDirectory(Path path) {
+        try (FileChannel dir = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // The rename is still atomic, only not yet forced
+        }
+    }
+
+    private AccountCache segment(String key) {
+        return segments[TransactionEngine.spread(key) & (SEGMENTS - 1)];
+    }
+}
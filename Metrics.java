@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and latency histograms for the account operations.
+ * Recording is lock-free and does not allocate: counters are {@link LongAdder}s
+ * and timers bump one slot of a fixed bucket array. Snapshots are exported in
+ * the Prometheus text format (to a file a node exporter can pick up) and as
+ * attributes of the {@code ATMSystem:type=Metrics} MBean.
+ */
+final class Metrics {
+    private static final List<Counter> COUNTERS = new ArrayList<>();
+    private static final List<Timer> TIMERS = new ArrayList<>();
+    private static final List<DailyTotals> DAILY_TOTALS = new CopyOnWriteArrayList<>();
+    private static final List<MappedAccountStore> ACCOUNT_STORES = new CopyOnWriteArrayList<>();
+    private static final String[] POSTING_OPS = { null, "deposit", "withdraw", "transfer_out", "transfer_in" };
+
+    static final Counter LOGIN_SUCCESS = new Counter("atm_login_attempts_total", "result=\"success\"",
+            "Login attempts by outcome");
+    static final Counter LOGIN_FAILURE = new Counter("atm_login_attempts_total", "result=\"failure\"", null);
+    static final Counter LOGIN_LOCKED = new Counter("atm_login_attempts_total", "result=\"locked\"", null);
+    static final Counter TERMINAL_LOCKOUTS = new Counter("atm_login_lockouts_total", "scope=\"terminal\"",
+            "Terminals and accounts locked after repeated wrong PINs");
+    static final Counter ACCOUNT_LOCKOUTS = new Counter("atm_login_lockouts_total", "scope=\"account\"", null);
+    static final Counter CREDENTIAL_CACHE_HIT = new Counter("atm_credential_cache_total", "result=\"hit\"",
+            "PIN checks answered from the verification cache");
+    static final Counter CREDENTIAL_CACHE_MISS = new Counter("atm_credential_cache_total", "result=\"miss\"", null);
+    static final Counter ACCOUNT_CACHE_HIT = new Counter("atm_account_cache_total", "result=\"hit\"",
+            "Account lookups by whether the account was already on the heap");
+    static final Counter ACCOUNT_CACHE_MISS = new Counter("atm_account_cache_total", "result=\"miss\"", null);
+    static final Counter ACCOUNT_CACHE_EVICTIONS = new Counter("atm_account_cache_evictions_total", null,
+            "Accounts dropped from the heap to stay within the cache size");
+    static final Counter WITHDRAW_REJECTED = new Counter("atm_withdrawals_rejected_total", null,
+            "Withdrawals refused by the minimum balance rule");
+    static final Counter WITHDRAW_UNDISPENSABLE = new Counter("atm_withdrawals_undispensable_total", null,
+            "Withdrawals refused because the cassettes cannot make up the amount");
+    static final Counter WITHDRAW_FLAGGED = new Counter("atm_withdrawals_anomalous_total", "action=\"flag\"",
+            "Withdrawals whose anomaly score reached the flag or the hold level");
+    static final Counter WITHDRAW_HELD = new Counter("atm_withdrawals_anomalous_total", "action=\"hold\"", null);
+    static final Counter CASH_LOW_ALERTS = new Counter("atm_cash_low_alerts_total", null,
+            "Cassettes that fell to their low-cash level");
+    static final Counter BATCH_ACCEPTED = new Counter("atm_batch_postings_total", "result=\"accepted\"",
+            "Postings from batch files by outcome");
+    static final Counter BATCH_REJECTED = new Counter("atm_batch_postings_total", "result=\"rejected\"", null);
+    static final Counter JOURNAL_BATCHES = new Counter("atm_journal_batches_total", null,
+            "Journal writes, each ending in one fsync");
+    static final Counter JOURNAL_COALESCED = new Counter("atm_journal_coalesced_records_total", null,
+            "Postings folded into another record of the same batch");
+    static final Counter SHARD_TRANSFERS = new Counter("atm_shard_transfers_total", null,
+            "Transfers between accounts on different shards");
+    static final Counter TRANSFERS_IN_DOUBT = new Counter("atm_shard_transfers_in_doubt_total", null,
+            "Cross-shard transfers that a restart could not finish");
+    static final Counter JOURNAL_ERRORS = new Counter("atm_io_errors_total", "component=\"journal\"",
+            "I/O failures by component");
+    static final Counter CHECKPOINT_ERRORS = new Counter("atm_io_errors_total", "component=\"checkpoint\"", null);
+    static final Counter HISTORY_ERRORS = new Counter("atm_io_errors_total", "component=\"history\"", null);
+    static final Counter LOOKUP_ERRORS = new Counter("atm_io_errors_total", "component=\"lookup\"", null);
+    static final Counter SERVER_ERRORS = new Counter("atm_io_errors_total", "component=\"server\"", null);
+    static final Counter CASSETTE_ERRORS = new Counter("atm_io_errors_total", "component=\"cassettes\"", null);
+
+    static final Timer LOGIN = new Timer("atm_login_duration_seconds", null,
+            "Login by account number and PIN, including lookup and PIN check");
+    static final Timer LOOKUP_NUMBER = new Timer("atm_lookup_duration_seconds", "key=\"number\"",
+            "Account lookups by key");
+    static final Timer CREATE = new Timer("atm_operation_duration_seconds", "op=\"create\"",
+            "Account operations including the durable commit");
+    static final Timer WITHDRAW = new Timer("atm_operation_duration_seconds", "op=\"withdraw\"", null);
+    static final Timer DEPOSIT = new Timer("atm_operation_duration_seconds", "op=\"deposit\"", null);
+    static final Timer TRANSFER = new Timer("atm_operation_duration_seconds", "op=\"transfer\"", null);
+    static final Timer TRANSFER_OUT = new Timer("atm_operation_duration_seconds", "op=\"transfer_out\"", null);
+    static final Timer TRANSFER_IN = new Timer("atm_operation_duration_seconds", "op=\"transfer_in\"", null);
+    static final Timer JOURNAL_APPEND = new Timer("atm_journal_append_duration_seconds", null,
+            "Writing one batch of journal records");
+    static final Timer JOURNAL_FSYNC = new Timer("atm_journal_fsync_duration_seconds", null,
+            "Forcing the journal to stable storage");
+    static final Timer CHECKPOINT = new Timer("atm_checkpoint_duration_seconds", null,
+            "Writing a full checkpoint");
+    static final Timer CHECKPOINT_CAPTURE = new Timer("atm_checkpoint_capture_duration_seconds", null,
+            "Time postings are held off to capture a checkpoint");
+    static final Timer DISPENSE_PLAN = new Timer("atm_dispense_plan_duration_seconds", null,
+            "Time to choose the notes for a withdrawal");
+    static final Timer ANOMALY_SCORE = new Timer("atm_anomaly_score_duration_seconds", null,
+            "Time to score a withdrawal for anomalies");
+    static final Timer SCREEN_LOGIN = new Timer("atm_screen_switch_duration_seconds", "screen=\"login\"",
+            "Terminal screen switches until the new screen is painted");
+    static final Timer SCREEN_CREATE = new Timer("atm_screen_switch_duration_seconds", "screen=\"create\"", null);
+    static final Timer SCREEN_MENU = new Timer("atm_screen_switch_duration_seconds", "screen=\"menu\"", null);
+
+    private Metrics() {
+    }
+
+    static final class Counter {
+        final String name;
+        final String labels;
+        final String help;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            COUNTERS.add(this);
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    /** Latency histogram with fixed bucket bounds from 1 us to 10 s. */
+    static final class Timer {
+        private static final long[] BOUNDS_NANOS = {
+                1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+                1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000, 250_000_000,
+                500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L };
+
+        final String name;
+        final String labels;
+        final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        Timer(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            TIMERS.add(this);
+        }
+
+        /** Records the time since {@code startNanos}, a value from {@link System#nanoTime()}. */
+        void stop(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sumNanos.add(nanos);
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                n += buckets.get(i);
+            }
+            return n;
+        }
+
+        double meanMicros() {
+            long n = count();
+            return n == 0 ? 0 : sumNanos.sum() / 1e3 / n;
+        }
+
+        /** Upper bound of the bucket holding the given percentile, in microseconds. */
+        double percentileMicros(double percentile) {
+            long n = count();
+            if (n == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(percentile / 100.0 * n);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= wanted) {
+                    return BOUNDS_NANOS[i] / 1e3;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /** Writes every metric in the Prometheus text exposition format. */
+    static void writePrometheus(Writer out) throws IOException {
+        String family = null;
+        for (Counter c : COUNTERS) {
+            if (!c.name.equals(family)) {
+                family = c.name;
+                header(out, c.name, c.help, "counter");
+            }
+            out.write(c.name + braces(c.labels, null) + " " + c.get() + "\n");
+        }
+        for (Timer t : TIMERS) {
+            if (!t.name.equals(family)) {
+                family = t.name;
+                header(out, t.name, t.help, "histogram");
+            }
+            long cumulative = 0;
+            for (int i = 0; i < Timer.BOUNDS_NANOS.length; i++) {
+                cumulative += t.buckets.get(i);
+                out.write(t.name + "_bucket" + braces(t.labels, "le=\"" + Timer.BOUNDS_NANOS[i] / 1e9 + "\"") + " "
+                        + cumulative + "\n");
+            }
+            cumulative += t.buckets.get(Timer.BOUNDS_NANOS.length);
+            out.write(t.name + "_bucket" + braces(t.labels, "le=\"+Inf\"") + " " + cumulative + "\n");
+            out.write(t.name + "_sum" + braces(t.labels, null) + " " + t.sumNanos.sum() / 1e9 + "\n");
+            out.write(t.name + "_count" + braces(t.labels, null) + " " + cumulative + "\n");
+        }
+        int today = DailyTotals.today();
+        header(out, "atm_postings_today", "Postings so far today by operation, over all stores", "gauge");
+        for (byte op = 1; op < POSTING_OPS.length; op++) {
+            long n = 0;
+            for (DailyTotals d : DAILY_TOTALS) {
+                n += d.count(today, op);
+            }
+            out.write("atm_postings_today{op=\"" + POSTING_OPS[op] + "\"} " + n + "\n");
+        }
+        header(out, "atm_posted_today_birr", "Amount posted so far today by operation, over all stores", "gauge");
+        for (byte op = 1; op < POSTING_OPS.length; op++) {
+            long santim = 0;
+            for (DailyTotals d : DAILY_TOTALS) {
+                santim += d.amount(today, op);
+            }
+            out.write("atm_posted_today_birr{op=\"" + POSTING_OPS[op] + "\"} " + Money.format(santim) + "\n");
+        }
+        long entries = 0;
+        long pinned = 0;
+        long bytes = 0;
+        long capacity = 0;
+        for (MappedAccountStore store : ACCOUNT_STORES) {
+            entries += store.residentCount();
+            pinned += store.pinnedCount();
+            bytes += store.residentBytes();
+            capacity += store.cacheCapacity();
+        }
+        header(out, "atm_account_cache_entries", "Accounts resident on the heap, over all stores", "gauge");
+        out.write("atm_account_cache_entries " + entries + "\n");
+        header(out, "atm_account_cache_pinned", "Resident accounts held by a session or operation", "gauge");
+        out.write("atm_account_cache_pinned " + pinned + "\n");
+        header(out, "atm_account_cache_bytes", "Estimated heap size of the resident accounts", "gauge");
+        out.write("atm_account_cache_bytes " + bytes + "\n");
+        header(out, "atm_account_cache_capacity_bytes", "Configured account cache size, over all stores", "gauge");
+        out.write("atm_account_cache_capacity_bytes " + capacity + "\n");
+    }
+
+    /** Includes a store's account cache in the cache gauges until it is removed again. */
+    static void addAccountStore(MappedAccountStore store) {
+        ACCOUNT_STORES.add(store);
+    }
+
+    static void removeAccountStore(MappedAccountStore store) {
+        ACCOUNT_STORES.remove(store);
+    }
+
+    /** Includes a store's {@link DailyTotals} in the "today" gauges until it is removed again. */
+    static void addDailyTotals(DailyTotals totals) {
+        DAILY_TOTALS.add(totals);
+    }
+
+    static void removeDailyTotals(DailyTotals totals) {
+        DAILY_TOTALS.remove(totals);
+    }
+
+    /** Replaces {@code file} with a fresh snapshot; readers never see a partial file. */
+    static void writePrometheus(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writePrometheus(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Rewrites {@code file} every {@code periodSeconds} on a daemon thread. */
+    static void startFileExport(Path file, long periodSeconds) {
+        ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atm-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        exporter.scheduleAtFixedRate(() -> {
+            try {
+                writePrometheus(file);
+            } catch (IOException e) {
+                System.err.println("Error writing metrics: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Registers the MBean once per JVM; later calls are ignored. */
+    static synchronized void registerJmx() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ATMSystem:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Jmx(), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Error registering metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static void header(Writer out, String name, String help, String type) throws IOException {
+        if (help != null) {
+            out.write("# HELP " + name + " " + help + "\n");
+        }
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static String braces(String labels, String extra) {
+        if (labels == null && extra == null) {
+            return "";
+        }
+        if (labels == null) {
+            return "{" + extra + "}";
+        }
+        return extra == null ? "{" + labels + "}" : "{" + labels + "," + extra + "}";
+    }
+
+    /** Attribute name for JMX, e.g. atm_io_errors_total.journal */
+    private static String attributeName(String name, String labels) {
+        if (labels == null) {
+            return name;
+        }
+        return name + "." + labels.substring(labels.indexOf('"') + 1, labels.length() - 1);
+    }
+
+    private static final class Jmx implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Counter c : COUNTERS) {
+                if (attributeName(c.name, c.labels).equals(attribute)) {
+                    return c.get();
+                }
+            }
+            for (Timer t : TIMERS) {
+                String base = attributeName(t.name, t.labels);
+                if (attribute.equals(base + ".count")) {
+                    return t.count();
+                } else if (attribute.equals(base + ".meanMicros")) {
+                    return t.meanMicros();
+                } else if (attribute.equals(base + ".p99Micros")) {
+                    return t.percentileMicros(99);
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException e) {
+                    // Unknown names are left out, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Counter c : COUNTERS) {
+                attributes.add(new MBeanAttributeInfo(attributeName(c.name, c.labels), "long",
+                        c.help == null ? c.name : c.help, true, false, false));
+            }
+            for (Timer t : TIMERS) {
+                String base = attributeName(t.name, t.labels);
+                attributes.add(new MBeanAttributeInfo(base + ".count", "long", "Recorded events", true, false,
+                        false));
+                attributes.add(new MBeanAttributeInfo(base + ".meanMicros", "double", "Mean latency", true, false,
+                        false));
+                attributes.add(new MBeanAttributeInfo(base + ".p99Micros", "double",
+                        "99th percentile bucket bound", true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "ATM operation metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
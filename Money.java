@@ -0,0 +1,109 @@
+/**
+ * Birr amounts as {@code long} santim (1/100 Birr). Keeping money in a
+ * primitive means balances add up exactly and no arithmetic allocates; every
+ * operation that could overflow throws {@link ArithmeticException} instead of
+ * wrapping.
+ */
+final class Money {
+    static final long SANTIM_PER_BIRR = 100;
+
+    // 16 integer digits times 100 santim still fits in a long
+    private static final int MAX_INTEGER_DIGITS = 16;
+
+    private Money() {
+    }
+
+    static long ofBirr(long birr) {
+        return Math.multiplyExact(birr, SANTIM_PER_BIRR);
+    }
+
+    /** Converts a floating-point Birr value from an older file format, rounding to the nearest santim. */
+    static long fromDouble(double birr) {
+        double santim = Math.rint(birr * SANTIM_PER_BIRR);
+        if (Double.isNaN(santim) || Math.abs(santim) >= 0x1p63) {
+            throw new ArithmeticException("Amount out of range: " + birr);
+        }
+        return (long) santim;
+    }
+
+    static double toDouble(long santim) {
+        return santim / (double) SANTIM_PER_BIRR;
+    }
+
+    static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Parses user input such as "250", "250.5" or "250.75" into santim. Only
+     * non-negative amounts with at most two decimals are accepted.
+     *
+     * @throws NumberFormatException if the text is not such an amount
+     */
+    static long parse(CharSequence text) {
+        int end = text.length();
+        int i = 0;
+        while (i < end && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        while (end > i && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (i < end && text.charAt(i) == '+') {
+            i++;
+        }
+        long birr = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_INTEGER_DIGITS) {
+                    throw new NumberFormatException("Amount too large: " + text);
+                }
+                birr = birr * 10 + (c - '0');
+            } else {
+                break;
+            }
+        }
+        long santim = 0;
+        int decimals = 0;
+        if (i < end && text.charAt(i) == '.') {
+            for (i++; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9' || ++decimals > 2) {
+                    throw new NumberFormatException("Invalid amount: " + text);
+                }
+                santim = santim * 10 + (c - '0');
+            }
+            if (decimals == 1) {
+                santim *= 10;
+            }
+        }
+        if (i != end || digits + decimals == 0) {
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+        return birr * SANTIM_PER_BIRR + santim;
+    }
+
+    /** Formats as "1250.75", the way amounts are shown on screen and in history. */
+    static String format(long santim) {
+        return appendTo(new StringBuilder(24), santim).toString();
+    }
+
+    static StringBuilder appendTo(StringBuilder sb, long santim) {
+        if (santim < 0) {
+            sb.append('-');
+        }
+        long birr = Math.abs(santim / SANTIM_PER_BIRR);
+        long cents = Math.abs(santim % SANTIM_PER_BIRR);
+        sb.append(birr).append('.');
+        if (cents < 10) {
+            sb.append('0');
+        }
+        return sb.append(cents);
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands journal records to one writer thread. Submitting assigns the sequence
+ * number and queues the record; the writer drains whatever has queued up,
+ * writes it with one {@link TransactionJournal#write} (one fsync) and then
+ * completes every submitter's future. The queue is bounded, so a stalled disk
+ * slows submitters down instead of growing the heap.
+ *
+ * Within a batch, the deposits and withdrawals of an account that no other
+ * record in the same batch touches are coalesced into one POSTINGS record.
+ * Such postings depend only on that account, so moving them together cannot
+ * change the outcome of a replay. Transfers between two accounts that nothing
+ * else in the batch touches are settled the same way, into one TRANSFERS
+ * record per pair that keeps every transfer and nets their amounts.
+ */
+class PersistencePipeline implements Closeable {
+    static final int QUEUE_CAPACITY = 4096;
+    static final int MAX_BATCH = 1024;
+
+    private static final class Pending {
+        final TransactionJournal.Record record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(TransactionJournal.Record record) {
+            this.record = record;
+        }
+    }
+
+    private final TransactionJournal journal;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private long nextSeq;
+    private volatile boolean closed;
+
+    PersistencePipeline(TransactionJournal journal) {
+        this(journal, journal.lastSeq() + 1);
+    }
+
+    /** Numbers records from {@code firstSeq}, e.g. to stay above ids handed out before a reset. */
+    PersistencePipeline(TransactionJournal journal, long firstSeq) {
+        this.journal = journal;
+        this.nextSeq = firstSeq;
+        this.writer = new Thread(this::run, "atm-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    CompletableFuture<Void> submitCreate(String accountNumber, PinCredential credential, String name,
+            long initialBalance) {
+        return submit(TransactionJournal.CREATE, accountNumber, initialBalance, credential, name, null);
+    }
+
+    CompletableFuture<Void> submitDeposit(String accountNumber, long amount) {
+        return submit(TransactionJournal.DEPOSIT, accountNumber, amount, null, null, null);
+    }
+
+    CompletableFuture<Void> submitWithdraw(String accountNumber, long amount) {
+        return submit(TransactionJournal.WITHDRAW, accountNumber, amount, null, null, null);
+    }
+
+    CompletableFuture<Void> submitTransfer(String fromAccount, String toAccount, long amount) {
+        return submit(TransactionJournal.TRANSFER, fromAccount, amount, null, null, toAccount);
+    }
+
+    /** One leg of a transfer between shards; {@code type} is TRANSFER_OUT or TRANSFER_IN. */
+    synchronized CompletableFuture<Void> submitTransferLeg(byte type, String accountNumber, String counterparty,
+            long amount, long transferId) {
+        return queue(new TransactionJournal.Record(type, nextSeq, System.currentTimeMillis(), accountNumber, amount,
+                counterparty, transferId));
+    }
+
+    /**
+     * A transfer between shards for a {@link ShardedATMService} log; completes
+     * with its sequence number, the transfer id, once it is durable.
+     */
+    synchronized CompletableFuture<Long> submitShardTransfer(String fromAccount, String toAccount, long amount) {
+        long seq = nextSeq;
+        return submitTransfer(fromAccount, toAccount, amount).thenApply(v -> seq);
+    }
+
+    /** Closes the shard transfer {@code transferSeq} in a {@link ShardedATMService} log. */
+    CompletableFuture<Void> submitSettled(String fromAccount, long transferSeq) {
+        return submit(TransactionJournal.SETTLED, fromAccount, transferSeq, null, null, null);
+    }
+
+    /** Sequence number of the most recently submitted record. */
+    synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    /** Writes out everything already submitted and stops the writer. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing the journal");
+        }
+    }
+
+    private synchronized CompletableFuture<Void> submit(byte type, String accountNumber, long amount,
+            PinCredential credential, String name, String counterparty) {
+        return queue(new TransactionJournal.Record(type, nextSeq, System.currentTimeMillis(), accountNumber, amount,
+                credential, name, counterparty));
+    }
+
+    // Sequence numbers are taken and queued under one lock so the queue is in sequence order
+    private synchronized CompletableFuture<Void> queue(TransactionJournal.Record record) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Journal pipeline is closed"));
+        }
+        Pending p = new Pending(record);
+        try {
+            queue.put(p);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(new IOException("Interrupted while queueing journal record"));
+        }
+        nextSeq++;
+        return p.done;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            Pending first;
+            try {
+                first = queue.poll(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+            }
+            if (first == null) {
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            try {
+                List<TransactionJournal.Record> records = coalesce(batch);
+                journal.write(records);
+                Metrics.JOURNAL_BATCHES.increment();
+                Metrics.JOURNAL_COALESCED.add(batch.size() - records.size());
+                for (Pending p : batch) {
+                    p.done.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                Metrics.JOURNAL_ERRORS.increment();
+                System.err.println("Error writing journal batch: " + e.getMessage());
+                for (Pending p : batch) {
+                    p.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    static List<TransactionJournal.Record> coalesce(List<Pending> batch) {
+        // Records touching each account, and how many of them are postings or transfers of its group
+        Map<String, Integer> touches = new HashMap<>();
+        Map<String, Integer> grouped = new HashMap<>();
+        boolean any = false;
+        for (Pending p : batch) {
+            TransactionJournal.Record r = p.record;
+            touches.merge(r.accountNumber, 1, Integer::sum);
+            if (r.counterparty != null) {
+                touches.merge(r.counterparty, 1, Integer::sum);
+            }
+            String key = groupKey(r);
+            if (key != null) {
+                any |= grouped.merge(key, 1, Integer::sum) > 1;
+            }
+        }
+        List<TransactionJournal.Record> records = new ArrayList<>(batch.size());
+        if (!any) {
+            for (Pending p : batch) {
+                records.add(p.record);
+            }
+            return records;
+        }
+
+        Map<String, Integer> remaining = new HashMap<>(grouped);
+        Map<String, List<TransactionJournal.Record>> groups = new HashMap<>();
+        for (Pending p : batch) {
+            TransactionJournal.Record r = p.record;
+            String key = groupKey(r);
+            int size = key == null ? 0 : grouped.get(key);
+            boolean coalescable = size > 1 && touches.get(r.accountNumber) == size
+                    && (r.counterparty == null || touches.get(r.counterparty) == size);
+            if (!coalescable) {
+                records.add(r);
+                continue;
+            }
+            List<TransactionJournal.Record> group = groups.computeIfAbsent(key, k -> new ArrayList<>());
+            group.add(r);
+            // Emit at the group's last record in the batch, or when the record is full
+            int left = remaining.merge(key, -1, Integer::sum);
+            if (left == 0 || group.size() == TransactionJournal.MAX_POSTINGS) {
+                records.add(merge(group));
+                group.clear();
+            }
+        }
+        return records;
+    }
+
+    // Deposits and withdrawals group by account, transfers by the unordered pair of accounts
+    private static String groupKey(TransactionJournal.Record r) {
+        if (r.type == TransactionJournal.DEPOSIT || r.type == TransactionJournal.WITHDRAW) {
+            return r.accountNumber;
+        }
+        if (r.type == TransactionJournal.TRANSFER) {
+            return r.accountNumber.compareTo(r.counterparty) < 0 ? r.accountNumber + ":" + r.counterparty
+                    : r.counterparty + ":" + r.accountNumber;
+        }
+        return null;
+    }
+
+    private static TransactionJournal.Record merge(List<TransactionJournal.Record> group) {
+        if (group.size() == 1) {
+            return group.get(0);
+        }
+        int n = group.size();
+        TransactionJournal.Record head = group.get(0);
+        boolean transfers = head.type == TransactionJournal.TRANSFER;
+        byte[] types = new byte[n];
+        long[] seqs = new long[n];
+        long[] amounts = new long[n];
+        long[] timestamps = new long[n];
+        for (int i = 0; i < n; i++) {
+            TransactionJournal.Record r = group.get(i);
+            if (transfers) {
+                types[i] = r.accountNumber.equals(head.accountNumber) ? TransactionJournal.TRANSFER_OUT
+                        : TransactionJournal.TRANSFER_IN;
+            } else {
+                types[i] = r.type;
+            }
+            seqs[i] = r.seq;
+            amounts[i] = r.amount;
+            timestamps[i] = r.timestamp;
+        }
+        return new TransactionJournal.Record(head.accountNumber, transfers ? head.counterparty : null, types, seqs,
+                amounts, timestamps);
+    }
+}
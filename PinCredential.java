@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 hash of an account PIN; the PIN itself is never
+ * stored. Deriving a hash takes {@link #ITERATIONS} rounds on purpose, which
+ * is what {@link CredentialVerifier} caches away for repeat logins. Hashes are
+ * compared in constant time.
+ *
+ * <pre>
+ * credential := salt:byte[16] hash:byte[32]
+ * </pre>
+ */
+final class PinCredential {
+    static final int SALT_BYTES = 16;
+    static final int HASH_BYTES = 32;
+    static final int ENCODED_BYTES = SALT_BYTES + HASH_BYTES;
+    static final int ITERATIONS = 10_000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Checked instead when the account does not exist, so the answer takes as long as a wrong PIN. */
+    static final PinCredential NONE = create("0000");
+
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PinCredential(byte[] salt, byte[] hash) {
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    static PinCredential create(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new PinCredential(salt, derive(pin, salt));
+    }
+
+    static PinCredential read(ByteBuffer buf) {
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] hash = new byte[HASH_BYTES];
+        buf.get(salt);
+        buf.get(hash);
+        return new PinCredential(salt, hash);
+    }
+
+    void write(ByteBuffer buf) {
+        buf.put(salt);
+        buf.put(hash);
+    }
+
+    boolean matches(String pin) {
+        return MessageDigest.isEqual(hash, derive(pin, salt));
+    }
+
+    private static byte[] derive(String pin, byte[] salt) {
+        char[] chars = pin.toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, ITERATIONS, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+}
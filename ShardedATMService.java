@@ -0,0 +1,376 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Coordinator over N {@link AccountShard}s. An account lives on shard
+ * {@code accountNumber mod N}; shards only generate account numbers that route
+ * back to themselves, so logins and lookups go straight to one shard. Each
+ * shard keeps the login lockout for its own accounts, so a terminal's wrong
+ * PINs are counted per shard. Shards run in this JVM ({@link #openLocal}) or as
+ * shard servers in other JVMs on the same host ({@link #connect}); both use
+ * the directory {@code shard-i}, so one layout can be switched for the other.
+ *
+ * A transfer within one shard is a single atomic shard operation. A transfer
+ * across shards debits the source and then credits the target, each durable on
+ * its own shard. The coordinator journals the transfer before the debit and a
+ * SETTLED record after the credit (or the refund), so a crash or a failed leg
+ * in between leaves an unsettled record. The records go through a
+ * {@link PersistencePipeline}, so concurrent transfers share one fsync. Every leg carries the transfer's
+ * sequence number and a shard applies each leg of a transfer only once (see
+ * {@link TransferLegs}), so on the next start the unsettled transfers are
+ * simply run again: each ends credited, or refunded or never debited, and is
+ * then settled. Only one that cannot be finished that way, e.g. because its
+ * refund is refused or it is too old for the shards to still know its legs,
+ * is reported on stderr and in {@code transfers.indoubt} for an operator.
+ */
+class ShardedATMService implements ATMService, Closeable {
+    static final String TRANSFERS_NAME = "transfers.journal";
+    static final String IN_DOUBT_NAME = "transfers.indoubt";
+
+    private final List<AccountShard> shards;
+    private final Path dir;
+    private final TransactionJournal transfers;
+    private final PersistencePipeline coordinator;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final AtomicInteger unsettled = new AtomicInteger();
+    // Transfers begin under the read lock; the log is only reset under the write lock
+    private final ReadWriteLock resetLock = new ReentrantReadWriteLock();
+
+    ShardedATMService(List<AccountShard> shards, Path dir) throws IOException {
+        for (int i = 0; i < shards.size(); i++) {
+            AccountShard s = shards.get(i);
+            if (s.shardIndex() != i || s.shardCount() != shards.size()) {
+                throw new IOException("Shard " + i + " of " + shards.size() + " reports itself as shard "
+                        + s.shardIndex() + " of " + s.shardCount());
+            }
+        }
+        this.shards = shards;
+        this.dir = dir;
+        this.transfers = new TransactionJournal(dir.resolve(TRANSFERS_NAME));
+        this.coordinator = new PersistencePipeline(transfers, recoverTransfers() + 1);
+    }
+
+    /** Opens {@code count} shards in {@code dir/shard-0} .. {@code dir/shard-(count-1)} in this JVM. */
+    static ShardedATMService openLocal(Path dir, int count) throws IOException {
+        return openLocal(dir, count, AccountCache.DEFAULT_CAPACITY);
+    }
+
+    /** As {@link #openLocal(Path, int)}, with an account cache of {@code cacheBytes} per shard. */
+    static ShardedATMService openLocal(Path dir, int count, long cacheBytes) throws IOException {
+        List<AccountShard> shards = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                LocalATMService shard = LocalATMService.openShard(dir.resolve(shardDir(i)), i, count, cacheBytes);
+                shard.warmUp();
+                shards.add(shard);
+            }
+            return new ShardedATMService(shards, dir);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(shards);
+            throw e;
+        }
+    }
+
+    /** Coordinates shard servers at {@code addresses}, given in shard order. */
+    static ShardedATMService connect(Path dir, String[] addresses) throws IOException {
+        List<AccountShard> shards = new ArrayList<>(addresses.length);
+        try {
+            for (String address : addresses) {
+                shards.add(ATMClient.shard(address.trim()));
+            }
+            return new ShardedATMService(shards, dir);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(shards);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(List<AccountShard> shards) {
+        for (AccountShard s : shards) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                System.err.println("Error closing shard: " + e.getMessage());
+            }
+        }
+    }
+
+    static String shardDir(int shard) {
+        return "shard-" + shard;
+    }
+
+    static int shardOf(String accountNumber, int shards) {
+        return shards == 1 ? 0 : (int) (Long.parseLong(accountNumber) % shards);
+    }
+
+    // A malformed number goes to shard 0, which rejects it as slowly as a wrong PIN
+    @Override
+    public Session login(String terminal, String accountNumber, String pin) throws IOException {
+        int shard = LocalATMService.isAccountNumber(accountNumber) ? shardOf(accountNumber, shards.size()) : 0;
+        Session s = shards.get(shard).login(terminal, accountNumber, pin);
+        return s == null ? null : new ShardSession(s);
+    }
+
+    /** New accounts are spread over the shards round-robin. */
+    @Override
+    public NewAccount createAccount(String name, long initialDeposit) throws IOException {
+        int shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        return shards.get(shard).createAccount(name, initialDeposit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (AccountShard s : shards) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                first = first == null ? e : first;
+            }
+        }
+        coordinator.close();
+        transfers.close();
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    private final class ShardSession implements Session {
+        private final Session inner;
+
+        ShardSession(Session inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public String accountNumber() {
+            return inner.accountNumber();
+        }
+
+        @Override
+        public String name() {
+            return inner.name();
+        }
+
+        @Override
+        public long balance() throws IOException {
+            return inner.balance();
+        }
+
+        @Override
+        public long balanceAt(long timestamp) throws IOException {
+            return inner.balanceAt(timestamp);
+        }
+
+        @Override
+        public boolean withdraw(long amount) throws IOException {
+            return inner.withdraw(amount);
+        }
+
+        @Override
+        public boolean deposit(long amount) throws IOException {
+            return inner.deposit(amount);
+        }
+
+        @Override
+        public boolean transfer(String toAccountNumber, long amount) throws IOException {
+            int to;
+            try {
+                to = shardOf(toAccountNumber, shards.size());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            int from = shardOf(inner.accountNumber(), shards.size());
+            if (to == from) {
+                return inner.transfer(toAccountNumber, amount);
+            }
+            return transferAcross(shards.get(from), inner.accountNumber(), shards.get(to), toAccountNumber, amount);
+        }
+
+        @Override
+        public String recentHistory(int n) throws IOException {
+            return inner.recentHistory(n);
+        }
+
+        @Override
+        public void writeStatement(long from, long to, String format, Writer out) throws IOException {
+            inner.writeStatement(from, to, format, out);
+        }
+
+        @Override
+        public void logout() throws IOException {
+            inner.logout();
+        }
+    }
+
+    private boolean transferAcross(AccountShard source, String from, AccountShard target, String to, long amount)
+            throws IOException {
+        if (amount <= 0 || from.equals(to) || !target.hasAccount(to)) {
+            return false;
+        }
+        long seq = begin(from, to, amount);
+        boolean moved;
+        try {
+            moved = move(seq, source, from, target, to, amount);
+        } catch (IOException e) {
+            // Left unsettled, and so in the log, until the next start runs it again
+            System.err.println("Cross-shard transfer " + seq + " of " + Money.format(amount) + " Birr from " + from
+                    + " to " + to + " is in doubt until the next start: " + e.getMessage());
+            throw e;
+        }
+        settle(seq, from);
+        if (moved) {
+            Metrics.SHARD_TRANSFERS.increment();
+        }
+        return moved;
+    }
+
+    // Every leg is applied once per transfer id, so this also finishes a transfer that was cut off part way
+    private static boolean move(long transferId, AccountShard source, String from, AccountShard target, String to,
+            long amount) throws IOException {
+        if (!source.transferOut(transferId, from, to, amount)) {
+            return false;
+        }
+        if (target.transferIn(transferId, to, from, amount)) {
+            return true;
+        }
+        if (!source.transferIn(transferId, from, to, amount)) {
+            throw new IOException("Refund to " + from + " was refused");
+        }
+        return false;
+    }
+
+    // The coordinator's pipeline takes the sequence number and group-commits the record with
+    // those of concurrent transfers; only the money waits for it to be durable
+    private long begin(String from, String to, long amount) throws IOException {
+        CompletableFuture<Long> seq;
+        resetLock.readLock().lock();
+        try {
+            unsettled.incrementAndGet();
+            seq = coordinator.submitShardTransfer(from, to, amount);
+        } finally {
+            resetLock.readLock().unlock();
+        }
+        try {
+            return seq.get();
+        } catch (ExecutionException e) {
+            unsettled.decrementAndGet();
+            throw new IOException("Cannot journal transfer: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unsettled.decrementAndGet();
+            throw new IOException("Interrupted while journaling transfer");
+        }
+    }
+
+    // The money has already moved (or not), so the SETTLED record is not waited for: if it is
+    // lost, the transfer is run again, to the same end, after the next restart
+    private void settle(long transferSeq, String from) {
+        coordinator.submitSettled(from, transferSeq).whenComplete((v, e) -> {
+            if (e != null) {
+                System.err.println("Error settling transfer " + transferSeq + ": " + e.getMessage());
+            }
+        });
+        if (unsettled.decrementAndGet() > 0 || transfers.recordCount() < LocalATMService.CHECKPOINT_INTERVAL) {
+            return;
+        }
+        // With nothing unsettled every record is closed, so the log can start over; a SETTLED
+        // record still queued then lands in the new log, where it closes nothing
+        resetLock.writeLock().lock();
+        try {
+            if (unsettled.get() == 0) {
+                transfers.reset();
+            }
+        } catch (IOException e) {
+            Metrics.JOURNAL_ERRORS.increment();
+            System.err.println("Error resetting transfer log: " + e.getMessage());
+        } finally {
+            resetLock.writeLock().unlock();
+        }
+    }
+
+    /** Finishes the transfers left unsettled and returns the last transfer id handed out. */
+    private long recoverTransfers() throws IOException {
+        Map<Long, TransactionJournal.Record> open = new LinkedHashMap<>();
+        transfers.replay(0, r -> {
+            if (r.type == TransactionJournal.TRANSFER) {
+                open.put(r.seq, r);
+            } else if (r.type == TransactionJournal.TRANSFERS) {
+                // Transfers between the same two accounts that were committed together
+                for (int i = 0; i < r.postingCount(); i++) {
+                    boolean out = r.postingTypes[i] == TransactionJournal.TRANSFER_OUT;
+                    open.put(r.postingSeqs[i], new TransactionJournal.Record(TransactionJournal.TRANSFER,
+                            r.postingSeqs[i], r.postingTimestamps[i], out ? r.accountNumber : r.counterparty,
+                            r.postingAmounts[i], null, null, out ? r.counterparty : r.accountNumber));
+                }
+            } else if (r.type == TransactionJournal.SETTLED) {
+                open.remove(r.amount);
+            }
+        });
+        // Shards remember legs by transfer id, so ids must not repeat even after the log was reset: each
+        // start continues above the clock in 1/1024 ms, which no earlier start reaches below 1024 transfers/ms
+        long lastTransferSeq = Math.max(transfers.lastSeq(), System.currentTimeMillis() << 10);
+        long now = System.currentTimeMillis();
+        int settled = 0;
+        for (TransactionJournal.Record r : open.values()) {
+            String conflict = finish(r, now);
+            if (conflict == null) {
+                settled++;
+            } else {
+                reportInDoubt(r.seq, r.timestamp, r.accountNumber, r.counterparty, r.amount, conflict);
+            }
+        }
+        if (settled > 0) {
+            System.err.println("Settled " + settled + " cross-shard transfers left unsettled at the last stop");
+        }
+        transfers.reset();
+        return lastTransferSeq;
+    }
+
+    /** Runs an unsettled transfer again; returns why it could not be finished, or null. */
+    private String finish(TransactionJournal.Record r, long now) {
+        // Half the retention leaves a shard that checkpoints meanwhile ample margin before it forgets the legs
+        if (r.timestamp < now - TransferLegs.RETENTION / 2) {
+            return "unsettled at startup, too old to replay";
+        }
+        int from = shardOf(r.accountNumber, shards.size());
+        int to = shardOf(r.counterparty, shards.size());
+        if (from == to) {
+            return "unsettled at startup, both accounts on shard " + from;
+        }
+        try {
+            if (move(r.seq, shards.get(from), r.accountNumber, shards.get(to), r.counterparty, r.amount)) {
+                Metrics.SHARD_TRANSFERS.increment();
+            }
+            return null;
+        } catch (IOException e) {
+            return "unsettled at startup: " + e.getMessage();
+        }
+    }
+
+    private void reportInDoubt(long seq, long timestamp, String from, String to, long amount, String reason) {
+        Metrics.TRANSFERS_IN_DOUBT.increment();
+        String line = "transfer " + seq + " at " + timestamp + ": " + Money.format(amount) + " Birr from " + from
+                + " to " + to + " (" + reason + ")";
+        System.err.println("Cross-shard " + line + " may be incomplete");
+        try {
+            Files.writeString(dir.resolve(IN_DOUBT_NAME), line + "\n", StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Error recording transfer in doubt: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Records when each startup phase finished, in milliseconds since
+ * {@code main} was entered, and prints them as one line, e.g.
+ * {@code Startup: splash 41 ms, service 96 ms, warm 98 ms, login ready 131 ms}.
+ * Phases may be marked from any thread.
+ */
+final class StartupTimer {
+    private final long start = System.nanoTime();
+    private final StringBuilder phases = new StringBuilder("Startup:");
+    private int count;
+
+    synchronized void mark(String phase) {
+        phases.append(count++ == 0 ? " " : ", ").append(phase).append(' ')
+                .append((System.nanoTime() - start) / 1_000_000).append(" ms");
+    }
+
+    synchronized void print() {
+        System.out.println(phases);
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+
+/**
+ * Renders an account statement for a period straight from the transaction
+ * history to a {@link Writer}, either as CSV or as fixed-width text for
+ * printing. Postings are written as they are read, one spilled segment at a
+ * time, so a statement over years of history needs no more memory than one
+ * over a week. Dates are in the Ethiopian calendar like everywhere else in the
+ * application; periods run from the start of the first day to the end of the
+ * last.
+ */
+final class Statement {
+    static final String CSV = "csv";
+    static final String PRINT = "print";
+
+    private static final String RULE = "----------  --------  ---------------  ---------------  ---------------\n";
+
+    private final Writer out;
+    private final boolean csv;
+    private final StringBuilder line = new StringBuilder(96);
+    private int postings;
+    private long credits;
+    private long debits;
+    private long closing;
+
+    private Statement(Writer out, boolean csv) {
+        this.out = out;
+        this.csv = csv;
+    }
+
+    /**
+     * Writes the postings of {@code history} with {@code from <= timestamp < to}.
+     * Pass a {@link TransactionHistory#snapshot} if the account may be posted to
+     * meanwhile.
+     *
+     * @throws IllegalArgumentException if the format is neither {@link #CSV} nor {@link #PRINT}
+     */
+    static int write(String accountNumber, String name, TransactionHistory history, long from, long to,
+            String format, Writer out) throws IOException {
+        if (!CSV.equals(format) && !PRINT.equals(format)) {
+            throw new IllegalArgumentException("Unknown statement format " + format);
+        }
+        Statement s = new Statement(out, CSV.equals(format));
+        if (s.csv) {
+            out.write("date,time,type,amount,balance\n");
+        } else {
+            s.header(accountNumber, name, from, to);
+        }
+        history.forEach(from, to, s::posting);
+        if (!s.csv) {
+            s.footer();
+        }
+        out.flush();
+        return s.postings;
+    }
+
+    /** Start of an Ethiopian-calendar day given as d/m/yyyy, in epoch milliseconds. */
+    static long startOfDay(String dmy) {
+        return dayStart(dmy, 0);
+    }
+
+    /** Start of the day after {@code dmy}, i.e. the exclusive end of a period ending that day. */
+    static long endOfDay(String dmy) {
+        return dayStart(dmy, 1);
+    }
+
+    private static long dayStart(String dmy, int plusDays) {
+        String[] parts = dmy.trim().split("/");
+        try {
+            if (parts.length != 3) {
+                throw new NumberFormatException();
+            }
+            LocalDate d = LocalDate.of(Integer.parseInt(parts[2]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[0])).plusDays(plusDays);
+            return Transaction.fromEthiopianDate(d.getDayOfMonth(), d.getMonthValue(), d.getYear());
+        } catch (NumberFormatException | DateTimeException e) {
+            throw new IllegalArgumentException("Dates must be given as day/month/year, e.g. 1/1/2017");
+        }
+    }
+
+    private void posting(byte type, long amount, long timestamp, long balanceAfter) throws IOException {
+        long signed = Transaction.signedAmount(type, amount);
+        if (!csv && postings == 0) {
+            balanceLine("Opening balance", balanceAfter - signed);
+        }
+        line.setLength(0);
+        if (csv) {
+            appendDate(timestamp, ",");
+            line.append(',').append(code(type)).append(',');
+            Money.appendTo(line, signed).append(',');
+            Money.appendTo(line, balanceAfter).append('\n');
+        } else {
+            appendDate(timestamp, "  ");
+            line.append("  ");
+            column(description(type), 15);
+            line.append("  ");
+            int start = line.length();
+            if (signed > 0) {
+                line.append('+');
+            }
+            Money.appendTo(line, signed);
+            pad(start, 15);
+            line.append("  ");
+            start = line.length();
+            Money.appendTo(line, balanceAfter);
+            pad(start, 15);
+            line.append('\n');
+        }
+        out.append(line);
+        postings++;
+        if (signed > 0) {
+            credits += signed;
+        } else {
+            debits -= signed;
+        }
+        closing = balanceAfter;
+    }
+
+    private void header(String accountNumber, String name, long from, long to) throws IOException {
+        line.setLength(0);
+        line.append("ACCOUNT STATEMENT\nAccount   ").append(accountNumber).append("  ").append(name)
+                .append("\nPeriod    ");
+        if (from == Long.MIN_VALUE) {
+            line.append("opening");
+        } else {
+            appendDay(from);
+        }
+        line.append(" - ");
+        if (to == Long.MAX_VALUE) {
+            line.append("today");
+        } else {
+            appendDay(to - 1);
+        }
+        line.append("\n\nDate        Time      Description               Amount          Balance\n").append(RULE);
+        out.append(line);
+    }
+
+    private void footer() throws IOException {
+        if (postings == 0) {
+            out.write("No transactions in this period\n");
+            return;
+        }
+        balanceLine("Closing balance", closing);
+        line.setLength(0);
+        line.append(RULE).append(postings).append(postings == 1 ? " posting, in " : " postings, in ");
+        Money.appendTo(line, credits).append(" Birr, out ");
+        Money.appendTo(line, debits).append(" Birr\n");
+        out.append(line);
+    }
+
+    private void balanceLine(String label, long balance) throws IOException {
+        line.setLength(0);
+        line.append("                      ");
+        column(label, 15);
+        line.append("  ");
+        column("", 15);
+        line.append("  ");
+        int start = line.length();
+        Money.appendTo(line, balance);
+        pad(start, 15);
+        line.append('\n');
+        out.append(line);
+    }
+
+    private void appendDate(long timestamp, String separator) {
+        appendDay(timestamp);
+        LocalTime t = Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()).toLocalTime();
+        line.append(separator);
+        twoDigits(t.getHour()).append(':');
+        twoDigits(t.getMinute()).append(':');
+        twoDigits(t.getSecond());
+    }
+
+    private void appendDay(long timestamp) {
+        LocalDate d = Transaction.ethiopianDate(timestamp);
+        twoDigits(d.getDayOfMonth()).append('/');
+        twoDigits(d.getMonthValue()).append('/').append(d.getYear());
+    }
+
+    private StringBuilder twoDigits(int n) {
+        return (n < 10 ? line.append('0') : line).append(n);
+    }
+
+    private void column(String text, int width) {
+        line.append(text);
+        for (int i = text.length(); i < width; i++) {
+            line.append(' ');
+        }
+    }
+
+    // Right-aligns what was appended since start in a column of the given width
+    private void pad(int start, int width) {
+        for (int i = line.length() - start; i < width; i++) {
+            line.insert(start, ' ');
+        }
+    }
+
+    private static String code(byte type) {
+        switch (type) {
+            case Transaction.DEPOSIT:
+                return "DEPOSIT";
+            case Transaction.WITHDRAW:
+                return "WITHDRAW";
+            case Transaction.TRANSFER_OUT:
+                return "TRANSFER_OUT";
+            case Transaction.TRANSFER_IN:
+                return "TRANSFER_IN";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private static String description(byte type) {
+        switch (type) {
+            case Transaction.DEPOSIT:
+                return "Deposit";
+            case Transaction.WITHDRAW:
+                return "Withdrawal";
+            case Transaction.TRANSFER_OUT:
+                return "Transfer out";
+            case Transaction.TRANSFER_IN:
+                return "Transfer in";
+            default:
+                return "Unknown";
+        }
+    }
+}
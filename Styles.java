@@ -0,0 +1,54 @@
+import java.awt.Color;
+import java.awt.Font;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.border.Border;
+
+/**
+ * Fonts, colors and borders of the terminal screens. They are immutable, so
+ * every component shares one instance of each instead of building its own.
+ */
+final class Styles {
+    static final Font SPLASH = new Font("Arial", Font.BOLD, 24);
+    static final Font HEADING = new Font("Arial", Font.BOLD, 20);
+    static final Font INPUT = new Font("Arial", Font.BOLD, 18);
+    static final Font LABEL = new Font("Arial", Font.BOLD, 14);
+    static final Font TEXT = new Font("Arial", Font.PLAIN, 14);
+    static final Font BUTTON = new Font("Arial", Font.BOLD, 12);
+
+    static final Color BACKGROUND = new Color(240, 240, 240);
+    static final Color GREEN = new Color(0, 150, 0);
+    static final Color ORANGE = new Color(200, 120, 0);
+    static final Color BLUE = new Color(0, 120, 200);
+    static final Color RED = new Color(200, 0, 0);
+    static final Color PURPLE = new Color(150, 0, 150);
+    static final Color GREY = new Color(100, 100, 100);
+
+    static final Border BUTTON_PADDING = BorderFactory.createEmptyBorder(5, 10, 5, 10);
+    static final Border LARGE_BUTTON_PADDING = BorderFactory.createEmptyBorder(8, 15, 8, 15);
+
+    private Styles() {
+    }
+
+    static JButton button(String text, Color background, int mnemonic) {
+        return button(text, background, mnemonic, BUTTON_PADDING);
+    }
+
+    static JButton button(String text, Color background, int mnemonic, Border padding) {
+        JButton button = new JButton(text);
+        button.setBackground(background);
+        button.setForeground(Color.WHITE);
+        button.setFont(BUTTON);
+        button.setMnemonic(mnemonic);
+        button.setFocusPainted(false);
+        button.setBorder(padding);
+        return button;
+    }
+
+    static JLabel label(String text, Font font) {
+        JLabel label = new JLabel(text);
+        label.setFont(font);
+        return label;
+    }
+}
@@ -0,0 +1,74 @@
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * One posting against an account. Amounts and balances are in santim
+ * (1/100 Birr); the timestamp is epoch milliseconds.
+ */
+final class Transaction {
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAW = 2;
+    static final byte TRANSFER_OUT = 3;
+    static final byte TRANSFER_IN = 4;
+
+    // Approximate Ethiopian Calendar conversion (subtract 7-8 years due to calendar
+    // difference)
+    private static final long ETHIOPIAN_OFFSET_DAYS = 2800; // Rough 7.6 years
+
+    final byte type;
+    final long amount;
+    final long timestamp;
+    final long balanceAfter;
+
+    Transaction(byte type, long amount, long timestamp, long balanceAfter) {
+        this.type = type;
+        this.amount = amount;
+        this.timestamp = timestamp;
+        this.balanceAfter = balanceAfter;
+    }
+
+    /** Appends the classic "[d/m/y] Deposited: 12.00 Birr" line. */
+    static StringBuilder appendTo(StringBuilder sb, byte type, long amount, long timestamp) {
+        LocalDate date = ethiopianDate(timestamp);
+        sb.append('[').append(date.getDayOfMonth()).append('/').append(date.getMonthValue()).append('/')
+                .append(date.getYear()).append("] ").append(label(type));
+        return Money.appendTo(sb, amount).append(" Birr");
+    }
+
+    static String label(byte type) {
+        switch (type) {
+            case DEPOSIT:
+                return "Deposited: ";
+            case WITHDRAW:
+                return "Withdrawn: ";
+            case TRANSFER_OUT:
+                return "Transferred out: ";
+            case TRANSFER_IN:
+                return "Transferred in: ";
+            default:
+                return "Unknown: ";
+        }
+    }
+
+    /** Signed effect of a posting on the balance. */
+    static long signedAmount(byte type, long amount) {
+        return type == DEPOSIT || type == TRANSFER_IN ? amount : -amount;
+    }
+
+    static LocalDate ethiopianDate(long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()).toLocalDate()
+                .minusDays(ETHIOPIAN_OFFSET_DAYS);
+    }
+
+    /** Inverse of {@link #ethiopianDate}: start of that day as epoch milliseconds. */
+    static long fromEthiopianDate(int day, int month, int year) {
+        return LocalDate.of(year, month, day).plusDays(ETHIOPIAN_OFFSET_DAYS).atStartOfDay(ZoneId.systemDefault())
+                .toInstant().toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(40), type, amount, timestamp).toString();
+    }
+}
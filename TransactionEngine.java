@@ -0,0 +1,238 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Applies account operations for any number of terminals. Each account maps
+ * to one of a fixed set of lock stripes, so operations on unrelated accounts
+ * run in parallel while every check-and-update on one account (including the
+ * minimum balance rule in {@link Account#withdraw}) is atomic.
+ *
+ * The journal record is submitted while the stripe is held, so the journal
+ * order of one account always matches the order its operations were applied.
+ * Each operation returns at once with a future that completes with false if
+ * the operation was refused, and with true once its record is on disk. If the
+ * journal write fails the future completes exceptionally; the change is
+ * already applied in memory and the caller must make it durable another way.
+ */
+class TransactionEngine {
+    static final int STRIPES = 64;
+
+    private static final CompletableFuture<Boolean> REFUSED = CompletableFuture.completedFuture(false);
+    private static final CompletableFuture<Boolean> APPLIED = CompletableFuture.completedFuture(true);
+
+    interface JournalWrite {
+        CompletableFuture<Void> submit(PersistencePipeline p);
+    }
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final MappedAccountStore store;
+    private final PersistencePipeline pipeline;
+    private final AnomalyScorer scorer;
+
+    /**
+     * @param pipeline may be null, in which case changes are only applied in
+     *                 memory and every accepted operation completes at once
+     */
+    TransactionEngine(MappedAccountStore store, PersistencePipeline pipeline) {
+        this(store, pipeline, null);
+    }
+
+    /** @param scorer fed every posting, or null */
+    TransactionEngine(MappedAccountStore store, PersistencePipeline pipeline, AnomalyScorer scorer) {
+        this.store = store;
+        this.pipeline = pipeline;
+        this.scorer = scorer;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    CompletableFuture<Boolean> create(Account acc) {
+        ReentrantLock lock = stripeFor(acc);
+        lock.lock();
+        try {
+            store.add(acc);
+            return journal(p -> p.submitCreate(acc.getAccountNumber(), acc.getCredential(), acc.getName(),
+                    acc.getBalance()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    CompletableFuture<Boolean> withdraw(Account acc, long amount) {
+        ReentrantLock lock = stripeFor(acc);
+        lock.lock();
+        try {
+            if (!acc.withdraw(amount)) {
+                return REFUSED;
+            }
+            post(acc, Transaction.WITHDRAW, amount, System.currentTimeMillis());
+            return journal(p -> p.submitWithdraw(acc.getAccountNumber(), amount));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    CompletableFuture<Boolean> deposit(Account acc, long amount) {
+        ReentrantLock lock = stripeFor(acc);
+        lock.lock();
+        try {
+            if (!acc.deposit(amount)) {
+                return REFUSED;
+            }
+            post(acc, Transaction.DEPOSIT, amount, System.currentTimeMillis());
+            return journal(p -> p.submitDeposit(acc.getAccountNumber(), amount));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves money between two accounts as one journal record. Both stripes are
+     * taken in index order, so concurrent transfers in opposite directions
+     * cannot deadlock. The source keeps the same minimum balance as a withdrawal.
+     */
+    CompletableFuture<Boolean> transfer(Account from, Account to, long amount) {
+        if (from == to || amount <= 0) {
+            return REFUSED;
+        }
+        int a = stripeIndex(from);
+        int b = stripeIndex(to);
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        first.lock();
+        second.lock();
+        try {
+            if (!from.debit(amount)) {
+                return REFUSED;
+            }
+            if (!to.deposit(amount)) {
+                from.deposit(amount);
+                return REFUSED;
+            }
+            long now = System.currentTimeMillis();
+            post(from, Transaction.TRANSFER_OUT, amount, now);
+            post(to, Transaction.TRANSFER_IN, amount, now);
+            return journal(p -> p.submitTransfer(from.getAccountNumber(), to.getAccountNumber(), amount));
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+    }
+
+    /**
+     * Debits the local side of transfer {@code transferId} to an account on
+     * another shard, under the same minimum balance rule as {@link #transfer}.
+     * Repeating it changes nothing: it stays applied, or refused once the
+     * debit was refunded.
+     */
+    CompletableFuture<Boolean> transferOut(Account from, String toAccountNumber, long amount, long transferId) {
+        ReentrantLock lock = stripeFor(from);
+        lock.lock();
+        try {
+            TransferLegs legs = store.transferLegs();
+            if (legs.has(transferId, TransactionJournal.TRANSFER_OUT)) {
+                return legs.has(transferId, TransactionJournal.TRANSFER_IN) ? REFUSED : APPLIED;
+            }
+            if (amount <= 0 || !from.debit(amount)) {
+                return REFUSED;
+            }
+            long now = System.currentTimeMillis();
+            post(from, Transaction.TRANSFER_OUT, amount, now);
+            legs.add(transferId, TransactionJournal.TRANSFER_OUT, now);
+            return journal(p -> p.submitTransferLeg(TransactionJournal.TRANSFER_OUT, from.getAccountNumber(),
+                    toAccountNumber, amount, transferId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Credits the local side of transfer {@code transferId} from an account on
+     * another shard, or refunds its source; repeating it changes nothing.
+     */
+    CompletableFuture<Boolean> transferIn(Account to, String fromAccountNumber, long amount, long transferId) {
+        ReentrantLock lock = stripeFor(to);
+        lock.lock();
+        try {
+            TransferLegs legs = store.transferLegs();
+            if (legs.has(transferId, TransactionJournal.TRANSFER_IN)) {
+                return APPLIED;
+            }
+            if (!to.deposit(amount)) {
+                return REFUSED;
+            }
+            long now = System.currentTimeMillis();
+            post(to, Transaction.TRANSFER_IN, amount, now);
+            legs.add(transferId, TransactionJournal.TRANSFER_IN, now);
+            return journal(p -> p.submitTransferLeg(TransactionJournal.TRANSFER_IN, to.getAccountNumber(),
+                    fromAccountNumber, amount, transferId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Runs {@code action} with the account's stripe held, so no posting to it is half applied. */
+    <T> T locked(Account acc, Supplier<T> action) {
+        ReentrantLock lock = stripeFor(acc);
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs {@code action} with every stripe held, e.g. to take a consistent
+     * checkpoint. Stripes are acquired in index order like transfers do.
+     */
+    void exclusive(Runnable action) {
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            action.run();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    // Records a posting in the account history, the store's daily totals and the anomaly statistics
+    private void post(Account acc, byte type, long amount, long timestamp) {
+        acc.addTransaction(type, amount, timestamp);
+        store.totals().add(type, amount, timestamp);
+        if (scorer != null) {
+            scorer.observe(acc, type, amount, timestamp);
+        }
+    }
+
+    private CompletableFuture<Boolean> journal(JournalWrite write) {
+        if (pipeline == null) {
+            return APPLIED;
+        }
+        return write.submit(pipeline).thenApply(v -> true);
+    }
+
+    private ReentrantLock stripeFor(Account acc) {
+        return stripes[stripeIndex(acc)];
+    }
+
+    private static int stripeIndex(Account acc) {
+        return spread(acc) & (STRIPES - 1);
+    }
+
+    /** The hash the stripes are picked with; tables indexed by it share the stripes' locking. */
+    static int spread(Account acc) {
+        return spread(acc.getAccountNumber());
+    }
+
+    /** {@link #spread(Account)} of a full account number in canonical form. */
+    static int spread(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Transaction history of one account, stored column by column in primitive
+ * arrays. Only a bounded hot tail of the newest postings lives on the heap;
+ * when it fills up the oldest {@link #SEGMENT_SIZE} postings are spilled to the
+ * {@link HistorySpillFile} of the store that holds the account. After a spill the hot tail still holds at
+ * least {@code SEGMENT_SIZE} postings, so "last N" views up to that size never
+ * touch the disk.
+ *
+ * Postings are never changed once added and each carries the balance after
+ * it, so the balance at any past moment follows from the first posting after
+ * it. To find that posting without walking the whole spilled chain, every
+ * {@link #INDEX_INTERVAL}th spilled segment is noted in an in-memory index with
+ * its newest timestamp; {@link #balanceAt} then reads one index entry, at most
+ * that many segment headers and one segment. A history loaded from a
+ * checkpoint builds its index on the first such query.
+ */
+final class TransactionHistory {
+    static final int HOT_CAPACITY = 32;
+    static final int SEGMENT_SIZE = 16;
+    static final int INDEX_INTERVAL = 8;
+
+    interface Visitor {
+        void visit(byte type, long amount, long timestamp, long balanceAfter) throws IOException;
+    }
+
+    private volatile HistorySpillFile spillFile;
+
+    private byte[] types = new byte[HOT_CAPACITY];
+    private long[] amounts = new long[HOT_CAPACITY];
+    private long[] timestamps = new long[HOT_CAPACITY];
+    private long[] balances = new long[HOT_CAPACITY];
+    private int hotCount;
+    private long spillHead;
+    private int spilledCount;
+    // Offset and newest timestamp of every INDEX_INTERVAL-th spilled segment, oldest first. Entries are
+    // only appended past indexCount, so a snapshot sharing the arrays keeps seeing its own prefix.
+    private long[] indexOffsets;
+    private long[] indexTimestamps;
+    private int indexCount;
+    private boolean indexed;
+
+    TransactionHistory() {
+        this(-1, 0);
+    }
+
+    TransactionHistory(long spillHead, int spilledCount) {
+        this.spillHead = spillHead;
+        this.spilledCount = spilledCount;
+        this.indexed = spilledCount == 0;
+    }
+
+    /** Sets the file this history spills to; without one the hot tail just grows. */
+    void attach(HistorySpillFile file) {
+        spillFile = file;
+    }
+
+    void add(byte type, long amount, long timestamp, long balanceAfter) {
+        if (hotCount == types.length) {
+            spillOldest();
+        }
+        types[hotCount] = type;
+        amounts[hotCount] = amount;
+        timestamps[hotCount] = timestamp;
+        balances[hotCount] = balanceAfter;
+        hotCount++;
+    }
+
+    int size() {
+        return spilledCount + hotCount;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int hotCount() {
+        return hotCount;
+    }
+
+    long spillHead() {
+        return spillHead;
+    }
+
+    int spilledCount() {
+        return spilledCount;
+    }
+
+    /** Rough heap footprint in bytes: the hot tail arrays and the spill index. */
+    int heapBytes() {
+        int index = indexOffsets == null ? 0 : 16 * indexOffsets.length;
+        return 96 + 25 * types.length + index;
+    }
+
+    byte type(int hotIndex) {
+        return types[hotIndex];
+    }
+
+    long amount(int hotIndex) {
+        return amounts[hotIndex];
+    }
+
+    long timestamp(int hotIndex) {
+        return timestamps[hotIndex];
+    }
+
+    long balanceAfter(int hotIndex) {
+        return balances[hotIndex];
+    }
+
+    /**
+     * Renders up to the last {@code n} postings from the hot tail, oldest first,
+     * one line each.
+     */
+    int appendRecent(int n, StringBuilder sb) {
+        int shown = Math.min(n, hotCount);
+        for (int i = hotCount - shown; i < hotCount; i++) {
+            Transaction.appendTo(sb, types[i], amounts[i], timestamps[i]).append('\n');
+        }
+        return shown;
+    }
+
+    /** Visits the complete history, oldest first, reading spilled segments from disk. */
+    void forEach(Visitor visitor) throws IOException {
+        forEach(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visits the postings with {@code from <= timestamp < to}, oldest first.
+     * Spilled segments are read one at a time, and since postings are added in
+     * time order the walk back stops at the first segment that ends before
+     * {@code from} and the walk forward stops at the first posting at or after
+     * {@code to}. Only the segment offsets are held in memory.
+     */
+    void forEach(long from, long to, Visitor visitor) throws IOException {
+        if (spilledCount > 0) {
+            HistorySpillFile file = spillFile;
+            if (file == null) {
+                throw new IOException("Transaction history spill file is not open");
+            }
+            long[] chain = new long[(spilledCount + SEGMENT_SIZE - 1) / SEGMENT_SIZE];
+            int segments = 0;
+            for (long at = spillHead; at >= 0 && segments < chain.length; segments++) {
+                if (from != Long.MIN_VALUE && file.newestTimestamp(at) < from) {
+                    break;
+                }
+                chain[segments] = at;
+                at = file.prev(at);
+            }
+            for (int s = segments - 1; s >= 0; s--) {
+                HistorySpillFile.Segment seg = file.read(chain[s]);
+                for (int i = 0; i < seg.types.length; i++) {
+                    if (seg.timestamps[i] >= to) {
+                        return;
+                    }
+                    if (seg.timestamps[i] >= from) {
+                        visitor.visit(seg.types[i], seg.amounts[i], seg.timestamps[i], seg.balances[i]);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < hotCount; i++) {
+            if (timestamps[i] >= to) {
+                return;
+            }
+            if (timestamps[i] >= from) {
+                visitor.visit(types[i], amounts[i], timestamps[i], balances[i]);
+            }
+        }
+    }
+
+    /**
+     * The balance in effect at {@code time}: after every posting with
+     * {@code timestamp <= time} and before any later one. {@code current} is
+     * the balance now; it is the answer when nothing was posted after
+     * {@code time}, and for a history without postings.
+     */
+    long balanceAt(long time, long current) throws IOException {
+        if (hotCount > 0 && timestamps[0] <= time) {
+            int i = firstAfter(timestamps, hotCount, time);
+            return i == hotCount ? current : balances[i] - Transaction.signedAmount(types[i], amounts[i]);
+        }
+        if (spilledCount > 0) {
+            HistorySpillFile file = spillFile;
+            if (file == null) {
+                throw new IOException("Transaction history spill file is not open");
+            }
+            if (file.newestTimestamp(spillHead) > time) {
+                HistorySpillFile.Segment seg = file.read(oldestSegmentAfter(file, time));
+                int i = firstAfter(seg.timestamps, seg.timestamps.length, time);
+                return seg.balances[i] - Transaction.signedAmount(seg.types[i], seg.amounts[i]);
+            }
+        }
+        return hotCount == 0 ? current : balances[0] - Transaction.signedAmount(types[0], amounts[0]);
+    }
+
+    /** True once the spilled segments are indexed; until then {@link #balanceAt} walks the chain first. */
+    boolean indexed() {
+        return indexed;
+    }
+
+    /**
+     * Takes over the index a {@link #snapshot} of this history built. Segments
+     * spilled since the snapshot was taken are simply not in it, which only
+     * lengthens the walk of later queries by as many headers.
+     */
+    void adoptIndex(TransactionHistory snapshot) {
+        if (!indexed && snapshot.indexed) {
+            indexOffsets = snapshot.indexOffsets;
+            indexTimestamps = snapshot.indexTimestamps;
+            indexCount = snapshot.indexCount;
+            indexed = true;
+        }
+    }
+
+    // The oldest spilled segment holding a posting after time; the caller has seen that the newest one does
+    private long oldestSegmentAfter(HistorySpillFile file, long time) throws IOException {
+        if (!indexed) {
+            buildIndex(file);
+        }
+        int lo = 0;
+        int hi = indexCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexTimestamps[mid] > time) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        long at = lo < indexCount ? indexOffsets[lo] : spillHead;
+        for (long prev = file.prev(at); prev >= 0 && file.newestTimestamp(prev) > time; prev = file.prev(prev)) {
+            at = prev;
+        }
+        return at;
+    }
+
+    // One walk over the segment headers, newest to oldest
+    private void buildIndex(HistorySpillFile file) throws IOException {
+        int segments = spilledCount / SEGMENT_SIZE;
+        int entries = (segments + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        long[] offsets = new long[Math.max(entries, 4)];
+        long[] newest = new long[offsets.length];
+        long at = spillHead;
+        for (int n = segments - 1; n >= 0 && at >= 0; n--) {
+            if (n % INDEX_INTERVAL == 0) {
+                offsets[n / INDEX_INTERVAL] = at;
+                newest[n / INDEX_INTERVAL] = file.newestTimestamp(at);
+            }
+            at = file.prev(at);
+        }
+        indexOffsets = offsets;
+        indexTimestamps = newest;
+        indexCount = entries;
+        indexed = true;
+    }
+
+    private void noteSpilled(long offset, long newest) {
+        int n = spilledCount / SEGMENT_SIZE;
+        if (!indexed || n % INDEX_INTERVAL != 0) {
+            return;
+        }
+        if (indexOffsets == null || indexCount == indexOffsets.length) {
+            int grown = indexOffsets == null ? 4 : indexCount * 2;
+            indexOffsets = indexOffsets == null ? new long[grown] : Arrays.copyOf(indexOffsets, grown);
+            indexTimestamps = indexTimestamps == null ? new long[grown] : Arrays.copyOf(indexTimestamps, grown);
+        }
+        indexOffsets[indexCount] = offset;
+        indexTimestamps[indexCount] = newest;
+        indexCount++;
+    }
+
+    // Index of the first of the first count timestamps that is after time, or count
+    private static int firstAfter(long[] timestamps, int count, long time) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[mid] > time) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * A copy that later postings do not change: the hot tail is copied and
+     * spilled segments are never rewritten, so the copy can be read without
+     * holding the account's lock. Take it while no posting is in progress.
+     */
+    TransactionHistory snapshot() {
+        TransactionHistory copy = new TransactionHistory(spillHead, spilledCount);
+        copy.spillFile = spillFile;
+        copy.types = Arrays.copyOf(types, hotCount);
+        copy.amounts = Arrays.copyOf(amounts, hotCount);
+        copy.timestamps = Arrays.copyOf(timestamps, hotCount);
+        copy.balances = Arrays.copyOf(balances, hotCount);
+        copy.hotCount = hotCount;
+        copy.indexOffsets = indexOffsets;
+        copy.indexTimestamps = indexTimestamps;
+        copy.indexCount = indexCount;
+        copy.indexed = indexed;
+        return copy;
+    }
+
+    private void spillOldest() {
+        HistorySpillFile file = spillFile;
+        if (file != null) {
+            try {
+                spillHead = file.append(spillHead, types, amounts, timestamps, balances, SEGMENT_SIZE);
+                noteSpilled(spillHead, timestamps[SEGMENT_SIZE - 1]);
+                spilledCount += SEGMENT_SIZE;
+                hotCount -= SEGMENT_SIZE;
+                System.arraycopy(types, SEGMENT_SIZE, types, 0, hotCount);
+                System.arraycopy(amounts, SEGMENT_SIZE, amounts, 0, hotCount);
+                System.arraycopy(timestamps, SEGMENT_SIZE, timestamps, 0, hotCount);
+                System.arraycopy(balances, SEGMENT_SIZE, balances, 0, hotCount);
+                return;
+            } catch (IOException e) {
+                Metrics.HISTORY_ERRORS.increment();
+                System.err.println("Error spilling transaction history: " + e.getMessage());
+            }
+        }
+        int grown = types.length * 2;
+        types = Arrays.copyOf(types, grown);
+        amounts = Arrays.copyOf(amounts, grown);
+        timestamps = Arrays.copyOf(timestamps, grown);
+        balances = Arrays.copyOf(balances, grown);
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of account operations. Every record is framed as
+ * [int length][int crc32][body] and carries a monotonically increasing sequence
+ * number so that replay can skip whatever the last checkpoint already contains.
+ * Amounts are santim, and CREATE records carry the account's
+ * {@link PinCredential}.
+ *
+ * A POSTINGS record holds several deposits and withdrawals of one account that
+ * {@link PersistencePipeline} coalesced into one frame; each posting keeps its
+ * own sequence number.
+ *
+ * A TRANSFERS record likewise holds several transfers between the same two
+ * accounts, the account and its counterparty. Each transfer is one
+ * TRANSFER_OUT or TRANSFER_IN posting from the account's side, and the amount
+ * field holds the net change of the account.
+ *
+ * TRANSFER_OUT and TRANSFER_IN are the two legs of a transfer between shards,
+ * each journaled by the shard that holds the account with the coordinator's
+ * transfer id (a refund is a second TRANSFER_IN leg at the source). SETTLED is only written
+ * to a {@link ShardedATMService} coordinator log and closes the TRANSFER record
+ * whose sequence number it carries in its amount field.
+ *
+ * When a checkpoint is taken the journal is {@link #rotate rotated}: the file
+ * is sealed as a segment named after the checkpoint's sequence number and a new
+ * file is started. Sealed segments are kept as long as a checkpoint generation
+ * that needs them, so any kept generation plus the later segments and the
+ * current file replays to the latest state.
+ */
+class TransactionJournal implements Closeable {
+    static final byte CREATE = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    static final byte POSTINGS = 5;
+    static final byte TRANSFER_OUT = 6;
+    static final byte TRANSFER_IN = 7;
+    static final byte SETTLED = 8;
+    static final byte TRANSFERS = 9;
+
+    static final int MAX_POSTINGS = 64;
+
+    private static final int FRAME_HEADER = 8;
+    // type + seq + timestamp + account number + amount
+    private static final int FIXED_BODY = 1 + 8 + 8 + 8 + 8;
+    private static final int MAX_NAME_BYTES = 255;
+    // type + seq + amount + timestamp
+    private static final int POSTING_SIZE = 1 + 8 + 8 + 8;
+    private static final int MAX_BODY = FIXED_BODY + 8 + 2 + MAX_POSTINGS * POSTING_SIZE;
+
+    static final class Record {
+        final byte type;
+        final long seq;
+        final long timestamp;
+        final String accountNumber;
+        final long amount;
+        final PinCredential credential;
+        final String name;
+        final String counterparty;
+        // TRANSFER_OUT and TRANSFER_IN only: the sequence number of the coordinator's TRANSFER record
+        final long transferId;
+        // POSTINGS and TRANSFERS only; amount is then the net change
+        final byte[] postingTypes;
+        final long[] postingSeqs;
+        final long[] postingAmounts;
+        final long[] postingTimestamps;
+
+        Record(byte type, long seq, long timestamp, String accountNumber, long amount, PinCredential credential,
+                String name, String counterparty) {
+            this(type, seq, timestamp, accountNumber, amount, credential, name, counterparty, 0, null, null, null,
+                    null);
+        }
+
+        /** A TRANSFER_OUT or TRANSFER_IN leg of the coordinator's transfer {@code transferId}. */
+        Record(byte type, long seq, long timestamp, String accountNumber, long amount, String counterparty,
+                long transferId) {
+            this(type, seq, timestamp, accountNumber, amount, null, null, counterparty, transferId, null, null, null,
+                    null);
+        }
+
+        Record(String accountNumber, byte[] types, long[] seqs, long[] amounts, long[] timestamps) {
+            this(accountNumber, null, types, seqs, amounts, timestamps);
+        }
+
+        /** A TRANSFERS record if {@code counterparty} is given, else a POSTINGS record. */
+        Record(String accountNumber, String counterparty, byte[] types, long[] seqs, long[] amounts,
+                long[] timestamps) {
+            this(counterparty == null ? POSTINGS : TRANSFERS, seqs[seqs.length - 1],
+                    timestamps[timestamps.length - 1], accountNumber, net(types, amounts), null, null, counterparty, 0, types, seqs, amounts, timestamps);
+        }
+
+        private Record(byte type, long seq, long timestamp, String accountNumber, long amount,
+                PinCredential credential, String name, String counterparty, long transferId, byte[] postingTypes, long[] postingSeqs, long[] postingAmounts,
+                long[] postingTimestamps) {
+            this.type = type;
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.accountNumber = accountNumber;
+            this.amount = amount;
+            this.credential = credential;
+            this.name = name;
+            this.counterparty = counterparty;
+            this.transferId = transferId;
+            this.postingTypes = postingTypes;
+            this.postingSeqs = postingSeqs;
+            this.postingAmounts = postingAmounts;
+            this.postingTimestamps = postingTimestamps;
+        }
+
+        int postingCount() {
+            return postingTypes == null ? 0 : postingTypes.length;
+        }
+
+        private static long net(byte[] types, long[] amounts) {
+            long net = 0;
+            for (int i = 0; i < types.length; i++) {
+                net += types[i] == DEPOSIT || types[i] == TRANSFER_IN ? amounts[i] : -amounts[i];
+            }
+            return net;
+        }
+    }
+
+    private final Path path;
+    private FileChannel channel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private long lastSeq;
+    private int recordCount;
+
+    TransactionJournal(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Replays the sealed segments of the journal at {@code path} that end after
+     * {@code afterSeq}, oldest first, and returns the highest sequence number
+     * seen. Replay the current file from there.
+     */
+    static long replaySegments(Path path, long afterSeq, Consumer<Record> sink) throws IOException {
+        long last = afterSeq;
+        for (Path segment : segments(path)) {
+            if (segmentSeq(segment) <= afterSeq) {
+                continue;
+            }
+            try (TransactionJournal j = new TransactionJournal(segment)) {
+                j.replay(last, sink);
+                last = Math.max(last, j.lastSeq());
+            }
+        }
+        return last;
+    }
+
+    /** Deletes the sealed segments that no checkpoint from {@code seq} on needs. */
+    static void pruneSegments(Path path, long seq) throws IOException {
+        for (Path segment : segments(path)) {
+            if (segmentSeq(segment) <= seq) {
+                Files.delete(segment);
+            }
+        }
+    }
+
+    /** Sealed segments of the journal at {@code path}, oldest first. */
+    static List<Path> segments(Path path) throws IOException {
+        List<Path> found = new ArrayList<>();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path.toAbsolutePath().getParent(),
+                prefix + "*")) {
+            for (Path p : entries) {
+                if (p.getFileName().toString().substring(prefix.length()).matches("\\d+")) {
+                    found.add(p);
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(TransactionJournal::segmentSeq));
+        return found;
+    }
+
+    private static long segmentSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Feeds every intact record with a sequence number above {@code afterSeq} to
+     * {@code sink}. A torn or corrupt tail left by a crash is truncated away.
+     */
+    synchronized void replay(long afterSeq, Consumer<Record> sink) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long last = afterSeq;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        recordCount = 0;
+
+        while (position + FRAME_HEADER <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < FIXED_BODY || length > MAX_BODY || position + FRAME_HEADER + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            channel.read(body, position + FRAME_HEADER);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            body.flip();
+            Record record = decode(body);
+            if (record.seq > last) {
+                if (hasPostings(record.type)) {
+                    record = postingsAfter(record, afterSeq);
+                }
+                sink.accept(record);
+                last = record.seq;
+            }
+            recordCount++;
+            position += FRAME_HEADER + length;
+        }
+
+        if (position < size) {
+            System.err.println("Journal: discarding " + (size - position) + " bytes of incomplete records");
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        lastSeq = last;
+    }
+
+    /**
+     * Appends {@code records} with one write and forces them to stable storage
+     * before returning. If that fails the journal is cut back to where it was, so
+     * a torn batch cannot hide later ones from replay.
+     */
+    synchronized void write(List<Record> records) throws IOException {
+        long start = Metrics.start();
+        ByteBuffer buf = writeBuffer;
+        buf.clear();
+        for (Record r : records) {
+            if (buf.remaining() < FRAME_HEADER + MAX_BODY) {
+                buf = grow(buf);
+            }
+            encode(r, buf);
+        }
+        buf.flip();
+        long end = channel.position();
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            Metrics.JOURNAL_APPEND.stop(start);
+
+            start = Metrics.start();
+            channel.force(false);
+            Metrics.JOURNAL_FSYNC.stop(start);
+        } catch (IOException e) {
+            try {
+                channel.truncate(end);
+                channel.position(end);
+            } catch (IOException ignored) {
+                // The next replay truncates at the first bad frame instead
+            }
+            throw e;
+        }
+        for (Record r : records) {
+            lastSeq = Math.max(lastSeq, r.seq);
+        }
+        recordCount += records.size();
+    }
+
+    /**
+     * Seals the records written so far as the segment ending at checkpoint
+     * {@code seq} and continues in a new file. Records up to {@code seq} that
+     * are still queued land in the new file, where replay skips them.
+     */
+    synchronized void rotate(long seq) throws IOException {
+        Path segment = path.resolveSibling(path.getFileName() + "." + seq);
+        if (channel.size() == 0 || Files.exists(segment)) {
+            return;
+        }
+        channel.force(true);
+        channel.close();
+        try {
+            Files.move(path, segment, StandardCopyOption.ATOMIC_MOVE);
+            recordCount = 0;
+        } finally {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            // Records forced into the new file are only durable once its directory entry is
+            MappedAccountStore.syncDirectory(path);
+        }
+    }
+
+    /** Drops all records once a checkpoint covering them has been written. */
+    synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        recordCount = 0;
+    }
+
+    /** Highest sequence number replayed or written so far. */
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    synchronized int recordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer grow(ByteBuffer buf) {
+        ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+        buf.flip();
+        bigger.put(buf);
+        writeBuffer = bigger;
+        return bigger;
+    }
+
+    private void encode(Record r, ByteBuffer buf) throws IOException {
+        int frame = buf.position();
+        buf.position(frame + FRAME_HEADER);
+        buf.put(r.type);
+        buf.putLong(r.seq);
+        buf.putLong(r.timestamp);
+        buf.putLong(Long.parseLong(r.accountNumber));
+        buf.putLong(r.amount);
+        if (r.type == CREATE) {
+            byte[] nameBytes = r.name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > MAX_NAME_BYTES) {
+                throw new IOException("Account name too long for journal record");
+            }
+            r.credential.write(buf);
+            buf.putShort((short) nameBytes.length);
+            buf.put(nameBytes);
+        } else if (hasCounterparty(r.type)) {
+            buf.putLong(Long.parseLong(r.counterparty));
+        }
+        if (isLeg(r.type)) {
+            buf.putLong(r.transferId);
+        }
+        if (hasPostings(r.type)) {
+            buf.putShort((short) r.postingCount());
+            for (int i = 0; i < r.postingCount(); i++) {
+                buf.put(r.postingTypes[i]);
+                buf.putLong(r.postingSeqs[i]);
+                buf.putLong(r.postingAmounts[i]);
+                buf.putLong(r.postingTimestamps[i]);
+            }
+        }
+        int length = buf.position() - frame - FRAME_HEADER;
+        crc.reset();
+        crc.update(buf.array(), frame + FRAME_HEADER, length);
+        buf.putInt(frame, length);
+        buf.putInt(frame + 4, (int) crc.getValue());
+    }
+
+    private static Record decode(ByteBuffer body) {
+        byte type = body.get();
+        long seq = body.getLong();
+        long timestamp = body.getLong();
+        String accountNumber = Long.toString(body.getLong());
+        long amount = body.getLong();
+        PinCredential credential = null;
+        String name = null;
+        String counterparty = null;
+        if (type == CREATE) {
+            credential = PinCredential.read(body);
+            byte[] nameBytes = new byte[body.getShort()];
+            body.get(nameBytes);
+            name = new String(nameBytes, StandardCharsets.UTF_8);
+        } else if (hasCounterparty(type)) {
+            counterparty = Long.toString(body.getLong());
+        }
+        if (isLeg(type)) {
+            return new Record(type, seq, timestamp, accountNumber, amount, counterparty, body.getLong());
+        }
+        if (hasPostings(type)) {
+            int count = body.getShort();
+            byte[] types = new byte[count];
+            long[] seqs = new long[count];
+            long[] amounts = new long[count];
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = body.get();
+                seqs[i] = body.getLong();
+                amounts[i] = body.getLong();
+                timestamps[i] = body.getLong();
+            }
+            return new Record(accountNumber, counterparty, types, seqs, amounts, timestamps);
+        }
+        return new Record(type, seq, timestamp, accountNumber, amount, credential, name, counterparty);
+    }
+
+    private static boolean hasCounterparty(byte type) {
+        return type == TRANSFER || type == TRANSFER_OUT || type == TRANSFER_IN || type == TRANSFERS;
+    }
+
+    private static boolean isLeg(byte type) {
+        return type == TRANSFER_OUT || type == TRANSFER_IN;
+    }
+
+    private static boolean hasPostings(byte type) {
+        return type == POSTINGS || type == TRANSFERS;
+    }
+
+    /** Drops the postings of a coalesced record that a checkpoint already covers. */
+    private static Record postingsAfter(Record r, long afterSeq) {
+        int first = 0;
+        while (r.postingSeqs[first] <= afterSeq) {
+            first++;
+        }
+        if (first == 0) {
+            return r;
+        }
+        int n = r.postingCount();
+        return new Record(r.accountNumber, r.counterparty, Arrays.copyOfRange(r.postingTypes, first, n),
+                Arrays.copyOfRange(r.postingSeqs, first, n), Arrays.copyOfRange(r.postingAmounts, first, n),
+                Arrays.copyOfRange(r.postingTimestamps, first, n));
+    }
+}
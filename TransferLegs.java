@@ -0,0 +1,90 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The legs of transfers between shards that one store has applied, by the
+ * coordinator's transfer id. With it a leg can be repeated without being
+ * applied twice, so a {@link ShardedATMService} can finish a transfer that a
+ * crash left unsettled. A source account that was debited and then refunded
+ * has both legs here. The legs are written into each checkpoint and the
+ * journal replay adds the ones made since; each is kept for
+ * {@link #RETENTION}, after which its transfer can no longer be replayed.
+ *
+ * <pre>
+ * section := leg* ; leg := transferId:long timestamp:long legs:byte (1 = TRANSFER_OUT, 2 = TRANSFER_IN)
+ * </pre>
+ */
+final class TransferLegs {
+    static final long RETENTION = 2 * 24 * 60 * 60 * 1000L;
+    private static final int LEG_SIZE = 8 + 8 + 1;
+
+    private static final class Leg {
+        final long timestamp;
+        byte legs;
+
+        Leg(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    // In the order the transfers were first seen, so the oldest are pruned from the front
+    private final Map<Long, Leg> legs = new LinkedHashMap<>();
+
+    /** Whether the leg of {@code type} (TRANSFER_OUT or TRANSFER_IN) of a transfer was applied here. */
+    synchronized boolean has(long transferId, byte type) {
+        Leg leg = legs.get(transferId);
+        return leg != null && (leg.legs & bit(type)) != 0;
+    }
+
+    synchronized void add(long transferId, byte type, long timestamp) {
+        legs.computeIfAbsent(transferId, id -> new Leg(timestamp)).legs |= bit(type);
+    }
+
+    /**
+     * A detached copy for a checkpoint, without the legs older than
+     * {@link #RETENTION}, which are dropped here too.
+     */
+    synchronized TransferLegs copy(long now) {
+        TransferLegs copy = new TransferLegs();
+        for (Iterator<Leg> it = legs.values().iterator(); it.hasNext();) {
+            if (it.next().timestamp >= now - RETENTION) {
+                break;
+            }
+            it.remove();
+        }
+        for (Map.Entry<Long, Leg> e : legs.entrySet()) {
+            Leg leg = new Leg(e.getValue().timestamp);
+            leg.legs = e.getValue().legs;
+            copy.legs.put(e.getKey(), leg);
+        }
+        return copy;
+    }
+
+    /** Writes the checkpoint section from a {@link #copy}. */
+    void write(DataOutputStream out) throws IOException {
+        for (Map.Entry<Long, Leg> e : legs.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue().timestamp);
+            out.writeByte(e.getValue().legs);
+        }
+    }
+
+    /** Adds the section between {@code from} and {@code to} of a mapped checkpoint. */
+    synchronized void read(ByteBuffer file, int from, int to) throws IOException {
+        if ((to - from) % LEG_SIZE != 0) {
+            throw new IOException("Corrupt transfer legs in checkpoint");
+        }
+        for (int at = from; at < to; at += LEG_SIZE) {
+            long timestamp = file.getLong(at + 8);
+            legs.computeIfAbsent(file.getLong(at), id -> new Leg(timestamp)).legs |= file.get(at + 16);
+        }
+    }
+
+    private static int bit(byte type) {
+        return type == TransactionJournal.TRANSFER_OUT ? 1 : 2;
+    }
+}